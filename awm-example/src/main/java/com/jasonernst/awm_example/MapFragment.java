@@ -8,9 +8,6 @@ import android.view.ViewGroup;
 
 import androidx.fragment.app.Fragment;
 
-import com.anadeainc.rxbus.Bus;
-import com.anadeainc.rxbus.BusProvider;
-import com.anadeainc.rxbus.Subscribe;
 import com.google.android.gms.maps.CameraUpdate;
 import com.google.android.gms.maps.CameraUpdateFactory;
 import com.google.android.gms.maps.GoogleMap;
@@ -22,10 +19,16 @@ import com.google.android.gms.maps.model.TileOverlay;
 import com.google.android.gms.maps.model.TileOverlayOptions;
 import com.google.maps.android.heatmaps.HeatmapTileProvider;
 import com.google.maps.android.heatmaps.WeightedLatLng;
+import com.jasonernst.awm.AndroidWirelessStatsCollector;
+import com.jasonernst.awm.FlowControl;
 import com.jasonernst.awm.stats.GPSStats;
 import com.jasonernst.awm.stats.NetworkStat;
 
 import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.disposables.CompositeDisposable;
 
 import io.rightmesh.awm_lib_example.R;
 
@@ -33,12 +36,14 @@ public class MapFragment extends Fragment {
     private static final String TAG = MapFragment.class.getCanonicalName();
     private static final int DEFAULT_ZOOM = 20;
     private static final int DEFAULT_RADIUS = 50; //between 10 and 50
+    //redrawing the heatmap is slow, so it's done at most this often whatever the scan rate
+    private static final long REDRAW_SECONDS = 5;
 
     private HeatmapTileProvider mProvider;
     private GPSStats currentPosition;
     private TileOverlay mOverlay;
     private ArrayList<WeightedLatLng> data = new ArrayList<WeightedLatLng>();
-    protected Bus eventBus = BusProvider.getInstance();
+    private final CompositeDisposable disposables = new CompositeDisposable();
     private MapView mMapView;
     private GoogleMap googleMap;
     private boolean positionSet;
@@ -72,16 +77,22 @@ public class MapFragment extends Fragment {
             }
         });
 
-        eventBus.register(this);
+        AndroidWirelessStatsCollector awsc = ((MainActivity) getActivity()).getAwsc();
+        if (awsc != null) {
+            disposables.add(awsc.getPositions(FlowControl.latest(),
+                    AndroidSchedulers.mainThread()).subscribe(this::updateGPS));
+            disposables.add(awsc.getNetworkStats(
+                    FlowControl.sample(REDRAW_SECONDS, TimeUnit.SECONDS),
+                    AndroidSchedulers.mainThread()).subscribe(this::updateNetworkDevices));
+        }
         return rootView;
     }
 
     @Override public void onDestroyView() {
         super.onDestroyView();
-        eventBus.unregister(this);
+        disposables.clear();
     }
 
-    @Subscribe
     public void updateGPS(GPSStats gpsStats) {
         currentPosition = gpsStats;
 
@@ -94,10 +105,9 @@ public class MapFragment extends Fragment {
         }
     }
 
-    @Subscribe
     public void updateNetworkDevices(NetworkStat networkStat) {
 
-        if (currentPosition == null || networkStat == null || networkStat.getDevices() == null) {
+        if (currentPosition == null || networkStat == null) {
             return;
         }
 
@@ -108,7 +118,7 @@ public class MapFragment extends Fragment {
             } else if(networkStat.getType() == WIFI) {
 
             }*/
-            WeightedLatLng point = new WeightedLatLng(new LatLng(currentPosition.latitude, currentPosition.longitude), networkStat.getDevices().size());
+            WeightedLatLng point = new WeightedLatLng(new LatLng(currentPosition.latitude, currentPosition.longitude), networkStat.size());
             data.add(point);
 
             mProvider.setWeightedData(data);
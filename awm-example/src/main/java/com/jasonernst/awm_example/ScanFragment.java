@@ -17,15 +17,9 @@ import com.anadeainc.rxbus.Bus;
 import com.anadeainc.rxbus.BusProvider;
 import com.anadeainc.rxbus.Subscribe;
 import com.jasonernst.awm.loggers.LogEvent;
-import com.jasonernst.awm.loggers.WiFiScan;
 import com.jasonernst.awm.stats.GPSStats;
-import com.jasonernst.awm.stats.NetworkDevice;
 import com.jasonernst.awm.stats.NetworkStat;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-
 import io.rightmesh.awm_lib_example.R;
 
 import static com.jasonernst.awm.stats.NetworkStat.DeviceType.BLUETOOTH;
@@ -98,27 +92,23 @@ public class ScanFragment extends Fragment implements View.OnClickListener {
         if (networkStat.getType() == BLUETOOTH) {
             Log.d("MA", "GOT BT NETWORK STAT TYPE");
             String status = "btDevices: ";
-            status = status + networkStat.getDevices().size();
-            for(NetworkDevice device : networkStat.getDevices().values()) {
-                status = status + "\n" + device.getMac() + " " + device.getName() + " "
-                        + device.getSignalStrength() + "dB";
+            status = status + networkStat.size();
+            for(int i = 0; i < networkStat.size(); i++) {
+                status = status + "\n" + networkStat.getMac(i) + " " + networkStat.getName(i)
+                        + " " + networkStat.getSignalStrength(i) + "dB";
             }
             txtBtDevices.setText(status);
         } else if (networkStat.getType() == WIFI) {
-            Log.d("MA", "GOT WIFI NETWORK STAT TYPE: " + networkStat.getDevices().size());
+            Log.d("MA", "GOT WIFI NETWORK STAT TYPE: " + networkStat.size());
             String status = "wifiDevices: ";
-            status = status + networkStat.getDevices().size();
-            for(NetworkDevice device : networkStat.getDevices().values()) {
-                status = status + "\n" + device.getMac() + " " + device.getName() + " "
-                        + device.getFrequency() + "Mhz " + device.getSignalStrength() + "dB";
+            status = status + networkStat.size();
+            for(int i = 0; i < networkStat.size(); i++) {
+                status = status + "\n" + networkStat.getMac(i) + " " + networkStat.getName(i)
+                        + " " + networkStat.getFrequency(i) + "Mhz "
+                        + networkStat.getSignalStrength(i) + "dB";
             }
 
             txtWifiDevices.setText(status);
-
-            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
-            scheduler.schedule(() -> {
-                eventBus.post(new WiFiScan());
-            }, 5, TimeUnit.SECONDS);
         } else {
             Log.d("MA", "GOT UNKNOWN NETWORK STAT TYPE");
         }
@@ -126,7 +116,9 @@ public class ScanFragment extends Fragment implements View.OnClickListener {
 
     @Subscribe
     public void updateGPS(GPSStats gpsStats) {
-        txtGPS.setText("GPS Position: long:" + gpsStats.longitude + " lat: " + gpsStats.latitude);
+        //posted from the location thread
+        mainActivity.runOnUiThread(() -> txtGPS.setText("GPS Position: long:"
+                + gpsStats.longitude + " lat: " + gpsStats.latitude));
     }
 
     @Subscribe
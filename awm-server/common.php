@@ -8,8 +8,8 @@ function attemptConnect() {
 
 //http://www.onurguzel.com/storing-mac-address-in-a-mysql-database/
 function macstringtobigint($mac) {
-  //strip out the colons from the mac address string
-  $base10mac = str_replace(":", "", $mac);
+  //strip out the separators from the mac address string, either colons or dashes
+  $base10mac = str_replace(array(":", "-"), "", $mac);
 
   return base_convert($base10mac, 16, 10);
 }
@@ -21,6 +21,363 @@ function int2macaddress($int) {
     return strtoupper(implode(':', str_split($hex,2)));
 }
 
+define("AWM_BINARY_CONTENT_TYPE", "application/vnd.awm.observation");
+define("AWM_NDJSON_CONTENT_TYPE", "application/x-ndjson");
+
+function jsonerrormessage() {
+  switch (json_last_error()) {
+    case JSON_ERROR_NONE:
+      return ' - No errors';
+    case JSON_ERROR_DEPTH:
+      return ' - Maximum stack depth exceeded';
+    case JSON_ERROR_STATE_MISMATCH:
+      return ' - Underflow or the modes mismatch';
+    case JSON_ERROR_CTRL_CHAR:
+      return ' - Unexpected control character found';
+    case JSON_ERROR_SYNTAX:
+      return ' - Syntax error, malformed JSON';
+    case JSON_ERROR_UTF8:
+      return ' - Malformed UTF-8 characters, possibly incorrectly encoded';
+    default:
+      return ' - Unknown error';
+  }
+}
+
+// a batch is a plain list of measures rather than a single measure object
+function isbatch($data) {
+  return is_array($data) && !array_key_exists("awm_measure", $data)
+    && ($data === array() || array_keys($data) === range(0, count($data) - 1));
+}
+
+/**
+ * Stores a single decoded measure using the given connection.
+ * Returns array(http status code, message).
+ */
+function storemeasure($mysqli, $data) {
+  //make sure the input is well formed and contains stats
+  if(!is_array($data) || !array_key_exists("awm_measure", $data)) {
+    return array(400, "Malformed data: missing awm-measure");
+  }
+  $awm_measure = $data["awm_measure"];
+
+  if(!array_key_exists("reporting_device", $awm_measure)) {
+    return array(400, "Malformed data: missing reporting device");
+  }
+  $rd = $awm_measure["reporting_device"];
+
+  $bt_mac_address = macaddresstobigint($rd['bt_mac_address']);
+  $wifi_mac_address = macaddresstobigint($rd['wifi_mac_address']);
+  $longitude = floatval($rd['longitude']);
+  $latitude = floatval($rd['latitude']);
+
+  $battery = floatval($rd['battery_life']);
+  if(!isset($rd['has_cellular_internet']) || !$rd['has_cellular_internet']) {
+    $rd['has_cellular_internet'] = 0;
+  } else {
+    $rd['has_cellular_internet'] = 1;
+  }
+  if(!isset($rd['has_wifi_internet'])|| !$rd['has_wifi_internet']) {
+    $rd['has_wifi_internet'] = 0;
+  } else {
+    $rd['has_wifi_internet'] = 1;
+  }
+
+  $sql = <<<EOT
+  INSERT into `reporting_device` (`uuid`, `bt_mac_address`,
+  `wifi_mac_address`, `ipv4_address`, `ipv6_address`, `timestamp`, `longitude`,
+  `latitude`, `OS`, `battery_life`, `has_cellular_internet`,
+  `has_wifi_internet`, `cellular_throughput`, `wifi_throughput`,
+  `cellular_ping`, `wifi_ping`, `cellular_operator`, `cellular_network_type`)
+  VALUES ('$rd[uuid]', '$bt_mac_address', '$wifi_mac_address',
+  INET_ATON('$rd[ipv4_address]'), INET6_ATON('$rd[ipv6_address]'),
+  '$rd[timestamp]', $longitude, $latitude, '$rd[OS]', $battery,
+   $rd[has_cellular_internet], $rd[has_wifi_internet], $rd[cellular_throughput],
+   $rd[wifi_throughput], $rd[cellular_ping], $rd[wifi_ping],
+   '$rd[cellular_operator]', $rd[cellular_network_type])
+EOT;
+  $mysqli->real_query($sql);
+  if($mysqli->connect_errno) {
+    return array(503, "Error storing the data in the db: ".$mysqli->connect_error);
+  }
+  $insertid = mysqli_insert_id($mysqli);
+
+  if(array_key_exists("devices", $awm_measure)) {
+    $awm_measure["devices"] = resolvestrings($awm_measure);
+  }
+
+  //a delta only holds what changed since the last scan, store the whole scan
+  $message = "";
+  if(array_key_exists("delta", $awm_measure)) {
+    $devices = array_key_exists("devices", $awm_measure) ? $awm_measure["devices"] : array();
+    list($awm_measure["devices"], $message) = applydelta($mysqli, $rd['uuid'],
+      $awm_measure["delta"], $devices);
+  }
+
+  if(!array_key_exists("devices", $awm_measure)) {
+    return array(200, "No devices found");
+  }
+  foreach($awm_measure["devices"] as $device) {
+    $macaddress = macaddresstobigint($device['mac_address']);
+    $sql = <<<EOT
+    INSERT INTO `observed_device` (`reporting_device_id`, `mac_address`,
+    `mac_type`, `network_name`, `signal_strength` , `frequency`,
+    `channel_width`, `security`) VALUES ($insertid, $macaddress,
+    $device[mac_type], '$device[network_name]',
+    $device[signal_strength], $device[frequency],
+    $device[channel_width], '$device[security]')
+EOT;
+    $mysqli->real_query($sql);
+    if($mysqli->connect_errno){
+      return array(503, "Error storing the data in the db: ".$mysqli->connect_error);
+    }
+  }
+  return array(200, $message);
+}
+
+/**
+ * Returns the devices of a measure with their network_name and security filled
+ * in from the strings of the measure, for devices which refer to them by id.
+ * Devices which carry the text itself are left alone. An id which isn't in the
+ * strings, such as the -1 sent for no name, is stored as an empty string.
+ */
+function resolvestrings($awm_measure) {
+  $strings = array_key_exists("strings", $awm_measure) ? $awm_measure["strings"] : array();
+  $devices = array();
+  foreach($awm_measure["devices"] as $device) {
+    foreach(array("network_name", "security") as $field) {
+      if(array_key_exists($field."_id", $device)) {
+        $id = strval($device[$field."_id"]);
+        $device[$field] = isset($strings[$id]) ? $strings[$id] : "";
+        unset($device[$field."_id"]);
+      }
+    }
+    $devices[] = $device;
+  }
+  return $devices;
+}
+
+/**
+ * Rebuilds the full list of devices of a scan sent as a delta from the previous
+ * scan of the same reporting device and mac type, and saves it as the state the
+ * next delta applies to. A keyframe replaces the state. A delta arriving out of
+ * sequence is still applied, the state being approximate until the next
+ * keyframe. The devices are keyed by their MAC as an integer, since a device
+ * may send some scans as JSON and some in the binary format. Returns
+ * array(devices, message).
+ */
+function applydelta($mysqli, $uuid, $delta, $devices) {
+  $uuid = $mysqli->real_escape_string($uuid);
+  $mac_type = intval($delta['mac_type']);
+  $sequence = intval($delta['sequence']);
+  $message = "";
+  $state = array();
+  if(empty($delta['keyframe'])) {
+    $result = $mysqli->query("SELECT `sequence`, `devices` FROM `delta_state` "
+      ."WHERE `uuid` = '$uuid' AND `mac_type` = $mac_type");
+    $row = $result ? $result->fetch_assoc() : null;
+    if($row == null) {
+      $message = "Delta without a keyframe, devices incomplete until the next one";
+    } else {
+      if(intval($row['sequence']) + 1 != $sequence) {
+        $message = "Delta out of sequence, devices approximate until the next keyframe";
+      }
+      $state = json_decode($row['devices'], true);
+    }
+    if(isset($delta['removed'])) {
+      foreach($delta['removed'] as $mac) {
+        unset($state[macaddresstobigint($mac)]);
+      }
+    }
+  }
+  foreach($devices as $device) {
+    $state[macaddresstobigint($device['mac_address'])] = $device;
+  }
+  $json = $mysqli->real_escape_string(json_encode($state, JSON_FORCE_OBJECT));
+  $mysqli->real_query("REPLACE INTO `delta_state` (`uuid`, `mac_type`, `sequence`, `devices`) "
+    ."VALUES ('$uuid', $mac_type, $sequence, '$json')");
+  return array(array_values($state), $message);
+}
+
+/**
+ * Stores each measure of a batch over a single connection and responds with a
+ * json array holding a status and message for each measure, in order. Measures
+ * which failed to decode are passed in as null.
+ */
+function storebatch($batch) {
+  $mysqli = attemptConnect();
+  if($mysqli->connect_error){
+    http_response_code(503);
+    echo "Problem connecting to the database to store the data";
+    return;
+  }
+  $results = array();
+  foreach($batch as $data) {
+    if($data === null) {
+      $result = array(400, "Failed decoding json");
+    } else {
+      $result = storemeasure($mysqli, $data);
+    }
+    $results[] = array("status" => $result[0], "message" => $result[1]);
+  }
+  $mysqli->close();
+  header("Content-Type: application/json");
+  echo json_encode($results);
+}
+
+// reads a base 128 varint, low seven bits first, advancing $pos
+function readvarint($body, &$pos) {
+  $value = 0;
+  $shift = 0;
+  do {
+    if($pos >= strlen($body) || $shift > 63) {
+      throw new Exception("Truncated varint");
+    }
+    $byte = ord($body[$pos++]);
+    $value |= ($byte & 0x7f) << $shift;
+    $shift += 7;
+  } while($byte & 0x80);
+  return $value;
+}
+
+// reads a zigzag encoded varint
+function readsignedvarint($body, &$pos) {
+  $value = readvarint($body, $pos);
+  return (($value >> 1) & PHP_INT_MAX) ^ -($value & 1);
+}
+
+function readbytes($body, &$pos, $length) {
+  if($pos + $length > strlen($body)) {
+    throw new Exception("Truncated field");
+  }
+  $bytes = substr($body, $pos, $length);
+  $pos += $length;
+  return $bytes;
+}
+
+function readstring($body, &$pos, $dictionary) {
+  $id = readvarint($body, $pos);
+  if(!array_key_exists($id, $dictionary)) {
+    throw new Exception("Unknown dictionary entry $id");
+  }
+  return $dictionary[$id];
+}
+
+/**
+ * Reads the security or network_name of a device, which is -1 when it has
+ * none. That is stored as an empty string, the same as for the JSON format.
+ * Version 1 sent it as the string "null" instead.
+ */
+function readdevicestring($body, &$pos, $dictionary, $version) {
+  if($version == 1) {
+    $value = readstring($body, $pos, $dictionary);
+    return $value === "null" ? "" : $value;
+  }
+  $id = readsignedvarint($body, $pos);
+  if($id == -1) {
+    return "";
+  }
+  if(!array_key_exists($id, $dictionary)) {
+    throw new Exception("Unknown dictionary entry $id");
+  }
+  return $dictionary[$id];
+}
+
+/**
+ * Decodes an observation in the binary format sent with the Content-Type
+ * AWM_BINARY_CONTENT_TYPE into the same array json_decode produces for the JSON
+ * format, except that the MAC addresses are already integers. Returns null if
+ * the body is not a valid observation.
+ */
+function decodebinaryobservation($body) {
+  try {
+    $pos = 0;
+    if(readbytes($body, $pos, 3) !== "AWM") {
+      return null;
+    }
+    $version = readvarint($body, $pos);
+    if($version != 1 && $version != 2) {
+      return null;
+    }
+
+    $dictionary = array();
+    $entries = readvarint($body, $pos);
+    for($i = 0; $i < $entries; $i++) {
+      $length = readvarint($body, $pos);
+      $dictionary[] = readbytes($body, $pos, $length);
+    }
+
+    $uuid = bin2hex(readbytes($body, $pos, 16));
+    $rd = array();
+    $rd['uuid'] = substr($uuid, 0, 8).'-'.substr($uuid, 8, 4).'-'
+      .substr($uuid, 12, 4).'-'.substr($uuid, 16, 4).'-'.substr($uuid, 20);
+    $rd['ipv4_address'] = inet_ntop(readbytes($body, $pos, 4));
+    $rd['ipv6_address'] = inet_ntop(readbytes($body, $pos, 16));
+    $millis = readvarint($body, $pos);
+    $rd['timestamp'] = gmdate("Y-m-d H:i:s", intdiv($millis, 1000))
+      .sprintf(".%03d", $millis % 1000);
+    $rd['longitude'] = unpack("E", readbytes($body, $pos, 8))[1];
+    $rd['latitude'] = unpack("E", readbytes($body, $pos, 8))[1];
+    $rd['bt_mac_address'] = 0;
+    $rd['wifi_mac_address'] = 0;
+    $rd['battery_life'] = unpack("G", readbytes($body, $pos, 4))[1];
+    $flags = ord(readbytes($body, $pos, 1));
+    $rd['has_cellular_internet'] = ($flags & 1) != 0;
+    $rd['has_wifi_internet'] = ($flags & 2) != 0;
+    $rd['cellular_throughput'] = unpack("G", readbytes($body, $pos, 4))[1];
+    $rd['wifi_throughput'] = unpack("G", readbytes($body, $pos, 4))[1];
+    $rd['cellular_ping'] = readsignedvarint($body, $pos);
+    $rd['wifi_ping'] = readsignedvarint($body, $pos);
+    $rd['cellular_network_type'] = readsignedvarint($body, $pos);
+    $rd['OS'] = readstring($body, $pos, $dictionary);
+    $rd['cellular_operator'] = readstring($body, $pos, $dictionary);
+
+    // version 1 has no delta section, every scan was sent whole
+    $delta = null;
+    $kind = $version == 1 ? 0 : readvarint($body, $pos);
+    if($kind != 0) {
+      $delta = array();
+      $delta['mac_type'] = readsignedvarint($body, $pos);
+      $delta['sequence'] = readvarint($body, $pos);
+      $delta['keyframe'] = $kind == 2;
+      $delta['removed'] = array();
+      $count = readvarint($body, $pos);
+      for($i = 0; $i < $count; $i++) {
+        $mac = unpack("n3", readbytes($body, $pos, 6));
+        $delta['removed'][] = ($mac[1] << 32) | ($mac[2] << 16) | $mac[3];
+      }
+    }
+
+    // the devices run to the end of the payload
+    $devices = array();
+    while($pos < strlen($body)) {
+      $device = array();
+      $mac = unpack("n3", readbytes($body, $pos, 6));
+      $device['mac_address'] = ($mac[1] << 32) | ($mac[2] << 16) | $mac[3];
+      $device['mac_type'] = readsignedvarint($body, $pos);
+      $device['signal_strength'] = readsignedvarint($body, $pos);
+      $device['frequency'] = readsignedvarint($body, $pos);
+      $device['channel_width'] = readsignedvarint($body, $pos);
+      $device['security'] = readdevicestring($body, $pos, $dictionary, $version);
+      $device['network_name'] = readdevicestring($body, $pos, $dictionary, $version);
+      $devices[] = $device;
+    }
+
+    $awm_measure = array(
+      "reporting_device" => $rd,
+      "devices" => $devices);
+    if($delta !== null) {
+      $awm_measure["delta"] = $delta;
+    }
+    return array("awm_measure" => $awm_measure);
+  } catch(Exception $ex) {
+    return null;
+  }
+}
+
+// MACs decoded from the binary format are already integers
+function macaddresstobigint($mac) {
+  return is_int($mac) ? $mac : macstringtobigint($mac);
+}
 
 /**
  * This class represents the device which made the observations of other
@@ -45,6 +45,24 @@ CREATE TABLE IF NOT EXISTS `observed_device` (
 
 -- --------------------------------------------------------
 
+--
+-- Table structure for table `delta_state`
+--
+-- The devices last seen by each reporting device, for each mac type, which
+-- the next scan sent as a delta applies to.
+--
+
+DROP TABLE IF EXISTS `delta_state`;
+CREATE TABLE IF NOT EXISTS `delta_state` (
+  `uuid` varchar(36) CHARACTER SET utf8mb4 COLLATE utf8mb4_unicode_ci NOT NULL,
+  `mac_type` tinyint(4) NOT NULL,
+  `sequence` bigint(20) NOT NULL,
+  `devices` mediumtext NOT NULL,
+  PRIMARY KEY (`uuid`, `mac_type`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+-- --------------------------------------------------------
+
 --
 -- Table structure for table `reporting_device`
 --
@@ -0,0 +1,133 @@
+package com.jasonernst.awm.loggers;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.room.Room;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Compares how many observations a second each cache can take, on the device running the
+ * tests. The results are logged under this class's name; they depend too much on the device
+ * to be asserted.
+ */
+public class CacheThroughputBenchmark {
+
+    private static final String TAG = CacheThroughputBenchmark.class.getSimpleName();
+    private static final String DATABASE_NAME = "benchmark-database";
+    private static final int RECORDS = 20000;
+    // the group size the database logger commits with by default
+    private static final int GROUP = 64;
+
+    private Context context;
+    private ObservationDatabase db;
+    private File journalDirectory;
+    private String json;
+
+    @BeforeEach
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        db = Room.databaseBuilder(context, ObservationDatabase.class, DATABASE_NAME)
+                .addCallback(ObservationDatabase.CALLBACK)
+                .build();
+        journalDirectory = new File(context.getCacheDir(), "benchmark-journal");
+        deleteJournal();
+
+        // about the size of a compact observation of a Wi-Fi network
+        StringBuilder observation = new StringBuilder("{\"observation\":{\"type\":\"wifi\"");
+        while (observation.length() < 400) {
+            observation.append(",\"field").append(observation.length()).append("\":-42");
+        }
+        json = observation.append("}}").toString();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        db.close();
+        context.deleteDatabase(DATABASE_NAME);
+        deleteJournal();
+    }
+
+    @Test public void databaseSingleInserts() {
+        // a tenth of the records, inserting one at a time is that slow
+        int records = RECORDS / 10;
+        DatabaseObservationDao dao = db.databaseObservationDao();
+        long start = System.nanoTime();
+        for (int i = 0; i < records; i++) {
+            dao.insertAll(observation());
+        }
+        report("database, one insert per record", records, start);
+        assertEquals(records, dao.getCount());
+    }
+
+    @Test public void databaseGroupInserts() {
+        DatabaseObservationDao dao = db.databaseObservationDao();
+        DatabaseObservation[] group = new DatabaseObservation[GROUP];
+        long start = System.nanoTime();
+        for (int i = 0; i < RECORDS; i += GROUP) {
+            for (int j = 0; j < GROUP; j++) {
+                group[j] = observation();
+            }
+            dao.insertAll(group);
+        }
+        report("database, " + GROUP + " records per transaction", RECORDS, start);
+        assertEquals(RECORDS, dao.getCount());
+    }
+
+    @Test public void journalAppends() throws Exception {
+        SegmentJournal journal = SegmentJournal.open(journalDirectory,
+                SegmentJournal.DEFAULT_SEGMENT_BYTES, SegmentJournal.DEFAULT_MAX_SEGMENTS);
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        long start = System.nanoTime();
+        for (int i = 0; i < RECORDS; i++) {
+            journal.append(UploadClient.body(bytes));
+            // synced as often as the database commits, for the same durability
+            if (i % GROUP == GROUP - 1) {
+                journal.sync();
+            }
+        }
+        journal.sync();
+        report("journal, synced every " + GROUP + " records", RECORDS, start);
+
+        int read = 0;
+        SegmentJournal.Batch batch;
+        while (!(batch = journal.read(500, Long.MAX_VALUE)).isEmpty()) {
+            read += batch.size();
+            journal.acknowledge(batch.getEnd());
+        }
+        assertEquals(RECORDS, read);
+        assertFalse(journal.getEvictedCount() > 0);
+    }
+
+    private DatabaseObservation observation() {
+        DatabaseObservation observation = new DatabaseObservation();
+        observation.setObservationJson(json);
+        return observation;
+    }
+
+    private static void report(String what, int records, long startNanos) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        Log.i(TAG, String.format("%s: %d records in %.2f s, %.0f records/s", what, records,
+                seconds, records / seconds));
+    }
+
+    private void deleteJournal() {
+        File[] files = journalDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.jasonernst.awm.loggers;
+
+import android.content.Context;
+
+import androidx.room.Room;
+import androidx.room.RoomDatabase;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the retention against a real database, since whether the file shrinks is up to SQLite.
+ */
+public class RetentionManagerTest {
+
+    private static final String DATABASE_NAME = "retention-database";
+    private static final int RECORDS = 10000;
+    private static final int GROUP = 100;
+
+    private Context context;
+    private ObservationDatabase db;
+    private File databaseFile;
+
+    @BeforeEach
+    public void setUp() {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        context.deleteDatabase(DATABASE_NAME);
+        // without a write ahead log, so the freed pages leave the file itself straight away
+        db = Room.databaseBuilder(context, ObservationDatabase.class, DATABASE_NAME)
+                .addCallback(ObservationDatabase.CALLBACK)
+                .setJournalMode(RoomDatabase.JournalMode.TRUNCATE)
+                .build();
+        databaseFile = context.getDatabasePath(DATABASE_NAME);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        db.close();
+        context.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test public void fileShrinksAfterEviction() {
+        RetentionManager retentionManager = new RetentionManager(db, databaseFile);
+        retentionManager.setLowStorageBytes(0);
+        // the first run switches the empty database to incremental vacuum
+        assertEquals(0, retentionManager.run());
+
+        insert(RECORDS);
+        long before = databaseFile.length();
+
+        retentionManager.setMaxRows(10);
+        assertEquals(RECORDS - 10, retentionManager.run());
+        assertEquals(10, db.databaseObservationDao().getCount());
+        assertTrue(databaseFile.length() < before,
+                "Still " + databaseFile.length() + " bytes, was " + before);
+    }
+
+    private void insert(int records) {
+        StringBuilder json = new StringBuilder("{\"observation\":{\"type\":\"wifi\"");
+        while (json.length() < 400) {
+            json.append(",\"field").append(json.length()).append("\":-42");
+        }
+        json.append("}}");
+        DatabaseObservationDao dao = db.databaseObservationDao();
+        DatabaseObservation[] group = new DatabaseObservation[GROUP];
+        for (int i = 0; i < records; i += GROUP) {
+            for (int j = 0; j < GROUP; j++) {
+                group[j] = new DatabaseObservation();
+                group[j].setObservationJson(json.toString());
+            }
+            dao.insertAll(group);
+        }
+    }
+}
@@ -4,6 +4,7 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.anadeainc.rxbus.Bus;
@@ -15,28 +16,46 @@ import com.vanniktech.rxpermission.Permission;
 import com.vanniktech.rxpermission.RealRxPermission;
 import com.vanniktech.rxpermission.RxPermission;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import io.reactivex.Flowable;
+import io.reactivex.Scheduler;
 import io.reactivex.annotations.NonNull;
 import io.reactivex.disposables.CompositeDisposable;
+import io.reactivex.processors.FlowableProcessor;
+import io.reactivex.processors.PublishProcessor;
 import com.jasonernst.awm.collectors.BatteryStatsCollector;
+import com.jasonernst.awm.collectors.BluetoothLeStatsCollector;
 import com.jasonernst.awm.collectors.BluetoothStatsCollector;
-// import com.jasonernst.awm.collectors.GPSStatsCollector;
+import com.jasonernst.awm.collectors.DiscoveryDutyCycle;
+import com.jasonernst.awm.collectors.GPSStatsCollector;
 import com.jasonernst.awm.collectors.InternetStatsCollector;
 import com.jasonernst.awm.collectors.StatsCollector;
 import com.jasonernst.awm.collectors.WiFiAPStatsCollector;
+import com.jasonernst.awm.collectors.WiFiScanScheduler;
 import com.jasonernst.awm.collectors.WiFiDirectStatsCollector;
 import com.jasonernst.awm.loggers.DatabaseLogger;
+import com.jasonernst.awm.loggers.JournalLogger;
+import com.jasonernst.awm.loggers.LogDispatcher;
+import com.jasonernst.awm.loggers.LogEvent;
 import com.jasonernst.awm.loggers.NetworkLogger;
+import com.jasonernst.awm.loggers.OfflineBuffer;
+import com.jasonernst.awm.loggers.RetentionManager;
 import com.jasonernst.awm.loggers.StatsLogger;
 import com.jasonernst.awm.stats.BatteryStats;
+import com.jasonernst.awm.stats.ConnectivityStats;
 import com.jasonernst.awm.stats.GPSStats;
 import com.jasonernst.awm.stats.NetworkStat;
+import com.jasonernst.awm.stats.ScanDelta;
+import com.jasonernst.awm.stats.ScanDeltaEncoder;
 import lombok.Getter;
 import lombok.Setter;
 
@@ -68,11 +87,25 @@ public class AndroidWirelessStatsCollector {
     private String url;
 
     private boolean firstLaunch;
+    // whether this is registered on the event bus for connectivity and log events
+    private boolean registered;
     private static final String SHARED_PREF_FILE = "uuid.dat";
+    private static final String SPILL_DIRECTORY = "awm-spill";
+    private static final String OFFLINE_DIRECTORY = "awm-offline";
+    // how long to wait before trying to upload the offline buffer again after a failure
+    private static final long OFFLINE_RETRY_MILLIS = 30 * 1000;
     private static final String TAG = AndroidWirelessStatsCollector.class.getCanonicalName();
     private Set<StatsCollector> statsCollectors;
     private Set<StatsLogger> statsLoggers;
     private Bus eventBus = BusProvider.getInstance();
+    private final StatsPipeline pipeline = StatsPipeline.getInstance();
+    //hot streams of what the pipeline handles, for the Flowables
+    private final FlowableProcessor<NetworkStat> networkStats =
+            PublishProcessor.<NetworkStat>create().toSerialized();
+    private final FlowableProcessor<GPSStats> positions =
+            PublishProcessor.<GPSStats>create().toSerialized();
+    private final FlowableProcessor<LogEvent> logEvents =
+            PublishProcessor.<LogEvent>create().toSerialized();
 
     //permission checking code
     private static final int PLAY_SERVICES_RESOLUTION_REQUEST = 101;
@@ -97,13 +130,27 @@ public class AndroidWirelessStatsCollector {
 
     private NetworkLogger networkLogger;
     private DatabaseLogger databaseLogger;
+    private JournalLogger journalLogger;
+    private boolean journaling;
+    // the logger caching observations since the last start, the database or the journal
+    private volatile StatsLogger cacheLogger;
+    // holds observations made offline when not caching
+    private OfflineBuffer offlineBuffer;
+    private final AtomicBoolean offlineFlushing = new AtomicBoolean();
+    private volatile boolean offlinePending;
+    private volatile long offlineRetryAt;
+    // null unless scans are sent as deltas
+    private volatile ScanDeltaEncoder deltaEncoder;
 
     private ScheduledExecutorService scheduleTaskExecutor;
+    private LogDispatcher logDispatcher;
     private ObservingDevice thisDevice;
     private SharedPreferences sharedPreferences;
 
     private WiFiAPStatsCollector wifiStats;
     private BluetoothStatsCollector btStats;
+    private GPSStatsCollector gpsStats;
+    private BluetoothLeStatsCollector bleStats;
 
     public AndroidWirelessStatsCollector(Activity activity,
                                          boolean caching,
@@ -147,12 +194,15 @@ public class AndroidWirelessStatsCollector {
 
         rxPermission = RealRxPermission.getInstance(activity.getApplicationContext());
 
-//        GPSStatsCollector gpsStats = new GPSStatsCollector(activity.getApplicationContext());
-//        statsCollectors.add(gpsStats);
+        gpsStats = new GPSStatsCollector(activity.getApplicationContext());
+        statsCollectors.add(gpsStats);
 
         btStats = new BluetoothStatsCollector(activity.getApplicationContext());
         statsCollectors.add(btStats);
 
+        bleStats = new BluetoothLeStatsCollector(activity.getApplicationContext());
+        statsCollectors.add(bleStats);
+
         wifiStats = new WiFiAPStatsCollector(activity.getApplicationContext());
         statsCollectors.add(wifiStats);
 
@@ -171,12 +221,39 @@ public class AndroidWirelessStatsCollector {
         databaseLogger = new DatabaseLogger(activity.getApplicationContext(), networkLogger, clearBoot, clearUpload);
         statsLoggers.add(databaseLogger);
 
+        //only started when selected, so the journal's files aren't created otherwise
+        journalLogger = new JournalLogger(activity.getApplicationContext(), networkLogger);
+        cacheLogger = databaseLogger;
+
+        offlineBuffer = new OfflineBuffer(networkLogger,
+                new File(activity.getApplicationContext().getFilesDir(), OFFLINE_DIRECTORY),
+                OfflineBuffer.DEFAULT_CAPACITY);
+        statsLoggers.add(offlineBuffer);
+
+        //observations are logged on the dispatcher's own workers, which leaves the executor
+        //for the offline flush and scheduled work
+        logDispatcher = new LogDispatcher(LogDispatcher.DEFAULT_WORKERS,
+                LogDispatcher.DEFAULT_CAPACITY, LogDispatcher.OverflowPolicy.SPILL_TO_DISK,
+                new File(activity.getApplicationContext().getFilesDir(), SPILL_DIRECTORY));
+        //the encoder counted a lost delta as sent, so start again from a keyframe
+        logDispatcher.setDropListener(stat -> {
+            ScanDeltaEncoder encoder = deltaEncoder;
+            if (encoder != null && stat instanceof ScanDelta) {
+                encoder.reset();
+            }
+        });
+
 //        if (!checkPlayServices(activity)) {
 //            Log.d(TAG, "Missing Google Play Services - GPS likely won't work.");
 //        }
     }
 
     public void start() {
+        // stop() unregisters, so every start has to register again
+        if (!registered) {
+            eventBus.register(this);
+            registered = true;
+        }
         if(firstLaunch) {
             Log.i(TAG, "Checking permissions");
             permissionResults = new HashMap<>();
@@ -192,7 +269,6 @@ public class AndroidWirelessStatsCollector {
                             startStats();
                         }
                     }));
-            eventBus.register(this);
         } else {
             startLoggers();
             startStats();
@@ -229,6 +305,32 @@ public class AndroidWirelessStatsCollector {
                 ex.printStackTrace();
             }
         }
+        cacheLogger = databaseLogger;
+        if (journaling) {
+            try {
+                journalLogger.start();
+                cacheLogger = journalLogger;
+            } catch (Exception ex) {
+                Log.e(TAG, "Exception starting the journal, caching in the database: "
+                        + ex.toString());
+            }
+        }
+        logDispatcher.restoreSpilled(networkLogger);
+        logDispatcher.restoreSpilled(databaseLogger);
+        logDispatcher.restoreSpilled(offlineBuffer);
+        //there may be observations left offline by the last run
+        offlinePending = true;
+        offlineRetryAt = 0;
+        if (cacheLogger == journalLogger) {
+            logDispatcher.restoreSpilled(journalLogger);
+        }
+        logDispatcher.start();
+
+        //the stats are handled on the pipeline's thread, not the collectors'
+        pipeline.getGpsStats().subscribe(this::updateGPS);
+        pipeline.getBatteryStats().subscribe(this::updateBattery);
+        pipeline.getNetworkStats().subscribe(this::updateNetworkStats);
+        pipeline.start();
     }
 
     private void startStats() {
@@ -271,7 +373,10 @@ public class AndroidWirelessStatsCollector {
      */
     public void stop() {
         try {
-            eventBus.unregister(this);
+            if (registered) {
+                eventBus.unregister(this);
+                registered = false;
+            }
             compositeDisposable.clear();
 
             Log.i(TAG, "Stopping stats collection");
@@ -279,50 +384,280 @@ public class AndroidWirelessStatsCollector {
                 statsInterface.stop();
             }
 
+            //handles what the collectors published before they stopped
+            pipeline.stop();
+            pipeline.getGpsStats().unsubscribe();
+            pipeline.getBatteryStats().unsubscribe();
+            pipeline.getNetworkStats().unsubscribe();
+            logDispatcher.stop();
             for (StatsLogger statsLogger : statsLoggers) {
                 statsLogger.stop();
             }
+            journalLogger.stop();
         } catch(Exception ex) {
             //eat any exception that happens because we might have already stopped
         }
     }
 
-    @Subscribe
+    /**
+     * Called on the pipeline's thread for each scan.
+     */
     public void updateNetworkStats(NetworkStat networkStat) {
-
-        //if we aren't caching, lets send it straight to the network
-        if (!caching) {
-            //if we are only doing Wi-Fi uploads let's check if we're online
-            if (wifiUploads && networkLogger.isWifiConnected() && networkLogger.isOnline()) {
-                new Thread(() -> {
-                    networkLogger.log(networkStat, thisDevice);
-                }).start();
-
-            } else if(!wifiUploads && networkLogger.isOnline()) {
-                new Thread(() -> {
-                    networkLogger.log(networkStat, thisDevice);
-                }).start();
+        networkStats.onNext(networkStat);
+        ScanDeltaEncoder encoder = deltaEncoder;
+        if (encoder != null) {
+            networkStat = encoder.encode(networkStat);
+            if (networkStat == null) {
+                //nothing changed enough since the last scan
+                return;
+            }
+        }
+        try {
+            //if we aren't caching, lets send it straight to the network
+            if (!caching) {
+                //if we are only doing Wi-Fi uploads let's check if we're online
+                if (canUpload()) {
+                    logDispatcher.dispatch(networkLogger, networkStat, thisDevice);
+                    //some may have reached the buffer after the last flush finished
+                    if (offlineBuffer.getBufferedCount() > 0) {
+                        offlinePending = true;
+                    }
+                    flushOfflineBuffer();
+                } else {
+                    //offline, hold on to it until we're back
+                    offlinePending = true;
+                    logDispatcher.dispatch(offlineBuffer, networkStat, thisDevice);
+                }
             } else {
-                //offline - TODO: memory caching?
+                logDispatcher.dispatch(cacheLogger, networkStat, thisDevice);
             }
-        } else {
-            new Thread(() -> {
-                databaseLogger.log(networkStat, thisDevice);
-                Log.d(TAG, "LOGGED IN DB: " + databaseLogger.getTotalCount() + " records");
-                Log.d(TAG, "UPLOADED: " + databaseLogger.getCountUploaded());
-                Log.d(TAG, "NON-UPLOADED: " + databaseLogger.getCountUploaded());
-            }).start();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    @Subscribe
+    private boolean canUpload() {
+        if (wifiUploads) {
+            return networkLogger.isWifiConnected() && networkLogger.isOnline();
+        }
+        return networkLogger.isOnline();
+    }
+
+    /**
+     * Uploads what was buffered while offline, in the background, unless that is already
+     * happening or recently failed.
+     */
+    private void flushOfflineBuffer() {
+        if (!offlinePending || System.currentTimeMillis() < offlineRetryAt
+                || !offlineFlushing.compareAndSet(false, true)) {
+            return;
+        }
+        scheduleTaskExecutor.execute(() -> {
+            try {
+                int uploaded = offlineBuffer.flush();
+                Log.i(TAG, "Uploaded " + uploaded + " observations made offline");
+                offlinePending = offlineBuffer.hasPending();
+                if (offlinePending) {
+                    //the server asked for some of them again later
+                    offlineRetryAt = System.currentTimeMillis() + OFFLINE_RETRY_MILLIS;
+                }
+            } catch (IOException ex) {
+                Log.d(TAG, "Failed uploading observations made offline: " + ex.toString());
+                offlineRetryAt = System.currentTimeMillis() + OFFLINE_RETRY_MILLIS;
+            } finally {
+                offlineFlushing.set(false);
+            }
+        });
+    }
+
     public void updateBattery(BatteryStats batteryStats) {
         thisDevice.setBattery(batteryStats.getBatteryPercent());
+        wifiStats.getScanScheduler().onBattery(batteryStats.getBatteryPercent());
+        gpsStats.onBattery(batteryStats.getBatteryPercent());
     }
 
     @Subscribe
+    public void updateConnectivity(ConnectivityStats connectivityStats) {
+        thisDevice.setHasWiFiInternet(connectivityStats.isWifiConnected());
+        thisDevice.setHasCellularInternet(connectivityStats.isCellularConnected());
+        if (!privacy) {
+            if (connectivityStats.getInet4Address() != null) {
+                thisDevice.setInet4Address(connectivityStats.getInet4Address());
+            }
+            if (connectivityStats.getInet6Address() != null) {
+                thisDevice.setInet6Address(connectivityStats.getInet6Address());
+            }
+        }
+        //back online, so don't wait for the next upload check
+        if (networkLogger.isOnline()) {
+            databaseLogger.getUploadScheduler().signal();
+            journalLogger.getUploadScheduler().signal();
+        }
+        if (!caching && canUpload()) {
+            offlineRetryAt = 0;
+            flushOfflineBuffer();
+        }
+    }
+
     public void updateGPS(GPSStats gpsStats) {
         thisDevice.updatePosition(gpsStats);
+        wifiStats.getScanScheduler().onPosition(SystemClock.elapsedRealtime(), gpsStats);
+        positions.onNext(gpsStats);
+    }
+
+    @Subscribe
+    public void updateLogEvent(LogEvent logEvent) {
+        logEvents.onNext(logEvent);
+    }
+
+    /**
+     * @return every Wi-Fi and Bluetooth scan, in full whether or not deltas are sent, delivered
+     * on scheduler. Subscribing never slows collection: a subscriber which can't keep up misses
+     * scans according to flowControl.
+     */
+    public Flowable<NetworkStat> getNetworkStats(FlowControl flowControl, Scheduler scheduler) {
+        return flowControl.apply(networkStats, scheduler);
+    }
+
+    /**
+     * @return the position of the device as it changes, delivered on scheduler.
+     */
+    public Flowable<GPSStats> getPositions(FlowControl flowControl, Scheduler scheduler) {
+        return flowControl.apply(positions, scheduler);
+    }
+
+    /**
+     * @return the outcome of logging observations to each logger, delivered on scheduler.
+     */
+    public Flowable<LogEvent> getLogEvents(FlowControl flowControl, Scheduler scheduler) {
+        return flowControl.apply(logEvents, scheduler);
+    }
+
+    /**
+     * Selects the encoding used when observations are sent straight to the server, ie: when not
+     * caching.
+     */
+    public void setUploadEncoding(NetworkLogger.Encoding encoding) {
+        networkLogger.setEncoding(encoding);
+    }
+
+    /**
+     * Limits how many cached records are uploaded in a single request.
+     * @param records the most records per request, 1 for servers without batch support
+     * @param bytes the most bytes per request
+     */
+    public void setUploadBatchLimits(int records, long bytes) {
+        databaseLogger.setBatchRecords(records);
+        databaseLogger.setBatchBytes(bytes);
+    }
+
+    /**
+     * Controls how cached observations are grouped into database transactions. Takes effect the
+     * next time collection is started.
+     * @param records the most observations written in one transaction
+     * @param millis the longest an observation waits to be written
+     */
+    public void setCacheFlushLimits(int records, long millis) {
+        databaseLogger.setFlushRecords(records);
+        databaseLogger.setFlushMillis(millis);
+    }
+
+    /**
+     * Caps the size of the cache of observations. Checked every few minutes while collecting.
+     * @param maxBytes the most bytes the database may use
+     * @param maxRows the most observations the database may hold
+     * @param policy which observations are evicted first once a cap is reached
+     */
+    public void setStorageLimits(long maxBytes, long maxRows, RetentionManager.EvictionPolicy policy) {
+        RetentionManager retentionManager = databaseLogger.getRetentionManager();
+        retentionManager.setMaxBytes(maxBytes);
+        retentionManager.setMaxRows(maxRows);
+        retentionManager.setEvictionPolicy(policy);
+    }
+
+    /**
+     * Caches observations in an append-only journal of memory mapped files rather than the
+     * database, for collection rates the database doesn't keep up with. The journal is capped
+     * at segmentBytes * maxSegments bytes, dropping the oldest observations beyond that. Takes
+     * effect the next time collection is started. Observations left in the journal when it is
+     * turned off are uploaded once it is turned back on.
+     */
+    public void setJournaling(boolean journaling, int segmentBytes, int maxSegments) {
+        this.journaling = journaling;
+        journalLogger.setSegmentBytes(segmentBytes);
+        journalLogger.setMaxSegments(maxSegments);
+    }
+
+    /**
+     * Sends each Wi-Fi and Bluetooth scan as the difference from the previous one: only the
+     * devices which are new or changed, and those no longer seen, with the whole scan every
+     * keyframeInterval scans. Scans with no changes aren't sent at all. The server rebuilds
+     * the full scans, so this only cuts what is stored and uploaded. The binary encoding has no
+     * deltas and sends the whole of each scan which is sent.
+     * @param rssiThreshold the change in signal strength, in dB, for a device to be sent again
+     */
+    public void setDeltaEncoding(boolean enabled, int rssiThreshold, int keyframeInterval) {
+        deltaEncoder = enabled ? new ScanDeltaEncoder(rssiThreshold, keyframeInterval) : null;
+    }
+
+    /**
+     * Selects what happens to new observations when more arrive than the loggers keep up with.
+     */
+    public void setDispatchOverflowPolicy(LogDispatcher.OverflowPolicy overflowPolicy) {
+        logDispatcher.setOverflowPolicy(overflowPolicy);
+    }
+
+    /**
+     * Whether the Wi-Fi, Bluetooth, position and battery stats are also posted to the RxBus,
+     * for UI listeners. On by default; the library itself doesn't need them there.
+     */
+    public void setBusEvents(boolean busEvents) {
+        pipeline.setBusAdapter(busEvents);
+    }
+
+    /**
+     * @return the number of scans dropped because they arrived faster than they were handled.
+     */
+    public long getDroppedScanCount() {
+        return pipeline.getNetworkStats().getDropped();
+    }
+
+    /**
+     * @return when classic Bluetooth discovery runs, along with how long each cycle took and
+     * how many devices it found.
+     */
+    public DiscoveryDutyCycle getBluetoothDutyCycle() {
+        return btStats.getDutyCycle();
+    }
+
+    /**
+     * How often the radio listens for BLE advertisements, one of the ScanSettings.SCAN_MODE_
+     * values. SCAN_MODE_LOW_POWER by default; takes effect the next time collection starts.
+     */
+    public void setBleScanMode(int scanMode) {
+        bleStats.setScanMode(scanMode);
+    }
+
+    /**
+     * @return the number of Wi-Fi scan results not logged because they were seen before.
+     */
+    public long getSuppressedScanResultCount() {
+        return wifiStats.getSuppressedCount();
+    }
+
+    /**
+     * @return when Wi-Fi scans are requested, along with how many were requested, throttled by
+     * the platform and returned.
+     */
+    public WiFiScanScheduler getWiFiScanScheduler() {
+        return wifiStats.getScanScheduler();
+    }
+
+    /**
+     * @return the number of observations waiting in memory to be logged.
+     */
+    public int getDispatchQueueDepth() {
+        return logDispatcher.getQueueDepth();
     }
 
     public int getSavedRecordCount() {
@@ -0,0 +1,76 @@
+package com.jasonernst.awm;
+
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.BackpressureOverflowStrategy;
+import io.reactivex.Flowable;
+import io.reactivex.Scheduler;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * How a stream of stats copes with a subscriber slower than the collectors, for the Flowables
+ * of AndroidWirelessStatsCollector. None of them ever slows the collectors down or fails the
+ * stream; they differ in what the subscriber misses. In each case one more item may be held in
+ * hand-off to the subscriber's scheduler, delivered before the ones kept meanwhile.
+ */
+public abstract class FlowControl {
+
+    /**
+     * Keeps only the newest item while the subscriber is busy, ie: for showing the latest scan.
+     */
+    public static FlowControl latest() {
+        return new FlowControl() {
+            @Override
+            <T> Flowable<T> apply(Flowable<T> items, Scheduler scheduler) {
+                return items.onBackpressureLatest().observeOn(scheduler, false, 1);
+            }
+        };
+    }
+
+    /**
+     * Queues up to capacity items while the subscriber is busy, dropping the oldest beyond
+     * that, ie: for a subscriber which wants every item but may fall behind in bursts.
+     */
+    public static FlowControl buffer(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        return new FlowControl() {
+            @Override
+            <T> Flowable<T> apply(Flowable<T> items, Scheduler scheduler) {
+                return items.onBackpressureBuffer(capacity, null,
+                        BackpressureOverflowStrategy.DROP_OLDEST)
+                        .observeOn(scheduler, false, 1);
+            }
+        };
+    }
+
+    /**
+     * Passes on the newest item once per period at most, ie: for a map which only needs to
+     * be redrawn every few seconds.
+     */
+    public static FlowControl sample(final long period, final TimeUnit unit) {
+        return sample(period, unit, Schedulers.computation());
+    }
+
+    /**
+     * @param timer the scheduler the period is timed on
+     */
+    public static FlowControl sample(final long period, final TimeUnit unit,
+                                     final Scheduler timer) {
+        return new FlowControl() {
+            @Override
+            <T> Flowable<T> apply(Flowable<T> items, Scheduler scheduler) {
+                // sample() ignores requests, so it is followed by a latest of its own
+                return items.sample(period, unit, timer)
+                        .onBackpressureLatest()
+                        .observeOn(scheduler, false, 1);
+            }
+        };
+    }
+
+    /**
+     * @return the items as the subscriber sees them, delivered on scheduler
+     */
+    abstract <T> Flowable<T> apply(Flowable<T> items, Scheduler scheduler);
+}
@@ -2,28 +2,51 @@ package com.jasonernst.awm;
 
 import android.util.Log;
 
+import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
+import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
 import java.util.UUID;
+
+import com.jasonernst.awm.encoders.BinaryObservationReader;
+import com.jasonernst.awm.encoders.BinaryObservationWriter;
+import com.jasonernst.awm.encoders.JsonStreamWriter;
 import com.jasonernst.awm.stats.GPSStats;
 import lombok.Setter;
 
 public class ObservingDevice {
 
+    // SimpleDateFormat isn't thread safe, and measures are encoded on several threads
+    private static final ThreadLocal<SimpleDateFormat> UTC_FORMAT =
+            new ThreadLocal<SimpleDateFormat>() {
+        @Override
+        protected SimpleDateFormat initialValue() {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            return format;
+        }
+    };
+
     private UUID uuid;
-    private GPSStats position;
     private String OS;
-    private Inet4Address inet4Address;
-    private Inet6Address inet6Address;
-    private float battery_life = 100;
+    // these are replaced from the pipeline's and the bus's threads, and read by whichever
+    // thread encodes a measure
+    private volatile GPSStats position;
+    private volatile Inet4Address inet4Address;
+    private volatile Inet6Address inet6Address;
+    private volatile float battery_life = 100;
 
     @Setter
-    private boolean hasCellularInternet = false;
+    private volatile boolean hasCellularInternet = false;
 
     @Setter
-    private boolean hasWiFiInternet = false;
+    private volatile boolean hasWiFiInternet = false;
 
     private float cellularThroughput = 0;
     private float wifiThroughput = 0;
@@ -67,46 +90,156 @@ public class ObservingDevice {
     /**
      * Given the observing device position data, UUID, and mac addresses, this method will take
      * the device list which should be pre-prepared in JSON and create a fully JSON request
-     * ready to be transmitted to the
-     * @param deviceJSON
-     * @param timestamp
-     * @return
+     * ready to be transmitted to the server.
+     * @param deviceJSON the pretty printed device objects, without the enclosing array
+     * @param timestamp the time of the observation
+     * @return the full pretty printed request
+     * @deprecated the device list is better written with the rest of the request by
+     * NetworkStat.writeJSON which does not need the intermediate string.
      */
+    @Deprecated
     public String prepareJSON(String deviceJSON, Timestamp timestamp) {
-        String json = "{\n";
-
-        String longitude = String.format("%f", position.longitude);
-        String latitude = String.format("%f", position.latitude);
-
-        json += "\t\"awm_measure\": {\n";
-        json += "\t\t\"reporting_device\": {\n";
-        json += "\t\t\t\"uuid\": \"" + uuid.toString() + "\",\n";
-        json += "\t\t\t\"ipv4_address\": \"" + inet4Address.getHostAddress() + "\",\n";
-        json += "\t\t\t\"ipv6_address\": \"" + inet6Address.getHostAddress() + "\",\n";
-        json += "\t\t\t\"timestamp\": \"" + timestamp.toString() + "\",\n";
-        json += "\t\t\t\"longitude\": \"" + longitude + "\",\n";
-        json += "\t\t\t\"latitude\": \"" + latitude + "\",\n";
-        json += "\t\t\t\"bt_mac_address\": \"00:00:00:00:00\",\n";
-        json += "\t\t\t\"wifi_mac_address\": \"00:00:00:00:00\",\n";
-        json += "\t\t\t\"OS\": \"" + OS + "\",\n";
-        json += "\t\t\t\"battery_life\": \"" + battery_life + "\",\n";
-        json += "\t\t\t\"has_cellular_internet\": \"" + hasCellularInternet + "\",\n";
-        json += "\t\t\t\"has_wifi_internet\": \"" + hasWiFiInternet + "\",\n";
-        json += "\t\t\t\"cellular_throughput\": \"" + cellularThroughput + "\",\n";
-        json += "\t\t\t\"wifi_throughput\": \"" + wifiThroughput + "\",\n";
-        json += "\t\t\t\"cellular_ping\": \"" + cellularPing + "\",\n";
-        json += "\t\t\t\"wifi_ping\": \"" + wifiPing + "\",\n";
-        json += "\t\t\t\"cellular_operator\": \"" + cellularOperator + "\",\n";
-        json += "\t\t\t\"cellular_network_type\": \"" + cellularNetworktype + "\"\n";
-        json += "\t\t},\n";
-        json += "\t\t\"devices\": [\n";
-
-        json += deviceJSON;
-
-        json += "\t\t]\n";
-        json += "\t}\n";
-        json += "}\n";
-
-        return json;
+        JsonStreamWriter writer = new JsonStreamWriter(JsonStreamWriter.Style.PRETTY);
+        try {
+            writer.beginObject().name("awm_measure").beginObject();
+            writeReportingDevice(writer, timestamp);
+            writer.name("devices").rawValue("[\n" + deviceJSON + "\t\t]");
+            writer.endObject().endObject();
+        } catch (IOException ex) {
+            // can't happen, the writer is backed by memory
+            throw new IllegalStateException(ex);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * @return the time in UTC as the server stores it, ie: 2016-11-16 06:43:19.770, the same
+     * whether the measure is sent as JSON or in the binary format.
+     */
+    public static String formatTimestamp(long timestamp) {
+        return UTC_FORMAT.get().format(new Date(timestamp));
+    }
+
+    /**
+     * @return the timestamp the way the given writer's style sends it: PRETTY keeps the local
+     * time Timestamp.toString() older servers were sent, COMPACT uses formatTimestamp.
+     */
+    private static String formatTimestamp(JsonStreamWriter writer, long timestamp) {
+        if (writer.getStyle() == JsonStreamWriter.Style.PRETTY) {
+            return new Timestamp(timestamp).toString();
+        }
+        return formatTimestamp(timestamp);
+    }
+
+    /**
+     * Writes the "reporting_device" member describing this device.
+     * @param writer the writer, positioned inside the "awm_measure" object
+     * @param timestamp the time of the observation
+     * @throws IOException if the underlying stream fails
+     */
+    public void writeReportingDevice(JsonStreamWriter writer, Timestamp timestamp)
+            throws IOException {
+        writer.name("reporting_device").beginObject()
+                .name("uuid").value(uuid.toString())
+                .name("ipv4_address").value(inet4Address.getHostAddress())
+                .name("ipv6_address").value(inet6Address.getHostAddress())
+                .name("timestamp").value(formatTimestamp(writer, timestamp.getTime()))
+                .name("longitude").stringValue(position.longitude)
+                .name("latitude").stringValue(position.latitude)
+                .name("bt_mac_address").value("00:00:00:00:00")
+                .name("wifi_mac_address").value("00:00:00:00:00")
+                .name("OS").value(OS)
+                .name("battery_life").stringValue(battery_life)
+                .name("has_cellular_internet").value(String.valueOf(hasCellularInternet))
+                .name("has_wifi_internet").value(String.valueOf(hasWiFiInternet))
+                .name("cellular_throughput").stringValue(cellularThroughput)
+                .name("wifi_throughput").stringValue(wifiThroughput)
+                .name("cellular_ping").stringValue(cellularPing)
+                .name("wifi_ping").stringValue(wifiPing)
+                .name("cellular_operator").value(cellularOperator)
+                .name("cellular_network_type").stringValue(cellularNetworktype)
+                .endObject();
+    }
+
+    /**
+     * Writes the reporting device section of the binary format.
+     * @param writer the writer, positioned at the start of the body
+     * @param timestamp the time of the observation in ms since the epoch
+     */
+    public void writeReportingDevice(BinaryObservationWriter writer, long timestamp) {
+        int flags = (hasCellularInternet ? 1 : 0) | (hasWiFiInternet ? 2 : 0);
+        writer.writeUuid(uuid)
+                .writeBytes(inet4Address.getAddress())
+                .writeBytes(inet6Address.getAddress())
+                .writeVarint(timestamp)
+                .writeDouble(position.longitude)
+                .writeDouble(position.latitude)
+                .writeFloat(battery_life)
+                .writeByte(flags)
+                .writeFloat(cellularThroughput)
+                .writeFloat(wifiThroughput)
+                .writeSignedVarint(cellularPing)
+                .writeSignedVarint(wifiPing)
+                .writeSignedVarint(cellularNetworktype)
+                .writeString(OS)
+                .writeString(cellularOperator);
+    }
+
+    /**
+     * Reads the reporting device section of the binary format and writes it as the
+     * "reporting_device" member, the same as writeReportingDevice would have.
+     * @param reader the reader, positioned at the start of the body
+     * @param writer the writer, positioned inside the "awm_measure" object
+     * @return the time of the observation in ms since the epoch
+     * @throws IllegalArgumentException if the payload is malformed
+     */
+    public static long copyReportingDevice(BinaryObservationReader reader, JsonStreamWriter writer)
+            throws IOException {
+        UUID uuid = reader.readUuid();
+        String ipv4 = hostAddress(reader.readBytes(4));
+        String ipv6 = hostAddress(reader.readBytes(16));
+        long timestamp = reader.readVarint();
+        double longitude = reader.readDouble();
+        double latitude = reader.readDouble();
+        float battery = reader.readFloat();
+        int flags = reader.readByte();
+        float cellularThroughput = reader.readFloat();
+        float wifiThroughput = reader.readFloat();
+        long cellularPing = reader.readSignedVarint();
+        long wifiPing = reader.readSignedVarint();
+        long cellularNetworkType = reader.readSignedVarint();
+        String os = reader.readString();
+        String cellularOperator = reader.readString();
+
+        writer.name("reporting_device").beginObject()
+                .name("uuid").value(uuid.toString())
+                .name("ipv4_address").value(ipv4)
+                .name("ipv6_address").value(ipv6)
+                .name("timestamp").value(formatTimestamp(writer, timestamp))
+                .name("longitude").stringValue(longitude)
+                .name("latitude").stringValue(latitude)
+                .name("bt_mac_address").value("00:00:00:00:00")
+                .name("wifi_mac_address").value("00:00:00:00:00")
+                .name("OS").value(os)
+                .name("battery_life").stringValue(battery)
+                .name("has_cellular_internet").value(String.valueOf((flags & 1) != 0))
+                .name("has_wifi_internet").value(String.valueOf((flags & 2) != 0))
+                .name("cellular_throughput").stringValue(cellularThroughput)
+                .name("wifi_throughput").stringValue(wifiThroughput)
+                .name("cellular_ping").stringValue(cellularPing)
+                .name("wifi_ping").stringValue(wifiPing)
+                .name("cellular_operator").value(cellularOperator)
+                .name("cellular_network_type").stringValue(cellularNetworkType)
+                .endObject();
+        return timestamp;
+    }
+
+    private static String hostAddress(byte[] address) {
+        try {
+            return InetAddress.getByAddress(address).getHostAddress();
+        } catch (UnknownHostException ex) {
+            // only thrown for an address of the wrong length, which readBytes rules out
+            throw new IllegalArgumentException(ex);
+        }
     }
 }
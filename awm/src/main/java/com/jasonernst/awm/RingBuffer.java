@@ -0,0 +1,98 @@
+package com.jasonernst.awm;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded queue of preallocated slots for handing events to a single consumer thread without
+ * locks.
+ *
+ * Each slot has a sequence number which says whose turn it is: a producer may fill the slot at
+ * position p once its sequence is p, and marks it p + 1 when done, which is when the consumer
+ * may take it; the consumer then marks it p + capacity, handing it back to the producers for
+ * the next lap. Producers claim positions with a compare and set, which only ever retries
+ * when two of them publish at the same instant, so an offer costs the same few instructions
+ * however full the buffer is. Any number of threads may offer, only one may poll.
+ */
+final class RingBuffer<T> {
+
+    private final Object[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // only written by the consumer, volatile so size() can be read from anywhere
+    private volatile long head;
+
+    RingBuffer(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        slots = new Object[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * @return false, without waiting, if the buffer is full.
+     */
+    boolean offer(T event) {
+        long position = tail.get();
+        int index;
+        while (true) {
+            index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // the consumer hasn't taken the event of the last lap yet
+                return false;
+            } else {
+                // another producer got there first
+                position = tail.get();
+            }
+        }
+        slots[index] = event;
+        // publishes the slot to the consumer
+        sequences.lazySet(index, position + 1);
+        return true;
+    }
+
+    /**
+     * @return the oldest event, or null if there is none. Consumer thread only.
+     */
+    @SuppressWarnings("unchecked")
+    T poll() {
+        long position = head;
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) {
+            return null;
+        }
+        T event = (T) slots[index];
+        slots[index] = null;
+        sequences.lazySet(index, position + slots.length);
+        head = position + 1;
+        return event;
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return roughly how many events are waiting, counting those still being offered.
+     */
+    int size() {
+        return (int) Math.max(0, tail.get() - head);
+    }
+
+    int capacity() {
+        return slots.length;
+    }
+}
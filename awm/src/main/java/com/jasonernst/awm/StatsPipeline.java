@@ -0,0 +1,249 @@
+package com.jasonernst.awm;
+
+import com.anadeainc.rxbus.Bus;
+import com.anadeainc.rxbus.BusProvider;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.jasonernst.awm.stats.BatteryStats;
+import com.jasonernst.awm.stats.GPSStats;
+import com.jasonernst.awm.stats.NetworkStat;
+import lombok.Getter;
+
+/**
+ * Carries the stats the library acts on, NetworkStat, GPSStats and BatteryStats, from the
+ * collectors to their handler, on a thread of its own.
+ *
+ * The collectors publish from whichever thread Android calls them on, often the main thread
+ * from a BroadcastReceiver. Publishing only puts the stat in a preallocated ring buffer of its
+ * type, so it costs the same whatever the handler does with it, and the work of handling it
+ * (delta encoding, handing it to the loggers) happens on the consumer thread. A ring which is
+ * full drops what is published and counts it rather than holding up the collector.
+ *
+ * The position and battery level are handled before any scan waiting with them, so a scan is
+ * logged with the latest of each.
+ *
+ * The RxBus stays as an adapter for UI listeners: unless turned off with setBusAdapter(),
+ * each stat is also posted to the bus on the thread which published it, as the collectors
+ * used to.
+ */
+public class StatsPipeline implements AwmComponent {
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /**
+     * Handles the stats of one type, on the consumer thread.
+     */
+    public interface Handler<T> {
+        void onEvent(T event) throws Exception;
+    }
+
+    /**
+     * The ring of one type of stat along with its handler.
+     */
+    public final class Channel<T> {
+        private final RingBuffer<T> ring;
+        private volatile Handler<T> handler;
+        private final AtomicLong dropped = new AtomicLong();
+
+        Channel(int capacity) {
+            this.ring = new RingBuffer<>(capacity);
+        }
+
+        /**
+         * Sets the handler, replacing any other. Stats published while there is none are
+         * dropped without being counted.
+         */
+        public void subscribe(Handler<T> handler) {
+            this.handler = handler;
+        }
+
+        public void unsubscribe() {
+            this.handler = null;
+        }
+
+        /**
+         * @return false if the stat was dropped because the ring is full or no one handles it.
+         */
+        public boolean publish(T event) {
+            if (busAdapter && bus != null) {
+                bus.post(event);
+            }
+            if (handler == null) {
+                return false;
+            }
+            if (!ring.offer(event)) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            wakeConsumer();
+            return true;
+        }
+
+        /**
+         * @return the number of stats waiting to be handled.
+         */
+        public int getDepth() {
+            return ring.size();
+        }
+
+        /**
+         * @return the number of stats dropped because the ring was full.
+         */
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        /**
+         * Handles up to max of the stats waiting.
+         * @return how many were handled
+         */
+        int drain(int max) {
+            int handled = 0;
+            T event;
+            while (handled < max && (event = ring.poll()) != null) {
+                handled++;
+                Handler<T> current = handler;
+                if (current == null) {
+                    continue;
+                }
+                try {
+                    current.onEvent(event);
+                } catch (Exception ex) {
+                    logger.error("Failed handling " + event.getClass().getSimpleName(), ex);
+                }
+            }
+            return handled;
+        }
+    }
+
+    private static StatsPipeline instance;
+
+    private final Logger logger = LoggerFactory.getLogger(StatsPipeline.class);
+    private final Bus bus;
+    private volatile boolean busAdapter = true;
+
+    @Getter
+    private final Channel<GPSStats> gpsStats;
+
+    @Getter
+    private final Channel<BatteryStats> batteryStats;
+
+    @Getter
+    private final Channel<NetworkStat> networkStats;
+
+    private volatile boolean running;
+    private volatile boolean waiting;
+    private volatile Thread consumer;
+
+    /**
+     * @return the pipeline the collectors publish to.
+     */
+    public static synchronized StatsPipeline getInstance() {
+        if (instance == null) {
+            instance = new StatsPipeline(DEFAULT_CAPACITY, BusProvider.getInstance());
+        }
+        return instance;
+    }
+
+    /**
+     * @param capacity the most stats of each type waiting to be handled
+     * @param bus the bus stats are also posted to while the adapter is on, may be null
+     */
+    public StatsPipeline(int capacity, Bus bus) {
+        this.bus = bus;
+        gpsStats = new Channel<>(capacity);
+        batteryStats = new Channel<>(capacity);
+        networkStats = new Channel<>(capacity);
+    }
+
+    /**
+     * Whether stats are also posted to the RxBus, for UI listeners. On by default.
+     */
+    public void setBusAdapter(boolean busAdapter) {
+        this.busAdapter = busAdapter;
+    }
+
+    public boolean isBusAdapter() {
+        return busAdapter;
+    }
+
+    public boolean publish(NetworkStat stat) {
+        return networkStats.publish(stat);
+    }
+
+    public boolean publish(GPSStats stat) {
+        return gpsStats.publish(stat);
+    }
+
+    public boolean publish(BatteryStats stat) {
+        return batteryStats.publish(stat);
+    }
+
+    /**
+     * Starts the consumer thread.
+     */
+    @Override
+    public synchronized void start() {
+        if (consumer != null) {
+            return;
+        }
+        running = true;
+        consumer = new Thread(this::consume, "awm-stats-pipeline");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /**
+     * Stops the consumer thread once it has handled what is waiting.
+     */
+    @Override
+    public synchronized void stop() {
+        if (consumer == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(consumer);
+        try {
+            consumer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        consumer = null;
+    }
+
+    private void consume() {
+        while (true) {
+            // a round handles no more than a ring's worth of each, so no type starves the others
+            int handled = gpsStats.drain(DEFAULT_CAPACITY)
+                    + batteryStats.drain(DEFAULT_CAPACITY)
+                    + networkStats.drain(DEFAULT_CAPACITY);
+            if (handled > 0) {
+                continue;
+            }
+            if (!running) {
+                return;
+            }
+            waiting = true;
+            // checked again after saying so, so a stat published in between isn't left waiting
+            if (gpsStats.ring.isEmpty() && batteryStats.ring.isEmpty()
+                    && networkStats.ring.isEmpty() && running) {
+                LockSupport.park(this);
+            }
+            waiting = false;
+        }
+    }
+
+    private void wakeConsumer() {
+        if (waiting) {
+            Thread thread = consumer;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+}
@@ -58,7 +58,7 @@ public class BatteryStatsCollector extends StatsCollector {
             int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
             float batteryPct = (level / (float)scale) * 100;
             logger.info("Battery level: {}%", batteryPct);
-            eventBus.post(new BatteryStats(batteryPct));
+            pipeline.publish(new BatteryStats(batteryPct));
         }
     }
 }
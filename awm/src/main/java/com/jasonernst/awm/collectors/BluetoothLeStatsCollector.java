@@ -0,0 +1,206 @@
+package com.jasonernst.awm.collectors;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.List;
+
+import com.jasonernst.awm.encoders.MacAddress;
+import com.jasonernst.awm.stats.NetworkStat;
+import lombok.Getter;
+
+/**
+ * Collects the Bluetooth Low Energy devices advertising nearby, which classic discovery
+ * doesn't see, and publishes them once per window as a BLUETOOTH_LE NetworkStat.
+ *
+ * Where the controller supports it the results are batched in hardware, delivered once per
+ * window with setReportDelay(), so the CPU can sleep between batches. Otherwise each
+ * advertisement is delivered as it is seen and they are gathered in software until the window
+ * ends. Either way a device advertising many times within a window is published once, with
+ * its latest signal strength and the name from whichever advertisement carried one.
+ *
+ * Needs Android 5.0; on older versions start() fails like it does without an adapter. Nothing
+ * from android.bluetooth.le is loaded before then, so the collector can still be created.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class BluetoothLeStatsCollector extends StatsCollector {
+
+    private static final String TAG = BluetoothLeStatsCollector.class.getCanonicalName();
+    public static final long DEFAULT_WINDOW_MILLIS = 10 * 1000;
+
+    private Context context;
+    private BluetoothAdapter bluetoothAdapter;
+    private BluetoothLeScanner scanner;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    // the devices seen this window, only touched on the main thread the callback runs on
+    private final NetworkStat.Builder devices = new NetworkStat.Builder();
+    private volatile boolean started = false;
+    private boolean batched;
+
+    /**
+     * One of the ScanSettings.SCAN_MODE_ values, trading how often the radio listens for
+     * power. SCAN_MODE_LOW_POWER by default; takes effect on the next start().
+     */
+    @Getter
+    private int scanMode = ScanSettings.SCAN_MODE_LOW_POWER;
+
+    /**
+     * How long devices are gathered for before they are published.
+     */
+    @Getter
+    private long windowMillis = DEFAULT_WINDOW_MILLIS;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+            if (started) {
+                handler.postDelayed(this, windowMillis);
+            }
+        }
+    };
+
+    // created by the first start(), ScanCallback doesn't exist before Android 5.0
+    private ScanCallback scanCallback;
+
+    public BluetoothLeStatsCollector(Context context) {
+        this.context = context;
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+        BluetoothManager bluetoothManager = (BluetoothManager) context
+                .getSystemService(Context.BLUETOOTH_SERVICE);
+        if (bluetoothManager == null) {
+            Log.d(TAG, "BTMANAGER null");
+            return;
+        }
+        bluetoothAdapter = bluetoothManager.getAdapter();
+    }
+
+    public void setScanMode(int scanMode) {
+        this.scanMode = scanMode;
+    }
+
+    public void setWindowMillis(long windowMillis) {
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("The window has to be positive");
+        }
+        this.windowMillis = windowMillis;
+    }
+
+    @Override
+    public void start() throws Exception {
+        if (started) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP || bluetoothAdapter == null) {
+            throw new Exception("Bluetooth LE not supported by phone");
+        }
+        // null while Bluetooth is off, BluetoothStatsCollector asks for it to be turned on
+        scanner = bluetoothAdapter.getBluetoothLeScanner();
+        if (scanner == null) {
+            throw new Exception("Bluetooth is off, can't scan for LE devices");
+        }
+
+        if (scanCallback == null) {
+            scanCallback = newScanCallback();
+        }
+        batched = bluetoothAdapter.isOffloadedScanBatchingSupported();
+        ScanSettings settings = new ScanSettings.Builder()
+                .setScanMode(scanMode)
+                .setReportDelay(batched ? windowMillis : 0)
+                .build();
+        Log.i(TAG, "Starting BLE scan, batched in hardware: " + batched);
+        started = true;
+        scanner.startScan(null, settings, scanCallback);
+        if (!batched) {
+            handler.postDelayed(flushTask, windowMillis);
+        }
+    }
+
+    @Override
+    public void stop() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        handler.removeCallbacks(flushTask);
+        if (bluetoothAdapter.isEnabled()) {
+            if (batched) {
+                // hands over what the controller has gathered so far
+                scanner.flushPendingScanResults(scanCallback);
+            }
+            scanner.stopScan(scanCallback);
+        }
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+    }
+
+    private ScanCallback newScanCallback() {
+        return new ScanCallback() {
+            @Override
+            public void onScanResult(int callbackType, ScanResult result) {
+                add(result);
+            }
+
+            @Override
+            public void onBatchScanResults(List<ScanResult> results) {
+                for (ScanResult result : results) {
+                    add(result);
+                }
+                // a batch is a window's worth
+                flush();
+            }
+
+            @Override
+            public void onScanFailed(int errorCode) {
+                Log.e(TAG, "BLE scan failed: " + errorCode);
+                started = false;
+            }
+        };
+    }
+
+    private void add(ScanResult result) {
+        long mac = MacAddress.parse(result.getDevice().getAddress());
+        if (mac < 0) {
+            return;
+        }
+        String name = null;
+        ScanRecord record = result.getScanRecord();
+        if (record != null) {
+            name = record.getDeviceName();
+        }
+        if (name == null) {
+            int seen = devices.indexOf(mac);
+            if (seen >= 0) {
+                // the name may only come in some of the advertisements
+                name = devices.getName(seen);
+            }
+        }
+        devices.put(name, mac, result.getRssi(), 0, 0, "");
+    }
+
+    private void flush() {
+        if (devices.size() > 0) {
+            Log.d(TAG, "Found " + devices.size() + " BLE devices this window");
+            pipeline.publish(devices.build(NetworkStat.DeviceType.BLUETOOTH_LE));
+            devices.clear();
+        }
+    }
+}
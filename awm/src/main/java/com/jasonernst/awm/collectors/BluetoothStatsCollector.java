@@ -9,12 +9,11 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-
-import com.jasonernst.awm.stats.NetworkDevice;
 import com.jasonernst.awm.stats.NetworkStat;
 import lombok.Getter;
 
@@ -26,10 +25,37 @@ public class BluetoothStatsCollector extends StatsCollector {
 
     private static BluetoothAdapter mBluetoothAdapter;
     private static volatile BluetoothStates btState;
+    // set when discovery is started here rather than by another app, until it finishes
+    private static volatile boolean ownDiscovery;
     private BluetoothBroadcastReceiver bluetoothBroadcastReceiver;
-    private ConcurrentHashMap<String, NetworkDevice> btDevices;
+    // reused from scan to scan, only touched on the main thread the receiver runs on
+    private final NetworkStat.Builder btDevices = new NetworkStat.Builder();
     private volatile boolean started = false;
 
+    // when discovery runs, along with how long it took and what it found
+    @Getter
+    private final DiscoveryDutyCycle dutyCycle = new DiscoveryDutyCycle();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private long discoveryStartedAt;
+    private final Runnable discoveryTask = new Runnable() {
+        @Override
+        public void run() {
+            if (started && mBluetoothAdapter.isEnabled() && !mBluetoothAdapter.isDiscovering()) {
+                startDiscovery();
+            }
+        }
+    };
+    private final Runnable cancelTask = new Runnable() {
+        @Override
+        public void run() {
+            if (ownDiscovery && mBluetoothAdapter.isDiscovering()) {
+                Log.d(TAG, "Discovery window over, cancelling");
+                // still ends with ACTION_DISCOVERY_FINISHED
+                mBluetoothAdapter.cancelDiscovery();
+            }
+        }
+    };
+
     @Getter
     private String myAddress;
 
@@ -49,13 +75,6 @@ public class BluetoothStatsCollector extends StatsCollector {
         }
 
         mBluetoothAdapter = bluetoothManager.getAdapter();
-        bluetoothBroadcastReceiver = new BluetoothBroadcastReceiver();
-        btDevices = new ConcurrentHashMap<>();
-        IntentFilter filter = new IntentFilter();
-        filter.addAction(BluetoothDevice.ACTION_FOUND);
-        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
-        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_STARTED);
-        context.registerReceiver(bluetoothBroadcastReceiver, filter);
     }
 
     @Override
@@ -63,6 +82,17 @@ public class BluetoothStatsCollector extends StatsCollector {
         if(mBluetoothAdapter == null) {
             throw new Exception("Bluetooth adapter is null, likely not supported by phone");
         }
+        if (started) {
+            return;
+        }
+
+        bluetoothBroadcastReceiver = new BluetoothBroadcastReceiver();
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(BluetoothDevice.ACTION_FOUND);
+        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_STARTED);
+        context.registerReceiver(bluetoothBroadcastReceiver, filter);
+        dutyCycle.reset();
 
         //turn on BT if its not already on
         if(!mBluetoothAdapter.isEnabled()) {
@@ -73,7 +103,7 @@ public class BluetoothStatsCollector extends StatsCollector {
         } else {
             btState = BluetoothStates.ON;
             Log.i(TAG, "Bluetooth already on. Starting discovery");
-            mBluetoothAdapter.startDiscovery();
+            startDiscovery();
             myAddress = mBluetoothAdapter.getAddress();
         }
 
@@ -86,12 +116,30 @@ public class BluetoothStatsCollector extends StatsCollector {
         //the library started, ie if it was on, leave it on, if it was off, turn it back off.
 
         if(bluetoothBroadcastReceiver != null && started) {
+            handler.removeCallbacks(discoveryTask);
+            handler.removeCallbacks(cancelTask);
+            if (ownDiscovery && mBluetoothAdapter.isDiscovering()) {
+                mBluetoothAdapter.cancelDiscovery();
+            }
+            ownDiscovery = false;
             context.unregisterReceiver(bluetoothBroadcastReceiver);
             bluetoothBroadcastReceiver = null;
+            btDevices.clear();
         }
         started = false;
     }
 
+    /**
+     * Starts discovery, marking it as ours so the broadcasts for it run the duty cycle. Another
+     * app's discovery is broadcast the same, and is neither cut off nor counted as a cycle.
+     */
+    private static void startDiscovery() {
+        ownDiscovery = true;
+        if (!mBluetoothAdapter.startDiscovery()) {
+            ownDiscovery = false;
+        }
+    }
+
     public class BluetoothBroadcastReceiver extends BroadcastReceiver {
 
         private final String TAG = BluetoothBroadcastReceiver.class.getCanonicalName();
@@ -111,27 +159,46 @@ public class BluetoothStatsCollector extends StatsCollector {
                 } else {
                     int rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI,Short.MIN_VALUE);
                     Log.d(TAG, "Found: " + device.getName() + " " + device.getAddress() + " RSSI: " + rssi);
-                    NetworkDevice networkDevice = new NetworkDevice(
-                            device.getName(),
-                            device.getAddress(),
-                            rssi,
-                            0,
-                            0,
-                            ""
-                            );
-                    btDevices.put(networkDevice.getMac(), networkDevice);
+                    btDevices.put(device.getName(), device.getAddress(), rssi, 0, 0, "");
                 }
             } else if (action.equals(BluetoothAdapter.ACTION_DISCOVERY_FINISHED)) {
-                if(btDevices.size() > 0) {
-                    Log.d(TAG, "After scan found a total of " + btDevices.size() + " devices");
-                    eventBus.post(new NetworkStat(NetworkStat.DeviceType.BLUETOOTH, btDevices));
-                    btDevices.clear();
+                handler.removeCallbacks(cancelTask);
+                boolean own = ownDiscovery;
+                ownDiscovery = false;
+                long elapsed = discoveryStartedAt == 0 ? 0
+                        : SystemClock.elapsedRealtime() - discoveryStartedAt;
+                discoveryStartedAt = 0;
+                NetworkStat stat = btDevices.build(NetworkStat.DeviceType.BLUETOOTH);
+                btDevices.clear();
+                if(stat.size() > 0) {
+                    Log.d(TAG, "After scan found a total of " + stat.size() + " devices");
+                    pipeline.publish(stat);
                 } else {
-                    Log.d(TAG, "Found zero BT devices after scan. starting again.");
+                    Log.d(TAG, "Found zero BT devices after scan.");
+                }
+                long sleep;
+                if (own) {
+                    sleep = dutyCycle.onCycleFinished(elapsed, stat);
+                    Log.d(TAG, "Discovery took " + elapsed + "ms, sleeping " + sleep + "ms");
+                } else {
+                    // our next discovery may have been skipped while this one ran
+                    sleep = dutyCycle.getSleepMillis();
+                    Log.d(TAG, "Another app's discovery finished, sleeping " + sleep + "ms");
+                }
+                if (started) {
+                    handler.removeCallbacks(discoveryTask);
+                    handler.postDelayed(discoveryTask, sleep);
                 }
-                mBluetoothAdapter.startDiscovery();
             } else if (action.equals(BluetoothAdapter.ACTION_DISCOVERY_STARTED)) {
+                if (!ownDiscovery) {
+                    // left for the app which started it to run and stop
+                    Log.d(TAG, "Another app started discovery");
+                    return;
+                }
                 Log.d(TAG, "Starting discovery scan");
+                discoveryStartedAt = SystemClock.elapsedRealtime();
+                handler.removeCallbacks(cancelTask);
+                handler.postDelayed(cancelTask, dutyCycle.getDiscoveryMillis());
             }
         }
     }
@@ -162,7 +229,7 @@ public class BluetoothStatsCollector extends StatsCollector {
                 if(mBluetoothAdapter.isEnabled()) {
                     Log.d(TAG, "Accepted turning on BT device. Starting discovery.");
                     btState = BluetoothStates.ON;
-                    mBluetoothAdapter.startDiscovery();
+                    startDiscovery();
                 } else {
                     btState = BluetoothStates.REJECTED;
                 }
@@ -0,0 +1,119 @@
+package com.jasonernst.awm.collectors;
+
+import java.util.Arrays;
+
+import com.jasonernst.awm.stats.NetworkStat;
+import lombok.Getter;
+
+/**
+ * Decides how long the BluetoothStatsCollector runs classic discovery for, and how long it
+ * sleeps before the next.
+ *
+ * An inquiry holds the radio for around 12s and on chipsets where Bluetooth shares the antenna
+ * with Wi-Fi it degrades Wi-Fi while it runs, so discovery is cut off after the discovery
+ * window and not started again until the sleep window has passed. While cycle after cycle finds
+ * the same devices, nothing is being missed by sleeping longer: the sleep doubles each time up
+ * to the longest, and goes back to the shortest as soon as a cycle finds a different set.
+ *
+ * Keeps how long each cycle's discovery took and how many devices it found, for tuning the
+ * windows.
+ */
+public class DiscoveryDutyCycle {
+
+    public static final long DEFAULT_DISCOVERY_MILLIS = 12 * 1000;
+    public static final long DEFAULT_SLEEP_MILLIS = 30 * 1000;
+    public static final long DEFAULT_MAX_SLEEP_MILLIS = 5 * 60 * 1000;
+
+    @Getter
+    private volatile long discoveryMillis = DEFAULT_DISCOVERY_MILLIS;
+    private long minSleepMillis = DEFAULT_SLEEP_MILLIS;
+    private long maxSleepMillis = DEFAULT_MAX_SLEEP_MILLIS;
+
+    private long sleepMillis = DEFAULT_SLEEP_MILLIS;
+    // sorted MACs found by the last cycle, null before the first
+    private long[] lastMacs;
+
+    // written under the lock, volatile so the getters can be read from anywhere
+    @Getter
+    private volatile long cycleCount;
+
+    // of the last cycle, from the discovery starting to it finishing
+    @Getter
+    private volatile long lastDiscoveryTimeMillis;
+
+    @Getter
+    private volatile long totalDiscoveryTimeMillis;
+
+    @Getter
+    private volatile int lastDeviceCount;
+
+    @Getter
+    private volatile long totalDeviceCount;
+
+    /**
+     * @param discoveryMillis how long discovery may run before it is cancelled
+     * @param sleepMillis how long to sleep between discoveries finding different devices
+     * @param maxSleepMillis the longest to sleep while they find the same devices
+     */
+    public synchronized void setWindows(long discoveryMillis, long sleepMillis,
+                                        long maxSleepMillis) {
+        if (discoveryMillis <= 0 || sleepMillis < 0 || maxSleepMillis < sleepMillis) {
+            throw new IllegalArgumentException("Need 0 < discovery and 0 <= sleep <= max sleep");
+        }
+        this.discoveryMillis = discoveryMillis;
+        this.minSleepMillis = sleepMillis;
+        this.maxSleepMillis = maxSleepMillis;
+        this.sleepMillis = sleepMillis;
+    }
+
+    /**
+     * Records a finished cycle.
+     * @param elapsedMillis how long its discovery ran
+     * @param devices what it found
+     * @return how long to sleep before the next discovery
+     */
+    public synchronized long onCycleFinished(long elapsedMillis, NetworkStat devices) {
+        long[] macs = new long[devices.size()];
+        for (int i = 0; i < macs.length; i++) {
+            macs[i] = devices.getMacValue(i);
+        }
+        Arrays.sort(macs);
+
+        if (lastMacs != null && Arrays.equals(lastMacs, macs)) {
+            sleepMillis = Math.min(Math.max(sleepMillis * 2, 1), maxSleepMillis);
+        } else {
+            sleepMillis = minSleepMillis;
+        }
+        lastMacs = macs;
+
+        cycleCount++;
+        lastDiscoveryTimeMillis = elapsedMillis;
+        totalDiscoveryTimeMillis += elapsedMillis;
+        lastDeviceCount = macs.length;
+        totalDeviceCount += macs.length;
+        return sleepMillis;
+    }
+
+    /**
+     * Forgets the devices found, so the next cycle sleeps the shortest.
+     */
+    public synchronized void reset() {
+        lastMacs = null;
+        sleepMillis = minSleepMillis;
+    }
+
+    /**
+     * @return how long to sleep before the next discovery.
+     */
+    public synchronized long getSleepMillis() {
+        return sleepMillis;
+    }
+
+    public synchronized double getAverageDiscoveryTimeMillis() {
+        return cycleCount == 0 ? 0 : (double) totalDiscoveryTimeMillis / cycleCount;
+    }
+
+    public synchronized double getAverageDeviceCount() {
+        return cycleCount == 0 ? 0 : (double) totalDeviceCount / cycleCount;
+    }
+}
@@ -5,7 +5,8 @@ import android.content.Context;
 import android.content.pm.PackageManager;
 import android.location.Location;
 import android.os.Build;
-import android.os.Looper;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 
 import com.google.android.gms.location.FusedLocationProviderClient;
@@ -13,49 +14,59 @@ import com.google.android.gms.location.LocationCallback;
 import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationResult;
 import com.google.android.gms.location.LocationServices;
-import com.google.android.gms.location.LocationSettingsRequest;
 
-import com.jasonernst.awm.AndroidWirelessStatsCollector;
 import com.jasonernst.awm.stats.GPSStats;
+import lombok.Getter;
 
 /**
  * https://stackoverflow.com/questions/28535703/best-way-to-get-user-gps-location-in-background-in-android
+ *
+ * Updates are requested as the LocationPolicy says, and requested again whenever the speed or
+ * battery level changes its mind. They are delivered on a thread of the collector's own rather
+ * than the main looper, which hands the latest fix of each batch straight to the pipeline.
  */
 public class GPSStatsCollector extends StatsCollector {
 
     private Context context;
-    private static final String TAG = AndroidWirelessStatsCollector.class.getCanonicalName();
-
-    private static final long UPDATE_INTERVAL_IN_MILLISECONDS = 1000;
-    private static final long FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS = 1000;
+    private static final String TAG = GPSStatsCollector.class.getCanonicalName();
 
     private FusedLocationProviderClient mFusedLocationClient;
-    private LocationRequest locationRequest;
     private LocationCallback locationCallback;
     private volatile boolean started = false;
 
+    @Getter
+    private final LocationPolicy policy = new LocationPolicy();
+    private volatile HandlerThread locationThread;
+    private volatile Handler locationHandler;
+    // only touched on the location thread
+    private Location lastLocation;
+
     public GPSStatsCollector(Context context) {
 
         this.context = context;
         mFusedLocationClient = LocationServices.getFusedLocationProviderClient(context);
-        locationRequest = new LocationRequest();
-        locationRequest.setInterval(UPDATE_INTERVAL_IN_MILLISECONDS);
-        locationRequest.setFastestInterval(FASTEST_UPDATE_INTERVAL_IN_MILLISECONDS);
-        locationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
-
-        LocationSettingsRequest.Builder builder = new LocationSettingsRequest.Builder();
-        builder.addLocationRequest(this.locationRequest);
 
         locationCallback = new LocationCallback() {
             @Override
             public void onLocationResult(LocationResult locationResult) {
                 super.onLocationResult(locationResult); // why? this. is. retarded. Android.
                 Location currentLocation = locationResult.getLastLocation();
+                if (currentLocation == null) {
+                    return;
+                }
 
-                Log.i(TAG, "Location Callback results: " + currentLocation.getLatitude()
+                Log.i(TAG, "Location Callback results: " + locationResult.getLocations().size()
+                        + " fixes, last " + currentLocation.getLatitude()
                         + " " + currentLocation.getLongitude());
 
-                eventBus.post(new GPSStats(currentLocation.getLatitude(), currentLocation.getLongitude()));
+                float speed = speed(currentLocation);
+                if (!Float.isNaN(speed) && policy.onSpeed(speed)) {
+                    requestUpdates();
+                }
+                lastLocation = currentLocation;
+
+                pipeline.publish(new GPSStats(currentLocation.getLongitude(),
+                        currentLocation.getLatitude()));
             }
         };
     }
@@ -68,18 +79,91 @@ public class GPSStatsCollector extends StatsCollector {
                 throw new Exception("No permission for location, cannot get GPS positions");
             }
         }
+        if (started) {
+            return;
+        }
 
-        mFusedLocationClient.requestLocationUpdates(this.locationRequest,
-                this.locationCallback, Looper.myLooper());
-
+        locationThread = new HandlerThread("awm-location");
+        locationThread.start();
+        locationHandler = new Handler(locationThread.getLooper());
         started = true;
+        locationHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                requestUpdates();
+            }
+        });
     }
 
     @Override
     public void stop() {
         if(started) {
+            started = false;
             mFusedLocationClient.removeLocationUpdates(locationCallback);
+            locationThread.quitSafely();
+            locationThread = null;
+            locationHandler = null;
+        }
+    }
+
+    /**
+     * Passes on the battery level, which may call for updates in a lower power mode.
+     */
+    public void onBattery(float percent) {
+        final Handler handler = locationHandler;
+        if (policy.onBattery(percent) && started && handler != null) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    requestUpdates();
+                }
+            });
+        }
+    }
+
+    /**
+     * Requests updates in the policy's mode, replacing the last request. Location thread only.
+     */
+    private void requestUpdates() {
+        HandlerThread thread = locationThread;
+        if (!started || thread == null) {
+            return;
+        }
+        LocationPolicy.Mode mode = policy.getMode();
+        Log.i(TAG, "Requesting location updates for " + mode);
+        LocationRequest locationRequest = LocationRequest.create()
+                .setPriority(priority(mode.getPriority()))
+                .setInterval(mode.getIntervalMillis())
+                .setFastestInterval(mode.getIntervalMillis())
+                .setSmallestDisplacement(mode.getSmallestDisplacementMeters())
+                .setMaxWaitTime(mode.getMaxWaitMillis());
+        mFusedLocationClient.requestLocationUpdates(locationRequest, locationCallback,
+                thread.getLooper());
+    }
+
+    /**
+     * @return the speed reported with the fix, or else worked out from the last one, in m/s,
+     * NaN if there is nothing to go on
+     */
+    private float speed(Location location) {
+        if (location.hasSpeed()) {
+            return location.getSpeed();
+        }
+        if (lastLocation == null || location.getTime() <= lastLocation.getTime()) {
+            return Float.NaN;
+        }
+        return location.distanceTo(lastLocation) * 1000
+                / (location.getTime() - lastLocation.getTime());
+    }
+
+    private static int priority(LocationPolicy.Priority priority) {
+        switch (priority) {
+            case HIGH_ACCURACY:
+                return LocationRequest.PRIORITY_HIGH_ACCURACY;
+            case BALANCED:
+                return LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY;
+            default:
+                return LocationRequest.PRIORITY_LOW_POWER;
         }
-        started = false;
     }
 }
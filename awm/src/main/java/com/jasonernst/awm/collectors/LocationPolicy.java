@@ -0,0 +1,102 @@
+package com.jasonernst.awm.collectors;
+
+/**
+ * Decides what the GPSStatsCollector asks the fused location provider for, from how fast the
+ * device is moving and how much battery is left.
+ *
+ * The faster the device moves the more accuracy and the more frequent fixes are worth paying
+ * for; standing still, a fix a minute from the network is as good as any. Fixes closer than the
+ * smallest displacement to the last one aren't delivered at all, and the provider is left to
+ * hold fixes back for up to the max wait time and deliver them together, so the device can
+ * sleep in between. On low battery the slowest mode is used whatever the speed.
+ *
+ * Each speed threshold is lower on the way down than on the way up, so a speed hovering around
+ * one doesn't re-request updates with every fix.
+ */
+public class LocationPolicy {
+
+    public enum Priority {
+        HIGH_ACCURACY,
+        BALANCED,
+        LOW_POWER
+    }
+
+    public enum Mode {
+        DRIVING(Priority.HIGH_ACCURACY, 5 * 1000, 25, 15 * 1000),
+        WALKING(Priority.BALANCED, 15 * 1000, 10, 45 * 1000),
+        STATIONARY(Priority.LOW_POWER, 60 * 1000, 25, 3 * 60 * 1000),
+        LOW_BATTERY(Priority.LOW_POWER, 2 * 60 * 1000, 50, 10 * 60 * 1000);
+
+        private final Priority priority;
+        private final long intervalMillis;
+        private final float smallestDisplacementMeters;
+        private final long maxWaitMillis;
+
+        Mode(Priority priority, long intervalMillis, float smallestDisplacementMeters,
+             long maxWaitMillis) {
+            this.priority = priority;
+            this.intervalMillis = intervalMillis;
+            this.smallestDisplacementMeters = smallestDisplacementMeters;
+            this.maxWaitMillis = maxWaitMillis;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        public long getIntervalMillis() {
+            return intervalMillis;
+        }
+
+        public float getSmallestDisplacementMeters() {
+            return smallestDisplacementMeters;
+        }
+
+        public long getMaxWaitMillis() {
+            return maxWaitMillis;
+        }
+    }
+
+    // in m/s, entering the faster mode above the first and leaving it below the second
+    private static final float DRIVING_ENTER = 5;
+    private static final float DRIVING_LEAVE = 3;
+    private static final float WALKING_ENTER = 0.5f;
+    private static final float WALKING_LEAVE = 0.3f;
+
+    // until the first fix says otherwise
+    private Mode speedMode = Mode.WALKING;
+    private boolean batteryLow;
+
+    /**
+     * @return the mode updates should be requested in.
+     */
+    public synchronized Mode getMode() {
+        return batteryLow ? Mode.LOW_BATTERY : speedMode;
+    }
+
+    /**
+     * @return whether the mode changed, ie: updates should be requested again.
+     */
+    public synchronized boolean onSpeed(float metersPerSecond) {
+        Mode before = getMode();
+        if (metersPerSecond >= DRIVING_ENTER
+                || (speedMode == Mode.DRIVING && metersPerSecond >= DRIVING_LEAVE)) {
+            speedMode = Mode.DRIVING;
+        } else if (metersPerSecond >= WALKING_ENTER
+                || (speedMode != Mode.STATIONARY && metersPerSecond >= WALKING_LEAVE)) {
+            speedMode = Mode.WALKING;
+        } else {
+            speedMode = Mode.STATIONARY;
+        }
+        return getMode() != before;
+    }
+
+    /**
+     * @return whether the mode changed, ie: updates should be requested again.
+     */
+    public synchronized boolean onBattery(float percent) {
+        Mode before = getMode();
+        batteryLow = percent < WiFiScanScheduler.LOW_BATTERY_PERCENT;
+        return getMode() != before;
+    }
+}
@@ -0,0 +1,134 @@
+package com.jasonernst.awm.collectors;
+
+import java.util.Arrays;
+
+/**
+ * Tells the sightings in a list of scan results which are new from those already passed on.
+ *
+ * Android hands back the results it has cached when a scan is throttled or fails, and keeps
+ * an access point in the list for a while after it was last seen. Each result carries the time
+ * it was seen, so a sighting is new only if it is later than the last one passed on for the
+ * same BSSID, and was seen since the filter started: results cached before then may well have
+ * been logged already.
+ *
+ * The last sighting of each BSSID is kept in a table which doesn't box, forgetting those older
+ * than maxAge when it fills up; a result that old is never new anyway.
+ */
+final class ScanFreshnessFilter {
+
+    private static final long EMPTY = -1;
+
+    private final long maxAge;
+    private long since = Long.MIN_VALUE;
+
+    private long[] macs;
+    private long[] seenAt;
+    private int size;
+
+    private long suppressedCount;
+
+    /**
+     * @param maxAge how old a sighting may be and still be new, in the unit of the timestamps
+     */
+    ScanFreshnessFilter(long maxAge) {
+        this.maxAge = maxAge;
+        allocate(64);
+    }
+
+    /**
+     * Forgets every sighting, counting from now only those seen from now on.
+     */
+    void reset(long now) {
+        since = now;
+        Arrays.fill(macs, EMPTY);
+        size = 0;
+    }
+
+    /**
+     * Records the sighting of mac at timestamp if it is new.
+     * @return whether it is new, counting it as suppressed if not
+     */
+    boolean isFresh(long mac, long timestamp, long now) {
+        if (timestamp < since || now - timestamp > maxAge) {
+            suppressedCount++;
+            return false;
+        }
+        int slot = find(mac);
+        if (macs[slot] == mac) {
+            if (seenAt[slot] >= timestamp) {
+                suppressedCount++;
+                return false;
+            }
+            seenAt[slot] = timestamp;
+            return true;
+        }
+        if ((size + 1) * 2 > macs.length) {
+            rehash(now - maxAge);
+            slot = find(mac);
+        }
+        macs[slot] = mac;
+        seenAt[slot] = timestamp;
+        size++;
+        return true;
+    }
+
+    /**
+     * @return the number of sightings which weren't new.
+     */
+    long getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int find(long mac) {
+        int mask = macs.length - 1;
+        int slot = hash(mac) & mask;
+        while (macs[slot] != EMPTY && macs[slot] != mac) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Keeps the sightings since oldest, growing the table if that still leaves it half full.
+     */
+    private void rehash(long oldest) {
+        long[] oldMacs = macs;
+        long[] oldSeenAt = seenAt;
+        int kept = 0;
+        for (int i = 0; i < oldMacs.length; i++) {
+            if (oldMacs[i] != EMPTY && oldSeenAt[i] >= oldest) {
+                kept++;
+            }
+        }
+        int capacity = oldMacs.length;
+        while ((kept + 1) * 2 > capacity) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+        size = 0;
+        for (int i = 0; i < oldMacs.length; i++) {
+            if (oldMacs[i] != EMPTY && oldSeenAt[i] >= oldest) {
+                int slot = find(oldMacs[i]);
+                macs[slot] = oldMacs[i];
+                seenAt[slot] = oldSeenAt[i];
+                size++;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        macs = new long[capacity];
+        seenAt = new long[capacity];
+        Arrays.fill(macs, EMPTY);
+    }
+
+    private static int hash(long mac) {
+        // MACs of one vendor share their high bits, so mix them all in
+        long h = mac * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
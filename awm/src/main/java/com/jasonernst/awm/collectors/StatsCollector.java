@@ -7,10 +7,12 @@ import com.vanniktech.rxpermission.Permission;
 import java.util.Map;
 
 import com.jasonernst.awm.AwmComponent;
+import com.jasonernst.awm.StatsPipeline;
 
 public abstract class StatsCollector implements AwmComponent {
 
     Bus eventBus = BusProvider.getInstance();
+    StatsPipeline pipeline = StatsPipeline.getInstance();
     Map<String, Permission> permissions = null;
 
     public void setPermissions(Map<String, Permission> permissions) {
@@ -6,6 +6,9 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.wifi.ScanResult;
 import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.anadeainc.rxbus.Bus;
@@ -13,25 +16,42 @@ import com.anadeainc.rxbus.BusProvider;
 import com.anadeainc.rxbus.Subscribe;
 
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 
+import com.jasonernst.awm.encoders.MacAddress;
 import com.jasonernst.awm.loggers.WiFiScan;
-import com.jasonernst.awm.stats.NetworkDevice;
 import com.jasonernst.awm.stats.NetworkStat;
+import lombok.Getter;
 
 public class WiFiAPStatsCollector extends StatsCollector {
 
     private static final String TAG = WiFiAPStatsCollector.class.getCanonicalName();
+    private static final long FRESHNESS_MAX_AGE_MICROS = 15 * 60 * 1000000L;
 
     private Context context;
     private WifiManager wifiManager;
     private WifiManager.WifiLock wifiLock;
     private WiFiScanReceiver wiFiScanReceiver;
-    private ConcurrentHashMap<String, NetworkDevice> devices;
+    // reused from scan to scan, only touched on the main thread the receiver runs on
+    private final NetworkStat.Builder devices = new NetworkStat.Builder();
     private Bus eventBus = BusProvider.getInstance();
     private volatile boolean started = false;
 
+    // when to scan, fed the position and battery level by AndroidWirelessStatsCollector
+    @Getter
+    private final WiFiScanScheduler scanScheduler = new WiFiScanScheduler(
+            android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.P);
+    // scan result timestamps are in microseconds since boot
+    private final ScanFreshnessFilter freshnessFilter =
+            new ScanFreshnessFilter(FRESHNESS_MAX_AGE_MICROS);
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable scanTask = new Runnable() {
+        @Override
+        public void run() {
+            requestScan();
+            scheduleScan();
+        }
+    };
+
     public WiFiAPStatsCollector(Context context) {
         this.context = context;
 
@@ -40,8 +60,6 @@ public class WiFiAPStatsCollector extends StatsCollector {
 
         wifiLock = wifiManager.createWifiLock(WifiManager.WIFI_MODE_FULL_HIGH_PERF, "AWM-LIB");
         wiFiScanReceiver = new WiFiScanReceiver();
-
-        devices = new ConcurrentHashMap<>();
     }
 
     @Override
@@ -53,13 +71,15 @@ public class WiFiAPStatsCollector extends StatsCollector {
         context.registerReceiver(wiFiScanReceiver,
                 new IntentFilter(WifiManager.SCAN_RESULTS_AVAILABLE_ACTION));
 
-        wifiManager.startScan();
+        freshnessFilter.reset(SystemClock.elapsedRealtime() * 1000);
         started = true;
+        handler.post(scanTask);
     }
 
     @Override
     public void stop() {
         if(started) {
+            handler.removeCallbacks(scanTask);
             context.unregisterReceiver(wiFiScanReceiver);
             eventBus.unregister(this);
             if(wifiLock != null) {
@@ -69,48 +89,86 @@ public class WiFiAPStatsCollector extends StatsCollector {
         started = false;
     }
 
+    /**
+     * Asks for a scan sooner than scheduled, if the scan budget allows one now.
+     */
     @Subscribe public void startScan(WiFiScan wiFiScan) {
-        devices.clear();
-        wifiManager.startScan();
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (started && scanScheduler.canScan(SystemClock.elapsedRealtime())) {
+                    handler.removeCallbacks(scanTask);
+                    scanTask.run();
+                }
+            }
+        });
+    }
+
+    private void requestScan() {
+        long now = SystemClock.elapsedRealtime();
+        if (!scanScheduler.canScan(now)) {
+            return;
+        }
+        boolean accepted = wifiManager.startScan();
+        scanScheduler.onScanRequested(now, accepted);
+        if (!accepted) {
+            Log.d(TAG, "Scan throttled, " + scanScheduler.getThrottledCount() + " so far");
+        }
+    }
+
+    private void scheduleScan() {
+        if (started) {
+            handler.postDelayed(scanTask,
+                    scanScheduler.getDelayMillis(SystemClock.elapsedRealtime()));
+        }
+    }
+
+    /**
+     * @return the number of scan results not logged because they had been already, or were
+     * cached from before the collector started.
+     */
+    public long getSuppressedCount() {
+        return freshnessFilter.getSuppressedCount();
     }
 
     public class WiFiScanReceiver extends BroadcastReceiver {
 
         @Override
         public void onReceive(Context context, Intent intent) {
-            //todo on android 8 and 9 we should check if these scans are new or not
+            // false when the scan failed or was throttled, leaving the results of earlier ones
+            boolean updated = true;
+            if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
+                updated = intent.getBooleanExtra(WifiManager.EXTRA_RESULTS_UPDATED, true);
+            }
 
             List<ScanResult> scans = wifiManager.getScanResults();
-            if(scans.size() == 0) {
-                wifiManager.startScan();
-            } else {
-                Log.d(TAG, "GOT SCAN");
-                for (ScanResult scan : scans) {
-                    Log.d(TAG, scan.BSSID + " " + scan.SSID + "\n  " + scan);
-
-
-                    NetworkDevice networkDevice = null;
-                    if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
-                        networkDevice = new NetworkDevice(
-                                scan.SSID,
-                                scan.BSSID,
-                                scan.level,
-                                scan.frequency,
-                                scan.channelWidth,
-                                scan.capabilities);
-                    } else {
-                        networkDevice = new NetworkDevice(
-                                scan.SSID,
-                                scan.BSSID,
-                                scan.level,
-                                scan.frequency,
-                                0,
-                                scan.capabilities);
-                    }
-                    devices.put(networkDevice.getMac(), networkDevice);
+            long now = SystemClock.elapsedRealtime() * 1000;
+            Log.d(TAG, "GOT SCAN, updated: " + updated);
+            devices.clear();
+            for (ScanResult scan : scans) {
+                long mac = MacAddress.parse(scan.BSSID);
+                // only sightings newer than the ones already logged
+                if (mac < 0 || !freshnessFilter.isFresh(mac, scan.timestamp, now)) {
+                    continue;
+                }
+                Log.d(TAG, scan.BSSID + " " + scan.SSID + "\n  " + scan);
+
+                int channelWidth = 0;
+                if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
+                    channelWidth = scan.channelWidth;
                 }
+                devices.put(scan.SSID, mac, scan.level, scan.frequency, channelWidth,
+                        scan.capabilities);
+            }
+            NetworkStat stat = devices.build(NetworkStat.DeviceType.WIFI);
+            if (updated) {
+                // cached results would make a moving device look stationary
+                scanScheduler.onResults(stat);
+            }
+            // an empty scan waits for the next one rather than asking again straight away
+            if (stat.size() > 0) {
                 Log.d(TAG, "POSTING WIFI EVENT on thread: " + Thread.currentThread().getName());
-                eventBus.post(new NetworkStat(NetworkStat.DeviceType.WIFI, devices));
+                pipeline.publish(stat);
             }
         }
     }
@@ -0,0 +1,267 @@
+package com.jasonernst.awm.collectors;
+
+import java.util.Arrays;
+
+import com.jasonernst.awm.stats.GPSStats;
+import com.jasonernst.awm.stats.NetworkStat;
+import lombok.Getter;
+
+/**
+ * Decides when the WiFiAPStatsCollector asks for the next Wi-Fi scan.
+ *
+ * Android 9 and later fail scans requested beyond a budget, 4 every 2 minutes for an app in the
+ * foreground, and a failed scan only hands back the old results. The scheduler keeps the times
+ * of the scans it requested and never asks for one the budget wouldn't allow.
+ *
+ * Within the budget the interval adapts to how much the surroundings are changing: it is the
+ * shortest while the device is moving, doubles with every scan while it is stationary, up to
+ * the longest, and is doubled again while the battery is low. Whether the device is moving is
+ * judged from its position when there is a recent one, otherwise from how much of the last
+ * scan's access points are still seen.
+ *
+ * Times are passed in, in ms on any monotonic clock, so the policy can be tested without one.
+ */
+public class WiFiScanScheduler {
+
+    public static final long DEFAULT_MIN_INTERVAL_MILLIS = 10 * 1000;
+    public static final long DEFAULT_INTERVAL_MILLIS = 30 * 1000;
+    public static final long DEFAULT_MAX_INTERVAL_MILLIS = 5 * 60 * 1000;
+    // what Android 9 allows an app in the foreground
+    public static final int DEFAULT_BUDGET_SCANS = 4;
+    public static final long DEFAULT_BUDGET_WINDOW_MILLIS = 2 * 60 * 1000;
+    public static final float LOW_BATTERY_PERCENT = 20;
+
+    // faster than walking pace is moving, slower than a shuffle is stationary
+    private static final double MOVING_METERS_PER_SECOND = 1.0;
+    private static final double STATIONARY_METERS_PER_SECOND = 0.2;
+    // a position older than this says nothing about whether the device is moving now
+    private static final long POSITION_FRESH_MILLIS = 2 * 60 * 1000;
+    private static final double MOVING_SIMILARITY = 0.5;
+    private static final double STATIONARY_SIMILARITY = 0.8;
+
+    enum Motion { UNKNOWN, STATIONARY, MOVING }
+
+    private long minIntervalMillis = DEFAULT_MIN_INTERVAL_MILLIS;
+    private long baseIntervalMillis = DEFAULT_INTERVAL_MILLIS;
+    private long maxIntervalMillis = DEFAULT_MAX_INTERVAL_MILLIS;
+
+    // times of the scans requested within the window, oldest first, as a ring
+    private long[] budgetTimes;
+    private int budgetCount;
+    private int budgetStart;
+    private long budgetWindowMillis;
+
+    private long intervalMillis = DEFAULT_INTERVAL_MILLIS;
+    private long lastRequestAt = Long.MIN_VALUE;
+    private boolean batteryLow;
+
+    private GPSStats lastPosition;
+    private long lastPositionAt;
+    private Motion positionMotion = Motion.UNKNOWN;
+    private Motion scanMotion = Motion.UNKNOWN;
+    // sorted MACs of the last scan which returned any
+    private long[] lastMacs = new long[0];
+
+    @Getter
+    private long requestedCount;
+
+    @Getter
+    private long throttledCount;
+
+    // scans which brought new results, not the cached ones of a failed scan
+    @Getter
+    private long returnedCount;
+
+    /**
+     * @param throttled whether the platform limits scans, ie: Android 9 and later
+     */
+    public WiFiScanScheduler(boolean throttled) {
+        if (throttled) {
+            setBudget(DEFAULT_BUDGET_SCANS, DEFAULT_BUDGET_WINDOW_MILLIS);
+        } else {
+            setBudget(0, 0);
+        }
+    }
+
+    /**
+     * Limits the scans requested to scans every windowMillis, 0 scans for no limit.
+     */
+    public synchronized void setBudget(int scans, long windowMillis) {
+        budgetTimes = new long[Math.max(scans, 0)];
+        budgetCount = 0;
+        budgetStart = 0;
+        budgetWindowMillis = windowMillis;
+    }
+
+    /**
+     * @param minMillis the interval while moving
+     * @param baseMillis the interval until it is known whether the device is moving
+     * @param maxMillis the longest interval while stationary, doubled when the battery is low
+     */
+    public synchronized void setIntervals(long minMillis, long baseMillis, long maxMillis) {
+        if (minMillis <= 0 || baseMillis < minMillis || maxMillis < baseMillis) {
+            throw new IllegalArgumentException("Need 0 < min <= base <= max");
+        }
+        minIntervalMillis = minMillis;
+        baseIntervalMillis = baseMillis;
+        maxIntervalMillis = maxMillis;
+        intervalMillis = baseMillis;
+    }
+
+    /**
+     * @return how long to wait from now before asking for the next scan.
+     */
+    public synchronized long getDelayMillis(long now) {
+        if (lastRequestAt == Long.MIN_VALUE) {
+            return 0;
+        }
+        long interval = batteryLow ? intervalMillis * 2 : intervalMillis;
+        long at = lastRequestAt + interval;
+        if (budgetTimes.length > 0 && budgetCount == budgetTimes.length) {
+            // the oldest scan in the window has to fall out of it first
+            at = Math.max(at, budgetTimes[budgetStart] + budgetWindowMillis);
+        }
+        return Math.max(0, at - now);
+    }
+
+    /**
+     * @return whether the budget allows a scan now.
+     */
+    public synchronized boolean canScan(long now) {
+        expire(now);
+        return budgetTimes.length == 0 || budgetCount < budgetTimes.length;
+    }
+
+    /**
+     * Records a scan request and whether the platform accepted it. A rejected request still
+     * counts against the budget, since the platform counts it too.
+     */
+    public synchronized void onScanRequested(long now, boolean accepted) {
+        expire(now);
+        if (budgetTimes.length > 0) {
+            if (budgetCount == budgetTimes.length) {
+                budgetStart = (budgetStart + 1) % budgetTimes.length;
+                budgetCount--;
+            }
+            budgetTimes[(budgetStart + budgetCount) % budgetTimes.length] = now;
+            budgetCount++;
+        }
+        lastRequestAt = now;
+        if (accepted) {
+            requestedCount++;
+        } else {
+            throttledCount++;
+        }
+        updateInterval();
+    }
+
+    /**
+     * Records the results of a scan, judging from them whether the device is moving.
+     */
+    public synchronized void onResults(NetworkStat scan) {
+        returnedCount++;
+        if (scan.size() == 0) {
+            return;
+        }
+        long[] macs = new long[scan.size()];
+        for (int i = 0; i < macs.length; i++) {
+            macs[i] = scan.getMacValue(i);
+        }
+        Arrays.sort(macs);
+        if (lastMacs.length > 0) {
+            double similarity = similarity(lastMacs, macs);
+            if (similarity >= STATIONARY_SIMILARITY) {
+                scanMotion = Motion.STATIONARY;
+            } else if (similarity < MOVING_SIMILARITY) {
+                scanMotion = Motion.MOVING;
+            } else {
+                scanMotion = Motion.UNKNOWN;
+            }
+        }
+        lastMacs = macs;
+    }
+
+    public synchronized void onPosition(long now, GPSStats position) {
+        if (lastPosition != null && now > lastPositionAt) {
+            double speed = distanceMeters(lastPosition, position) * 1000 / (now - lastPositionAt);
+            if (speed >= MOVING_METERS_PER_SECOND) {
+                positionMotion = Motion.MOVING;
+            } else if (speed <= STATIONARY_METERS_PER_SECOND) {
+                positionMotion = Motion.STATIONARY;
+            } else {
+                positionMotion = Motion.UNKNOWN;
+            }
+        }
+        lastPosition = position;
+        lastPositionAt = now;
+    }
+
+    public synchronized void onBattery(float percent) {
+        batteryLow = percent < LOW_BATTERY_PERCENT;
+    }
+
+    /**
+     * @return the interval between scans as it stands, before any budget or battery delay.
+     */
+    public synchronized long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    synchronized Motion getMotion(long now) {
+        if (lastPosition != null && now - lastPositionAt <= POSITION_FRESH_MILLIS
+                && positionMotion != Motion.UNKNOWN) {
+            return positionMotion;
+        }
+        return scanMotion;
+    }
+
+    private void updateInterval() {
+        switch (getMotion(lastRequestAt)) {
+            case MOVING:
+                intervalMillis = minIntervalMillis;
+                break;
+            case STATIONARY:
+                intervalMillis = Math.min(Math.max(intervalMillis, baseIntervalMillis) * 2,
+                        maxIntervalMillis);
+                break;
+            default:
+                intervalMillis = baseIntervalMillis;
+        }
+    }
+
+    private void expire(long now) {
+        while (budgetCount > 0 && budgetTimes[budgetStart] + budgetWindowMillis <= now) {
+            budgetStart = (budgetStart + 1) % budgetTimes.length;
+            budgetCount--;
+        }
+    }
+
+    /**
+     * @return the share of the MACs in either scan which are seen in both.
+     */
+    private static double similarity(long[] a, long[] b) {
+        int i = 0;
+        int j = 0;
+        int common = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] == b[j]) {
+                common++;
+                i++;
+                j++;
+            } else if (a[i] < b[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return (double) common / (a.length + b.length - common);
+    }
+
+    private static double distanceMeters(GPSStats from, GPSStats to) {
+        // equirectangular, plenty at the distances covered between two fixes
+        double latitude = Math.toRadians((from.latitude + to.latitude) / 2);
+        double x = Math.toRadians(to.longitude - from.longitude) * Math.cos(latitude);
+        double y = Math.toRadians(to.latitude - from.latitude);
+        return Math.sqrt(x * x + y * y) * 6371000;
+    }
+}
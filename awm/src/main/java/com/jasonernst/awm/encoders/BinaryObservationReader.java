@@ -0,0 +1,185 @@
+package com.jasonernst.awm.encoders;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Reads back a payload written by a BinaryObservationWriter, for observations which are kept in
+ * the binary format until they are uploaded. The header is read on construction, leaving the
+ * reader at the start of the body; the fields of the body are then read in the order they were
+ * written.
+ *
+ * Every read throws an IllegalArgumentException if the payload is malformed or runs out.
+ */
+public class BinaryObservationReader {
+
+    private final byte[] payload;
+    private final int end;
+    private final String[] dictionary;
+    private final int version;
+    private int position;
+
+    public BinaryObservationReader(byte[] payload) {
+        this.payload = payload;
+        this.end = payload.length;
+        if (end < BinaryObservationWriter.MAGIC.length || !Arrays.equals(
+                Arrays.copyOf(payload, BinaryObservationWriter.MAGIC.length),
+                BinaryObservationWriter.MAGIC)) {
+            throw new IllegalArgumentException("Not a binary observation");
+        }
+        position = BinaryObservationWriter.MAGIC.length;
+        long version = readVarint();
+        // observations cached by an older version are still read
+        if (version < 1 || version > BinaryObservationWriter.VERSION) {
+            throw new IllegalArgumentException("Unsupported version " + version);
+        }
+        this.version = (int) version;
+        int entries = readLength();
+        dictionary = new String[entries];
+        for (int i = 0; i < entries; i++) {
+            int length = readLength();
+            require(length);
+            dictionary[i] = new String(payload, position, length, StandardCharsets.UTF_8);
+            position += length;
+        }
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the strings of the payload, which readStringId() indexes into.
+     */
+    public String[] getDictionary() {
+        return dictionary;
+    }
+
+    public boolean hasRemaining() {
+        return position < end;
+    }
+
+    public int readByte() {
+        require(1);
+        return payload[position++] & 0xFF;
+    }
+
+    public byte[] readBytes(int length) {
+        require(length);
+        byte[] bytes = Arrays.copyOfRange(payload, position, position + length);
+        position += length;
+        return bytes;
+    }
+
+    public long readVarint() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    public long readSignedVarint() {
+        long value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public long readLong() {
+        require(8);
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (payload[position++] & 0xFF);
+        }
+        return value;
+    }
+
+    public int readInt() {
+        require(4);
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (payload[position++] & 0xFF);
+        }
+        return value;
+    }
+
+    public double readDouble() {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    public float readFloat() {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    public UUID readUuid() {
+        long most = readLong();
+        return new UUID(most, readLong());
+    }
+
+    /**
+     * @return the 48 bit MAC address, see MacAddress.format()
+     */
+    public long readMac() {
+        require(6);
+        long value = 0;
+        for (int i = 0; i < 6; i++) {
+            value = (value << 8) | (payload[position++] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * @return the index into the dictionary of the next string.
+     */
+    public int readStringId() {
+        long id = readVarint();
+        if (id >= dictionary.length) {
+            throw new IllegalArgumentException("Unknown dictionary entry " + id);
+        }
+        return (int) id;
+    }
+
+    public String readString() {
+        return dictionary[readStringId()];
+    }
+
+    /**
+     * @return the index into the dictionary of the next string written by
+     * writeNullableString(), or -1 for null.
+     */
+    public int readNullableStringId() {
+        if (version == 1) {
+            // which wrote null as "null"
+            int id = readStringId();
+            return "null".equals(dictionary[id]) ? -1 : id;
+        }
+        long id = readSignedVarint();
+        if (id < -1 || id >= dictionary.length) {
+            throw new IllegalArgumentException("Unknown dictionary entry " + id);
+        }
+        return (int) id;
+    }
+
+    public String readNullableString() {
+        int id = readNullableStringId();
+        return id < 0 ? null : dictionary[id];
+    }
+
+    private int readLength() {
+        long length = readVarint();
+        if (length > end - position) {
+            throw new IllegalArgumentException("Truncated payload");
+        }
+        return (int) length;
+    }
+
+    private void require(int length) {
+        if (length > end - position) {
+            throw new IllegalArgumentException("Truncated payload");
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.jasonernst.awm.encoders;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Writes the compact binary observation format, sent with the Content-Type CONTENT_TYPE.
+ *
+ * A payload is laid out as:
+ *   magic "AWM" and a version byte
+ *   the string dictionary: varint count, then for each entry a varint length and UTF-8 bytes
+ *   the body, in which every string is an index into the dictionary
+ *
+ * Integers are base 128 varints (zigzag encoded when they may be negative), MACs are packed
+ * into 6 bytes and the remaining fixed width fields are big endian. Since the dictionary has to
+ * precede the body, the body is accumulated separately and the two are stitched together when
+ * the payload is written out. The full layout is described in the awm-server README.
+ *
+ * Instances are not thread safe, but may be reused by calling reset().
+ */
+public class BinaryObservationWriter {
+
+    public static final String CONTENT_TYPE = "application/vnd.awm.observation";
+    public static final byte[] MAGIC = {'A', 'W', 'M'};
+    // 2 sends devices without a name as -1, as the JSON format does, rather than as "null",
+    // and adds the delta section
+    public static final int VERSION = 2;
+
+    private static final int INITIAL_SIZE = 4096;
+
+    private byte[] body = new byte[INITIAL_SIZE];
+    private int bodyCount;
+
+    private final HashMap<String, Integer> dictionaryIds = new HashMap<>();
+    private final ArrayList<String> dictionary = new ArrayList<>();
+    private byte[] header = new byte[INITIAL_SIZE];
+    private int headerCount;
+    // number of dictionary entries the header was last built with, or -1 if it is stale
+    private int headerEntries = -1;
+
+    /**
+     * Discards anything written so far and keeps the (possibly grown) buffers for the next use.
+     */
+    public BinaryObservationWriter reset() {
+        bodyCount = 0;
+        headerCount = 0;
+        headerEntries = -1;
+        dictionaryIds.clear();
+        dictionary.clear();
+        return this;
+    }
+
+    public BinaryObservationWriter writeByte(int b) {
+        ensure(1);
+        body[bodyCount++] = (byte) b;
+        return this;
+    }
+
+    public BinaryObservationWriter writeBytes(byte[] bytes) {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, body, bodyCount, bytes.length);
+        bodyCount += bytes.length;
+        return this;
+    }
+
+    /**
+     * Writes a non-negative value as a base 128 varint, low seven bits first.
+     */
+    public BinaryObservationWriter writeVarint(long value) {
+        ensure(10);
+        bodyCount = putVarint(body, bodyCount, value);
+        return this;
+    }
+
+    /**
+     * Writes a value which may be negative, zigzag encoded so small magnitudes stay small.
+     */
+    public BinaryObservationWriter writeSignedVarint(long value) {
+        return writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    public BinaryObservationWriter writeLong(long value) {
+        ensure(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            body[bodyCount++] = (byte) (value >>> shift);
+        }
+        return this;
+    }
+
+    public BinaryObservationWriter writeInt(int value) {
+        ensure(4);
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            body[bodyCount++] = (byte) (value >>> shift);
+        }
+        return this;
+    }
+
+    public BinaryObservationWriter writeDouble(double value) {
+        return writeLong(Double.doubleToLongBits(value));
+    }
+
+    public BinaryObservationWriter writeFloat(float value) {
+        return writeInt(Float.floatToIntBits(value));
+    }
+
+    public BinaryObservationWriter writeUuid(UUID uuid) {
+        writeLong(uuid.getMostSignificantBits());
+        return writeLong(uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * Writes a MAC address in the usual colon separated hex notation as 6 bytes. Anything that
+     * doesn't parse is written as 00:00:00:00:00:00.
+     */
+    public BinaryObservationWriter writeMac(String mac) {
+        long value = MacAddress.parse(mac);
+        return writeMac(value < 0 ? 0 : value);
+    }
+
+    /**
+     * Writes the low 48 bits of a MAC address as 6 bytes.
+     */
+    public BinaryObservationWriter writeMac(long value) {
+        ensure(6);
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            body[bodyCount++] = (byte) (value >>> shift);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a reference to the string in this payload's dictionary, adding it if this is the
+     * first time it has been seen. A null string is stored as "null", as in the JSON format.
+     */
+    public BinaryObservationWriter writeString(String value) {
+        if (value == null) {
+            value = "null";
+        }
+        Integer id = dictionaryIds.get(value);
+        if (id == null) {
+            id = dictionary.size();
+            dictionary.add(value);
+            dictionaryIds.put(value, id);
+        }
+        return writeVarint(id);
+    }
+
+    /**
+     * Writes a reference to the string like writeString(), but as a zigzag varint which is -1
+     * for a null string, the same as the JSON format's ids for the strings of a device.
+     */
+    public BinaryObservationWriter writeNullableString(String value) {
+        if (value == null) {
+            return writeSignedVarint(-1);
+        }
+        Integer id = dictionaryIds.get(value);
+        if (id == null) {
+            id = dictionary.size();
+            dictionary.add(value);
+            dictionaryIds.put(value, id);
+        }
+        return writeSignedVarint(id);
+    }
+
+    /**
+     * @return the size in bytes of the full payload, header and dictionary included.
+     */
+    public int size() {
+        buildHeader();
+        return headerCount + bodyCount;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        buildHeader();
+        out.write(header, 0, headerCount);
+        out.write(body, 0, bodyCount);
+    }
+
+    public byte[] toByteArray() {
+        buildHeader();
+        byte[] payload = Arrays.copyOf(header, headerCount + bodyCount);
+        System.arraycopy(body, 0, payload, headerCount, bodyCount);
+        return payload;
+    }
+
+    private void buildHeader() {
+        if (headerEntries == dictionary.size()) {
+            return;
+        }
+        headerEntries = dictionary.size();
+        headerCount = 0;
+        putHeader(MAGIC, MAGIC.length);
+        putHeaderVarint(VERSION);
+        putHeaderVarint(dictionary.size());
+        for (String entry : dictionary) {
+            byte[] utf8 = entry.getBytes(StandardCharsets.UTF_8);
+            putHeaderVarint(utf8.length);
+            putHeader(utf8, utf8.length);
+        }
+    }
+
+    private void putHeaderVarint(long value) {
+        if (headerCount + 10 > header.length) {
+            header = Arrays.copyOf(header, header.length * 2);
+        }
+        headerCount = putVarint(header, headerCount, value);
+    }
+
+    private void putHeader(byte[] bytes, int length) {
+        while (headerCount + length > header.length) {
+            header = Arrays.copyOf(header, header.length * 2);
+        }
+        System.arraycopy(bytes, 0, header, headerCount, length);
+        headerCount += length;
+    }
+
+    private static int putVarint(byte[] buffer, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    private void ensure(int extra) {
+        if (bodyCount + extra > body.length) {
+            body = Arrays.copyOf(body, Math.max(body.length * 2, bodyCount + extra));
+        }
+    }
+}
@@ -0,0 +1,389 @@
+package com.jasonernst.awm.encoders;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A small streaming JSON writer which encodes straight to UTF-8 bytes, either into a reusable
+ * internal buffer or in fixed size chunks to an OutputStream. Nothing is built up with String
+ * concatenation so the cost of writing an observation is linear in the number of devices and,
+ * once the buffer has grown to fit a typical scan, produces almost no garbage.
+ *
+ * The PRETTY style reproduces the tab indented layout that the collection server has always
+ * received. The COMPACT style drops all insignificant whitespace.
+ *
+ * Instances are not thread safe, but may be reused by calling reset().
+ */
+public class JsonStreamWriter {
+
+    public enum Style {
+        PRETTY,
+        COMPACT
+    }
+
+    private static final int CHUNK_SIZE = 8192;
+    private static final int MAX_DEPTH = 32;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Style style;
+    private final OutputStream out;
+    private byte[] buffer;
+    private int count;
+
+    // per nesting level: has at least one member / element been written yet
+    private final boolean[] nonEmpty = new boolean[MAX_DEPTH];
+    private int depth;
+    private boolean afterName;
+
+    private final char[] digits = new char[20];
+    private final char[] mac = new char[17];
+
+    /**
+     * Creates a writer which accumulates into an internal buffer. Use toString(), toByteArray()
+     * or writeTo() to get the result out.
+     */
+    public JsonStreamWriter(Style style) {
+        this.style = style;
+        this.out = null;
+        this.buffer = new byte[CHUNK_SIZE];
+    }
+
+    /**
+     * Creates a writer which streams to the given OutputStream, flushing every CHUNK_SIZE bytes.
+     * The caller is responsible for calling flush() when done and closing the stream.
+     */
+    public JsonStreamWriter(OutputStream out, Style style) {
+        this.style = style;
+        this.out = out;
+        this.buffer = new byte[CHUNK_SIZE];
+    }
+
+    public Style getStyle() {
+        return style;
+    }
+
+    /**
+     * Discards anything written so far and keeps the (possibly grown) buffer for the next use.
+     */
+    public JsonStreamWriter reset(Style style) {
+        this.style = style;
+        count = 0;
+        depth = 0;
+        afterName = false;
+        Arrays.fill(nonEmpty, false);
+        return this;
+    }
+
+    public JsonStreamWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    public JsonStreamWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    public JsonStreamWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    public JsonStreamWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    public JsonStreamWriter name(String name) throws IOException {
+        beforeValue();
+        writeQuoted(name);
+        writeByte(':');
+        if (style == Style.PRETTY) {
+            writeByte(' ');
+        }
+        afterName = true;
+        return this;
+    }
+
+    /**
+     * Writes a string value. A null value is written as the string "null" rather than a JSON
+     * null since that is what the server has always been sent for missing names.
+     */
+    public JsonStreamWriter value(String value) throws IOException {
+        beforeValue();
+        writeQuoted(value == null ? "null" : value);
+        return this;
+    }
+
+    public JsonStreamWriter value(long value) throws IOException {
+        beforeValue();
+        writeLong(value);
+        return this;
+    }
+
+    public JsonStreamWriter value(boolean value) throws IOException {
+        beforeValue();
+        writeAscii(value ? "true" : "false");
+        return this;
+    }
+
+    /**
+     * Writes a quoted integer, for fields the server has always received as strings.
+     */
+    public JsonStreamWriter stringValue(long value) throws IOException {
+        beforeValue();
+        writeByte('"');
+        writeLong(value);
+        writeByte('"');
+        return this;
+    }
+
+    /**
+     * Writes a quoted float using the same representation as String.valueOf(float).
+     */
+    public JsonStreamWriter stringValue(float value) throws IOException {
+        beforeValue();
+        writeByte('"');
+        writeAscii(Float.toString(value));
+        writeByte('"');
+        return this;
+    }
+
+    /**
+     * Writes a quoted double with six decimal places, ie: "%f".
+     */
+    public JsonStreamWriter stringValue(double value) throws IOException {
+        beforeValue();
+        writeByte('"');
+        writeAscii(String.format(Locale.US, "%f", value));
+        writeByte('"');
+        return this;
+    }
+
+    /**
+     * Writes the low 48 bits as a quoted, colon separated MAC address, without allocating.
+     */
+    public JsonStreamWriter macValue(long value) throws IOException {
+        beforeValue();
+        MacAddress.format(value, mac);
+        writeByte('"');
+        for (char c : mac) {
+            writeByte(c);
+        }
+        writeByte('"');
+        return this;
+    }
+
+    /**
+     * Writes a value which is already JSON encoded as is. No validation is performed.
+     */
+    public JsonStreamWriter rawValue(CharSequence json) throws IOException {
+        beforeValue();
+        writeChars(json);
+        return this;
+    }
+
+    /**
+     * Flushes any buffered bytes to the underlying OutputStream, if there is one.
+     */
+    public void flush() throws IOException {
+        if (out != null && count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+            out.flush();
+        }
+    }
+
+    /**
+     * @return the number of buffered bytes.
+     */
+    public int size() {
+        return count;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, count);
+    }
+
+    /**
+     * Copies the buffered bytes to the given stream without any intermediate copies.
+     */
+    public void writeTo(OutputStream stream) throws IOException {
+        stream.write(buffer, 0, count);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, count, StandardCharsets.UTF_8);
+    }
+
+    private JsonStreamWriter open(char c) throws IOException {
+        if (depth == MAX_DEPTH) {
+            throw new IllegalStateException("Nesting too deep");
+        }
+        beforeValue();
+        writeByte(c);
+        nonEmpty[depth++] = false;
+        return this;
+    }
+
+    private JsonStreamWriter close(char c) throws IOException {
+        if (depth == 0) {
+            throw new IllegalStateException("Nothing to close");
+        }
+        depth--;
+        if (style == Style.PRETTY) {
+            newline(depth);
+        }
+        writeByte(c);
+        if (depth == 0 && style == Style.PRETTY) {
+            writeByte('\n');
+        }
+        return this;
+    }
+
+    private void beforeValue() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth == 0) {
+            return;
+        }
+        if (nonEmpty[depth - 1]) {
+            writeByte(',');
+        }
+        nonEmpty[depth - 1] = true;
+        if (style == Style.PRETTY) {
+            newline(depth);
+        }
+    }
+
+    private void newline(int indent) throws IOException {
+        writeByte('\n');
+        for (int i = 0; i < indent; i++) {
+            writeByte('\t');
+        }
+    }
+
+    private void writeQuoted(String s) throws IOException {
+        writeByte('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    writeByte('\\');
+                    writeByte('"');
+                    break;
+                case '\\':
+                    writeByte('\\');
+                    writeByte('\\');
+                    break;
+                case '\n':
+                    writeByte('\\');
+                    writeByte('n');
+                    break;
+                case '\r':
+                    writeByte('\\');
+                    writeByte('r');
+                    break;
+                case '\t':
+                    writeByte('\\');
+                    writeByte('t');
+                    break;
+                case '\b':
+                    writeByte('\\');
+                    writeByte('b');
+                    break;
+                case '\f':
+                    writeByte('\\');
+                    writeByte('f');
+                    break;
+                default:
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        writeByte('\\');
+                        writeByte('u');
+                        writeByte(HEX[(c >> 12) & 0xF]);
+                        writeByte(HEX[(c >> 8) & 0xF]);
+                        writeByte(HEX[(c >> 4) & 0xF]);
+                        writeByte(HEX[c & 0xF]);
+                    } else {
+                        i = writeChar(s, i);
+                    }
+            }
+        }
+        writeByte('"');
+    }
+
+    private void writeChars(CharSequence s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            i = writeChar(s, i);
+        }
+    }
+
+    /**
+     * UTF-8 encodes the char at index i (and its low surrogate if it has one).
+     * @return the index of the last char consumed.
+     */
+    private int writeChar(CharSequence s, int i) throws IOException {
+        char c = s.charAt(i);
+        if (c < 0x80) {
+            writeByte(c);
+        } else if (c < 0x800) {
+            writeByte(0xC0 | (c >> 6));
+            writeByte(0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                && Character.isLowSurrogate(s.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, s.charAt(i + 1));
+            writeByte(0xF0 | (cp >> 18));
+            writeByte(0x80 | ((cp >> 12) & 0x3F));
+            writeByte(0x80 | ((cp >> 6) & 0x3F));
+            writeByte(0x80 | (cp & 0x3F));
+            return i + 1;
+        } else if (Character.isSurrogate(c)) {
+            // unpaired surrogate, not representable in UTF-8
+            writeByte('?');
+        } else {
+            writeByte(0xE0 | (c >> 12));
+            writeByte(0x80 | ((c >> 6) & 0x3F));
+            writeByte(0x80 | (c & 0x3F));
+        }
+        return i;
+    }
+
+    private void writeAscii(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            writeByte(s.charAt(i));
+        }
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            writeByte('-');
+            value = -value;
+        }
+        int pos = digits.length;
+        do {
+            digits[--pos] = (char) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        while (pos < digits.length) {
+            writeByte(digits[pos++]);
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (count == buffer.length) {
+            if (out != null) {
+                out.write(buffer, 0, count);
+                count = 0;
+            } else {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+        buffer[count++] = (byte) b;
+    }
+}
@@ -0,0 +1,63 @@
+package com.jasonernst.awm.encoders;
+
+/**
+ * Helpers to move between the colon separated notation of MAC addresses and the 48 bit integer
+ * the server stores them as.
+ */
+public final class MacAddress {
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private MacAddress() {
+    }
+
+    /**
+     * Parses a MAC in the form aa:bb:cc:dd:ee:ff (case insensitive, ':' or '-' separated).
+     * @return the 48 bit value, or -1 if the string isn't a MAC address.
+     */
+    public static long parse(CharSequence mac) {
+        if (mac == null || mac.length() != 17) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = 0; i < 17; i++) {
+            char c = mac.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':' && c != '-') {
+                    return -1;
+                }
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return -1;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    /**
+     * Formats the low 48 bits as an upper case, colon separated MAC address.
+     */
+    public static String format(long mac) {
+        char[] chars = new char[17];
+        format(mac, chars);
+        return new String(chars);
+    }
+
+    /**
+     * Formats into the given array, which must have room for 17 chars, without allocating.
+     */
+    public static void format(long mac, char[] out) {
+        int pos = 0;
+        for (int shift = 40; shift >= 0; shift -= 8) {
+            int octet = (int) (mac >>> shift) & 0xFF;
+            if (pos > 0) {
+                out[pos++] = ':';
+            }
+            out[pos++] = HEX[octet >> 4];
+            out[pos++] = HEX[octet & 0xF];
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.jasonernst.awm.loggers;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The outcome of each entry of a batch upload, in the order the entries were sent.
+ */
+public class BatchResult {
+
+    private final int[] statuses;
+    private final String[] messages;
+
+    BatchResult(int[] statuses, String[] messages) {
+        this.statuses = statuses;
+        this.messages = messages;
+    }
+
+    /**
+     * Parses the server's response to a batch: a json array holding a "status" and "message"
+     * for each entry.
+     * @throws JSONException if the response isn't in that form or has the wrong number of entries
+     */
+    static BatchResult parse(String response, int expected) throws JSONException {
+        JSONArray results = new JSONArray(response);
+        if (results.length() != expected) {
+            throw new JSONException("Expected " + expected + " results, got " + results.length());
+        }
+        int[] statuses = new int[expected];
+        String[] messages = new String[expected];
+        for (int i = 0; i < expected; i++) {
+            JSONObject result = results.getJSONObject(i);
+            statuses[i] = result.getInt("status");
+            messages[i] = result.optString("message");
+        }
+        return new BatchResult(statuses, messages);
+    }
+
+    public int size() {
+        return statuses.length;
+    }
+
+    public int getStatus(int index) {
+        return statuses[index];
+    }
+
+    public String getMessage(int index) {
+        return messages[index];
+    }
+
+    public boolean isSuccess(int index) {
+        return statuses[index] == 200;
+    }
+
+    /**
+     * @return true if the entry was rejected as malformed and so shouldn't be sent again.
+     */
+    public boolean isRejected(int index) {
+        return statuses[index] >= 400 && statuses[index] < 500;
+    }
+
+    public int getSuccessCount() {
+        int count = 0;
+        for (int status : statuses) {
+            if (status == 200) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,240 @@
+package com.jasonernst.awm.loggers;
+
+import android.annotation.TargetApi;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.LinkAddress;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.os.Build;
+import android.util.Log;
+
+import com.anadeainc.rxbus.Bus;
+import com.anadeainc.rxbus.BusProvider;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.jasonernst.awm.stats.ConnectivityStats;
+
+/**
+ * Tracks connectivity as the system reports changes to it, so asking whether we are online is a
+ * read of a field rather than a call into the system server.
+ *
+ * Uses a NetworkCallback from Lollipop on, and the CONNECTIVITY_ACTION broadcast before that.
+ * Each change is posted on the bus as a ConnectivityStats.
+ */
+public class ConnectivityMonitor {
+
+    private static final String TAG = ConnectivityMonitor.class.getCanonicalName();
+    private final Context context;
+    private final ConnectivityManager connMgr;
+    private Bus eventBus = BusProvider.getInstance();
+    private volatile ConnectivityStats stats;
+    private boolean started;
+
+    // Lollipop and later: what we know of each network with internet access
+    private final Map<Network, NetworkCapabilities> capabilities = new HashMap<>();
+    private final Map<Network, LinkProperties> linkProperties = new HashMap<>();
+    private ConnectivityManager.NetworkCallback networkCallback;
+    private BroadcastReceiver connectivityReceiver;
+
+    public ConnectivityMonitor(Context context) {
+        this.context = context;
+        this.connMgr = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        // until the first callback arrives
+        stats = query();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            registerNetworkCallback();
+        } else {
+            connectivityReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    update(query());
+                }
+            };
+            context.registerReceiver(connectivityReceiver,
+                    new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        }
+    }
+
+    public synchronized void stop() {
+        if (!started) {
+            return;
+        }
+        started = false;
+        try {
+            if (networkCallback != null) {
+                connMgr.unregisterNetworkCallback(networkCallback);
+                networkCallback = null;
+            }
+            if (connectivityReceiver != null) {
+                context.unregisterReceiver(connectivityReceiver);
+                connectivityReceiver = null;
+            }
+        } catch (IllegalArgumentException ex) {
+            Log.d(TAG, "Already unregistered: " + ex.toString());
+        }
+        capabilities.clear();
+        linkProperties.clear();
+    }
+
+    /**
+     * @return the latest connectivity. Queries the system once if the monitor hasn't been
+     * started yet.
+     */
+    public ConnectivityStats getStats() {
+        ConnectivityStats current = stats;
+        if (current == null) {
+            current = query();
+            stats = current;
+        }
+        return current;
+    }
+
+    private void update(ConnectivityStats updated) {
+        ConnectivityStats previous = stats;
+        stats = updated;
+        if (!updated.equals(previous)) {
+            Log.d(TAG, "Connectivity changed: " + updated);
+            eventBus.post(updated);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void registerNetworkCallback() {
+        networkCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                // before Oreo the capabilities and properties don't necessarily follow
+                NetworkCapabilities networkCapabilities = connMgr.getNetworkCapabilities(network);
+                LinkProperties properties = connMgr.getLinkProperties(network);
+                synchronized (ConnectivityMonitor.this) {
+                    if (networkCapabilities != null) {
+                        capabilities.put(network, networkCapabilities);
+                    }
+                    if (properties != null) {
+                        linkProperties.put(network, properties);
+                    }
+                    update(fromCallbacks());
+                }
+            }
+
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities networkCapabilities) {
+                synchronized (ConnectivityMonitor.this) {
+                    capabilities.put(network, networkCapabilities);
+                    update(fromCallbacks());
+                }
+            }
+
+            @Override
+            public void onLinkPropertiesChanged(Network network, LinkProperties properties) {
+                synchronized (ConnectivityMonitor.this) {
+                    linkProperties.put(network, properties);
+                    update(fromCallbacks());
+                }
+            }
+
+            @Override
+            public void onLost(Network network) {
+                synchronized (ConnectivityMonitor.this) {
+                    capabilities.remove(network);
+                    linkProperties.remove(network);
+                    update(fromCallbacks());
+                }
+            }
+        };
+        NetworkRequest request = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build();
+        connMgr.registerNetworkCallback(request, networkCallback);
+    }
+
+    /**
+     * Builds the snapshot from what the callbacks have told us. Wi-Fi is preferred over cellular
+     * as the network in use, same as the system does by default.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private ConnectivityStats fromCallbacks() {
+        Network wifi = null;
+        Network cellular = null;
+        Network other = null;
+        for (Map.Entry<Network, NetworkCapabilities> entry : capabilities.entrySet()) {
+            NetworkCapabilities caps = entry.getValue();
+            if (caps.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) {
+                wifi = entry.getKey();
+            } else if (caps.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+                cellular = entry.getKey();
+            } else {
+                other = entry.getKey();
+            }
+        }
+        Network preferred = wifi != null ? wifi : (cellular != null ? cellular : other);
+        if (preferred == null) {
+            return ConnectivityStats.disconnected();
+        }
+
+        NetworkCapabilities caps = capabilities.get(preferred);
+        boolean metered = !caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED);
+        boolean validated = Build.VERSION.SDK_INT < Build.VERSION_CODES.M
+                || caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+
+        Inet4Address inet4Address = null;
+        Inet6Address inet6Address = null;
+        LinkProperties properties = linkProperties.get(preferred);
+        if (properties != null) {
+            for (LinkAddress linkAddress : properties.getLinkAddresses()) {
+                InetAddress address = linkAddress.getAddress();
+                if (address instanceof Inet4Address && inet4Address == null) {
+                    inet4Address = (Inet4Address) address;
+                } else if (address instanceof Inet6Address && inet6Address == null
+                        && !address.isLinkLocalAddress()) {
+                    inet6Address = (Inet6Address) address;
+                }
+            }
+        }
+        return new ConnectivityStats(inet6Address, inet4Address, wifi != null, cellular != null,
+                true, metered, validated);
+    }
+
+    /**
+     * Asks the system directly, for use before the first callback and before Lollipop.
+     */
+    @SuppressWarnings("deprecation")
+    private ConnectivityStats query() {
+        boolean isWifiConn = false;
+        boolean isMobileConn = false;
+        NetworkInfo[] networkInfos = connMgr.getAllNetworkInfo();
+        if (networkInfos != null) {
+            for (NetworkInfo networkInfo : networkInfos) {
+                if (networkInfo.getType() == ConnectivityManager.TYPE_WIFI) {
+                    isWifiConn |= networkInfo.isConnected();
+                }
+                if (networkInfo.getType() == ConnectivityManager.TYPE_MOBILE) {
+                    isMobileConn |= networkInfo.isConnected();
+                }
+            }
+        }
+        NetworkInfo active = connMgr.getActiveNetworkInfo();
+        boolean connected = active != null && active.isConnected();
+        return new ConnectivityStats(null, null, isWifiConn, isMobileConn, connected,
+                connected && connMgr.isActiveNetworkMetered(), connected);
+    }
+}
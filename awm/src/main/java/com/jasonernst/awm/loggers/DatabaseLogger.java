@@ -12,21 +12,98 @@ import org.json.JSONException;
 
 import java.io.IOException;
 import java.security.InvalidParameterException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import com.jasonernst.awm.ObservingDevice;
+import com.jasonernst.awm.encoders.JsonStreamWriter;
 import com.jasonernst.awm.stats.NetworkStat;
+import lombok.Getter;
+import lombok.Setter;
 
-public class DatabaseLogger implements StatsLogger {
+public class DatabaseLogger implements StatsLogger, JsonLogger {
 
     private final String TAG = DatabaseLogger.class.getCanonicalName();
+    private static final String DATABASE_NAME = "observation-database";
     private Bus eventBus = BusProvider.getInstance();
     private NetworkLogger networkLogger;
     private ObservationDatabase db;
     private volatile boolean running;
-    private Thread networkThread;
+    private volatile Thread networkThread;
     private boolean clearBoot;
     private boolean clearUpload;
+    // records uploaded or discarded during the current pass
+    private int resolved;
+    // the outcome of the page being uploaded, written once it is done
+    private final List<DatabaseObservation> pageUploaded = new ArrayList<>();
+    private final List<DatabaseObservation> pageDiscarded = new ArrayList<>();
+
+    /**
+     * Paces the upload loop. Call signal() on it to have a waiting loop check for uploads now,
+     * for instance after coming back online.
+     */
+    @Getter
+    private final UploadScheduler uploadScheduler = new UploadScheduler();
+
+    /**
+     * Keeps the database within its caps. Configure it before start().
+     */
+    @Getter
+    private final RetentionManager retentionManager;
+
+    /**
+     * The most records sent in a single upload request. 1 uploads each record on its own, which
+     * is what servers without batch support need.
+     */
+    @Getter @Setter
+    private int batchRecords = 50;
+
+    /**
+     * The most bytes of records sent in a single upload request. A record larger than this is
+     * still sent, on its own.
+     */
+    @Getter @Setter
+    private long batchBytes = 256 * 1024;
+
+    /**
+     * The most records read from the database at once while uploading the backlog.
+     */
+    @Getter @Setter
+    private int pageRecords = 500;
+
+    @Getter @Setter
+    private NetworkLogger.BatchFormat batchFormat = NetworkLogger.BatchFormat.JSON_ARRAY;
+
+    /**
+     * Told when logged observations have been committed to the database.
+     */
+    public interface DurabilityListener {
+        /**
+         * Called on the thread which wrote the observations, once they are committed. Their ids
+         * have been filled in.
+         */
+        void onDurable(List<DatabaseObservation> observations);
+    }
+
+    /**
+     * Observations are inserted in groups, each in a single transaction, once this many have
+     * been logged or the oldest has waited flushMillis. Takes effect on the next start().
+     */
+    @Getter @Setter
+    private int flushRecords = 64;
+
+    @Getter @Setter
+    private long flushMillis = 1000;
+
+    @Setter
+    private volatile DurabilityListener durabilityListener;
+
+    private volatile GroupCommitBuffer<DatabaseObservation> writeBuffer;
 
     public DatabaseLogger(Context context, NetworkLogger networkLogger, boolean clearBoot, boolean clearUpload) {
         this.running = false;
@@ -34,89 +111,453 @@ public class DatabaseLogger implements StatsLogger {
         this.clearBoot = clearBoot;
         this.clearUpload = clearUpload;
         this.db = Room.databaseBuilder(context,
-                ObservationDatabase.class, "observation-database").build();
+                ObservationDatabase.class, DATABASE_NAME)
+                .addMigrations(ObservationDatabase.MIGRATION_1_2, ObservationDatabase.MIGRATION_2_3)
+                .addCallback(ObservationDatabase.CALLBACK)
+                .build();
+        this.retentionManager = new RetentionManager(db, context.getDatabasePath(DATABASE_NAME));
     }
 
+    /**
+     * Waits for the upload thread of the last run, if it is still finishing an upload, so two
+     * threads never upload the same page.
+     */
     @Override
     public void start() throws Exception {
+        Thread previous = networkThread;
+        if (previous != null) {
+            previous.join();
+        }
         running = true;
 
         //clobber the dB
         if (clearBoot) {
             db.clearAllTables();
+            ObservationDatabase.recount(db.getOpenHelper().getWritableDatabase());
         }
 
+        writeBuffer = new GroupCommitBuffer<>(
+                new GroupCommitBuffer.Sink<DatabaseObservation>() {
+                    @Override
+                    public void write(List<DatabaseObservation> observations) {
+                        insertAll(observations);
+                    }
+                },
+                new GroupCommitBuffer.Listener<DatabaseObservation>() {
+                    @Override
+                    public void onDurable(List<DatabaseObservation> observations) {
+                        DatabaseLogger.this.onDurable(observations);
+                    }
+
+                    @Override
+                    public void onFailed(List<DatabaseObservation> observations, Exception ex) {
+                        //this occurs if the storage space is full
+                        eventBus.post(new LogEvent(LogEvent.EventType.FAILURE, LogEvent.LogType.DB,
+                                observations.size()));
+                        retentionManager.runNow();
+                    }
+                },
+                flushRecords, flushMillis);
+
+        retentionManager.start();
+
         networkThread = new Thread(this::uploadLogs);
         networkThread.start();
     }
 
+    /**
+     * Writes out any observations still buffered before stopping. Gives the upload thread a
+     * moment to finish, the same as JournalLogger.stop().
+     */
     @Override
     public void stop() {
         running = false;
-        networkThread.interrupt();
+        retentionManager.stop();
+        GroupCommitBuffer<DatabaseObservation> buffer = writeBuffer;
+        writeBuffer = null;
+        if (buffer != null) {
+            buffer.close();
+        }
+        Thread thread = networkThread;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(JournalLogger.STOP_JOIN_MILLIS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     public void uploadLogs() {
         Log.d(TAG, "UPLOAD LOGS STARTED IN DBLOGGER");
-        while (running && !networkThread.isInterrupted()) {
+        while (running && !Thread.currentThread().isInterrupted()) {
+            try {
+                uploadScheduler.await();
+            } catch (InterruptedException ex) {
+                return;
+            }
             Log.d(TAG, "INSIDE DBLOGGER UPLOAD LOOP");
-            if (networkLogger.isOnline() && db.databaseObservationDao().getCountNonUploaded() > 0) {
-                Log.d(TAG, "ONLINE and HAVE NON-UPLOADED");
-                List<DatabaseObservation> observations = db.databaseObservationDao().getNonUploaded();
-                Log.d(TAG, "OBSERVATIONS: " + observations.size());
-                for (DatabaseObservation observation : observations) {
-                    if(networkThread.isInterrupted()) {
-                        return;
-                    }
-                    try {
-                        Log.d(TAG, "Trying to upload");
-                        observation.setUploaded(true);
-                        networkLogger.uploadJsonEntry(observation.getObservationJson());
-                        if (clearUpload) {
-                            db.databaseObservationDao().delete(observation);
-                        } else {
-                            observation.setUploaded(false);
-                            observation.setUploadedSucessfully(true);
-                            db.databaseObservationDao().updateObservation(observation);
-                        }
-                        Log.d(TAG, "Uploaded record");
-                    } catch(InvalidParameterException ex) {
-                        Log.d(TAG, "Invalid entry - removing");
-                        db.databaseObservationDao().delete(observation);
-                    } catch (IOException ex) {
-                        Log.d(TAG, "Failed uploading.");
-                    }
+            if (!networkLogger.isOnline() || db.databaseObservationDao().getCountNonUploaded() == 0) {
+                uploadScheduler.idle();
+                continue;
+            }
+            resolved = 0;
+            boolean uploaded;
+            try {
+                uploaded = uploadBacklog();
+            } catch (InterruptedException ex) {
+                return;
+            }
+
+            if (!uploaded || resolved == 0) {
+                // the server is unreachable or keeps declining the same records
+                uploadScheduler.backoff();
+            } else if (db.databaseObservationDao().getCountNonUploaded() > 0) {
+                // records which were logged during the pass, or which the server asked us to retry
+                uploadScheduler.drain();
+            } else {
+                uploadScheduler.idle();
+            }
+        }
+    }
+
+    /**
+     * Uploads the backlog a page at a time, in order of id, so only one page of records is held
+     * in memory however large the backlog has grown. The outcome of each page is written in one
+     * transaction.
+     * @return false if an upload failed
+     */
+    private boolean uploadBacklog() throws InterruptedException {
+        long afterId = 0;
+        while (true) {
+            List<DatabaseObservation> page = db.databaseObservationDao()
+                    .getNonUploadedPage(afterId, Math.max(pageRecords, 1));
+            if (page.isEmpty()) {
+                return true;
+            }
+            Log.d(TAG, "ONLINE and HAVE NON-UPLOADED: " + page.size() + " after " + afterId);
+            afterId = page.get(page.size() - 1).getId();
+            boolean uploaded;
+            try {
+                uploaded = uploadAll(page);
+            } finally {
+                commitPage();
+            }
+            if (!uploaded) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Writes the uploaded and discarded records of the page in a single transaction.
+     */
+    private void commitPage() {
+        final DatabaseObservation[] uploaded = pageUploaded.toArray(new DatabaseObservation[0]);
+        final DatabaseObservation[] discarded = pageDiscarded.toArray(new DatabaseObservation[0]);
+        pageUploaded.clear();
+        pageDiscarded.clear();
+        if (uploaded.length == 0 && discarded.length == 0) {
+            return;
+        }
+        final DatabaseObservationDao dao = db.databaseObservationDao();
+        db.runInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                if (clearUpload) {
+                    dao.delete(uploaded);
+                } else {
+                    dao.updateObservation(uploaded);
                 }
+                dao.delete(discarded);
             }
+        });
+        resolved += uploaded.length + discarded.length;
+    }
 
-            //time between uploads
+    /**
+     * @return the end (exclusive) of the batch starting at start, such that it holds no more
+     * than batchRecords entries and batchBytes bytes, but always at least one entry.
+     */
+    private int nextBatchEnd(List<DatabaseObservation> observations, String[] entries,
+                             int start) {
+        if (batchRecords <= 1) {
+            // don't encode records which may be sent in binary just to measure them
+            return start + 1;
+        }
+        int end = start;
+        long bytes = 0;
+        while (end < observations.size() && end - start < batchRecords) {
+            String json = entry(observations, entries, end);
+            bytes += json == null ? 0 : utf8Length(json) + 1;
+            if (bytes > batchBytes && end > start) {
+                break;
+            }
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Uploads the observations in batches, keeping several batches in flight at once. Stops
+     * submitting more after the first failure, but still records the results of the batches
+     * which were already sent.
+     * @return false if an upload failed
+     */
+    private boolean uploadAll(List<DatabaseObservation> observations) throws InterruptedException {
+        // the JSON of each record, encoded when first needed
+        String[] entries = new String[observations.size()];
+        ArrayDeque<PendingBatch> inFlight = new ArrayDeque<>();
+        int start = 0;
+        boolean failed = false;
+        while (start < observations.size() && !failed) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+            int end = nextBatchEnd(observations, entries, start);
+            int batchStart = start;
+            start = end;
             try {
-                Thread.sleep(5000);
-            } catch(InterruptedException ex) {
-                return;
+                if (end - batchStart == 1) {
+                    uploadSingle(observations, entries, batchStart);
+                } else {
+                    PendingBatch pending = submitBatch(observations, entries, batchStart, end);
+                    if (pending != null) {
+                        inFlight.add(pending);
+                    }
+                }
+            } catch (IOException ex) {
+                Log.d(TAG, "Failed uploading: " + ex.toString());
+                // the server is unreachable or unhappy, try again on the next pass
+                failed = true;
             }
+            // record whatever has already come back, in order
+            while (!inFlight.isEmpty() && inFlight.peek().result.isDone()) {
+                failed |= !completeBatch(inFlight.poll());
+            }
+        }
+        while (!inFlight.isEmpty()) {
+            failed |= !completeBatch(inFlight.poll());
+        }
+        return !failed;
+    }
+
+    private static class PendingBatch {
+        final List<DatabaseObservation> observations;
+        final Future<BatchResult> result;
+
+        PendingBatch(List<DatabaseObservation> observations, Future<BatchResult> result) {
+            this.observations = observations;
+            this.result = result;
+        }
+    }
+
+    /**
+     * @return the batch in flight, or null if none of its entries could be sent.
+     */
+    private PendingBatch submitBatch(List<DatabaseObservation> observations, String[] entries,
+                                     int start, int end)
+            throws IOException, InterruptedException {
+        // empty entries can never be uploaded so don't bother sending them
+        List<DatabaseObservation> sent = new ArrayList<>(end - start);
+        List<String> batch = new ArrayList<>(end - start);
+        for (int i = start; i < end; i++) {
+            String json = entry(observations, entries, i);
+            if (json == null || json.length() == 0) {
+                Log.d(TAG, "Invalid entry - removing");
+                discard(observations.get(i));
+            } else {
+                sent.add(observations.get(i));
+                batch.add(json);
+            }
+        }
+        if (sent.isEmpty()) {
+            return null;
+        }
+        return new PendingBatch(sent, networkLogger.submitBatch(batch, batchFormat));
+    }
+
+    /**
+     * @return the record at index as JSON, encoding it from the binary format if that's how it
+     * was stored, or null if it can't be encoded.
+     */
+    private String entry(List<DatabaseObservation> observations, String[] entries, int index) {
+        if (entries[index] == null) {
+            DatabaseObservation observation = observations.get(index);
+            byte[] binary = observation.getObservationBinary();
+            if (binary == null) {
+                entries[index] = observation.getObservationJson();
+            } else {
+                JsonStreamWriter writer = new JsonStreamWriter(networkLogger.getJsonStyle());
+                try {
+                    NetworkStat.binaryToJSON(binary, writer);
+                    entries[index] = writer.toString();
+                } catch (IllegalArgumentException | IOException ex) {
+                    Log.d(TAG, "Malformed cached observation " + observation.getId() + ": " + ex);
+                }
+            }
+        }
+        return entries[index];
+    }
+
+    /**
+     * Waits for the batch and records the result of each of its entries.
+     * @return false if the batch failed as a whole.
+     */
+    private boolean completeBatch(PendingBatch pending) throws InterruptedException {
+        BatchResult result;
+        try {
+            result = pending.result.get();
+        } catch (ExecutionException ex) {
+            Log.d(TAG, "Failed uploading: " + ex.getCause());
+            return false;
+        } catch (CancellationException ex) {
+            // the network logger was stopped
+            return false;
+        }
+        for (int i = 0; i < pending.observations.size(); i++) {
+            DatabaseObservation observation = pending.observations.get(i);
+            if (result.isSuccess(i)) {
+                markUploaded(observation);
+            } else if (result.isRejected(i)) {
+                Log.d(TAG, "Invalid entry - removing: " + result.getMessage(i));
+                discard(observation);
+            } else {
+                Log.d(TAG, "Entry not stored, will retry: " + result.getMessage(i));
+            }
+        }
+        Log.d(TAG, "Uploaded " + result.getSuccessCount() + " of "
+                + pending.observations.size() + " records");
+        return true;
+    }
+
+    /**
+     * Uploads one record on its own. Only a record the server rejects is discarded; a server
+     * error or timeout throws, leaving it for the next pass.
+     */
+    private void uploadSingle(List<DatabaseObservation> observations, String[] entries, int index)
+            throws IOException {
+        DatabaseObservation observation = observations.get(index);
+        try {
+            Log.d(TAG, "Trying to upload");
+            observation.setUploaded(true);
+            if (observation.getObservationBinary() != null
+                    && networkLogger.getEncoding() == NetworkLogger.Encoding.BINARY) {
+                // already in the wire format
+                networkLogger.uploadBinaryEntry(observation.getObservationBinary());
+            } else {
+                networkLogger.uploadJsonEntry(entry(observations, entries, index));
+            }
+            markUploaded(observation);
+            Log.d(TAG, "Uploaded record");
+        } catch(InvalidParameterException ex) {
+            Log.d(TAG, "Invalid entry - removing");
+            discard(observation);
         }
     }
 
+    private void discard(DatabaseObservation observation) {
+        pageDiscarded.add(observation);
+    }
+
+    private void markUploaded(DatabaseObservation observation) {
+        observation.setUploaded(false);
+        observation.setUploadedSucessfully(true);
+        pageUploaded.add(observation);
+    }
+
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Caches the observation in the binary format, which is cheap to encode and compact. It is
+     * encoded for the wire when it is uploaded.
+     */
     @Override
     public void log(NetworkStat stat, ObservingDevice thisDevice) {
-
         DatabaseObservation databaseObservation = new DatabaseObservation();
         try {
-            databaseObservation.setObservationJson(stat.toJSON(thisDevice));
+            databaseObservation.setObservationBinary(stat.encodeBinary(thisDevice).toByteArray());
         } catch (JSONException e) {
             Log.d(TAG, e.toString());
+            return;
         }
+        databaseObservation.setTimestamp(stat.getTimestamp());
+        cache(databaseObservation);
+    }
+
+    /**
+     * Caches an observation which was already encoded, ie: one spilled by the LogDispatcher.
+     */
+    @Override
+    public void logJson(String json) {
+        DatabaseObservation databaseObservation = new DatabaseObservation();
+        databaseObservation.setObservationJson(json);
+        cache(databaseObservation);
+    }
 
+    @Override
+    public boolean canLogJson() {
+        return true;
+    }
+
+    private void cache(DatabaseObservation databaseObservation) {
         databaseObservation.setUploaded(false);
         databaseObservation.setUploadedSucessfully(false);
 
+        GroupCommitBuffer<DatabaseObservation> buffer = writeBuffer;
+        if (buffer != null) {
+            try {
+                buffer.add(databaseObservation);
+                return;
+            } catch (IllegalStateException ex) {
+                //stopped since, so write it straight away
+            }
+        }
         try {
-            db.databaseObservationDao().insert(databaseObservation);
-            eventBus.post(new LogEvent(LogEvent.EventType.SUCCESS, LogEvent.LogType.DB, 1));
+            insertAll(Collections.singletonList(databaseObservation));
+            onDurable(Collections.singletonList(databaseObservation));
         } catch( Exception ex ) {
             //this occurs if the storage space is full
             eventBus.post(new LogEvent(LogEvent.EventType.FAILURE, LogEvent.LogType.DB, 1));
+            retentionManager.runNow();
+        }
+    }
+
+    /**
+     * Inserts the observations in a single transaction.
+     */
+    private void insertAll(List<DatabaseObservation> observations) {
+        long[] ids = db.databaseObservationDao().insertAll(
+                observations.toArray(new DatabaseObservation[0]));
+        for (int i = 0; i < ids.length; i++) {
+            observations.get(i).setId(ids[i]);
+        }
+    }
+
+    private void onDurable(List<DatabaseObservation> observations) {
+        uploadScheduler.signal();
+        eventBus.post(new LogEvent(LogEvent.EventType.SUCCESS, LogEvent.LogType.DB,
+                observations.size()));
+        DurabilityListener listener = durabilityListener;
+        if (listener != null) {
+            listener.onDurable(observations);
         }
     }
 
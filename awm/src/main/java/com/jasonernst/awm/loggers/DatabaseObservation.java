@@ -2,12 +2,19 @@ package com.jasonernst.awm.loggers;
 
 import androidx.room.ColumnInfo;
 import androidx.room.Entity;
+import androidx.room.Index;
 import androidx.room.PrimaryKey;
 
 import lombok.Data;
 
+/**
+ * A cached observation. Observations are stored in the binary format, with the time of the
+ * scan, and only encoded for the wire when they are uploaded. Rows cached before version 3 of
+ * the database, and observations which reach the cache already encoded, hold JSON instead.
+ */
 @Data
-@Entity(tableName = "dataobservation")
+@Entity(tableName = "dataobservation",
+        indices = {@Index("uploaded"), @Index("uploadedsuccesfully")})
 public class DatabaseObservation {
 
     @PrimaryKey(autoGenerate = true) @ColumnInfo(name = "id")
@@ -21,4 +28,13 @@ public class DatabaseObservation {
 
     @ColumnInfo(name = "observation_json")
     private String observationJson;
+
+    @ColumnInfo(name = "observation_binary", typeAffinity = ColumnInfo.BLOB)
+    private byte[] observationBinary;
+
+    /**
+     * When the scan completed, in ms since the epoch, or 0 for rows which hold JSON.
+     */
+    @ColumnInfo(name = "timestamp", defaultValue = "0")
+    private long timestamp;
 }
@@ -17,24 +17,53 @@ public interface DatabaseObservationDao {
     @Query("SELECT * FROM dataobservation WHERE uploaded = 1")
     List<DatabaseObservation> getUploaded();
 
+    /**
+     * @deprecated loads the whole backlog at once, use getNonUploadedPage
+     */
+    @Deprecated
     @Query("SELECT * FROM dataobservation WHERE uploaded = 0")
     List<DatabaseObservation> getNonUploaded();
 
-    @Query("SELECT COUNT(*) FROM dataobservation WHERE uploadedsuccesfully = 0")
+    /**
+     * @return up to limit records not yet uploaded successfully, with ids greater than afterId,
+     * in order of id. Pass the id of the last record of a page to get the next page.
+     */
+    @Query("SELECT * FROM dataobservation WHERE uploadedsuccesfully = 0 AND id > :afterId "
+            + "ORDER BY id LIMIT :limit")
+    List<DatabaseObservation> getNonUploadedPage(long afterId, int limit);
+
+    // the counts are read from the counters kept by triggers rather than counting rows
+
+    @Query("SELECT (SELECT value FROM observationcounters WHERE name = 'total')"
+            + " - (SELECT value FROM observationcounters WHERE name = 'uploaded')")
     int getCountNonUploaded();
 
-    @Query("SELECT COUNT(*) FROM dataobservation WHERE uploadedsuccesfully = 1")
+    @Query("SELECT value FROM observationcounters WHERE name = 'uploaded'")
     int getCountUploaded();
 
-    @Query("SELECT COUNT(*) FROM dataobservation WHERE uploaded = 1")
+    @Query("SELECT value FROM observationcounters WHERE name = 'inprogress'")
     int getCountInProgress();
 
-    @Query("SELECT COUNT(*) FROM dataobservation")
+    @Query("SELECT value FROM observationcounters WHERE name = 'total'")
     int getCount();
 
     @Query("SELECT * FROM dataobservation WHERE id = :userid")
     DatabaseObservation getById(int userid);
 
+    @Query("SELECT id FROM dataobservation ORDER BY id LIMIT :limit")
+    List<Long> getOldestIds(int limit);
+
+    @Query("DELETE FROM dataobservation WHERE id IN (SELECT id FROM dataobservation "
+            + "ORDER BY id LIMIT :limit)")
+    int deleteOldest(int limit);
+
+    @Query("DELETE FROM dataobservation WHERE id IN (SELECT id FROM dataobservation "
+            + "WHERE uploadedsuccesfully = 1 ORDER BY id LIMIT :limit)")
+    int deleteOldestUploaded(int limit);
+
+    @Query("DELETE FROM dataobservation WHERE id IN (:ids)")
+    int deleteByIds(List<Long> ids);
+
     @Insert
     long[] insertAll(DatabaseObservation ... databaseObservations);
 
@@ -42,7 +71,7 @@ public interface DatabaseObservationDao {
     long insert(DatabaseObservation databaseObservation);
 
     @Delete
-    void delete(DatabaseObservation databaseObservation);
+    void delete(DatabaseObservation ... databaseObservations);
 
     @Update
     void updateObservation(DatabaseObservation ... databaseObservations);
@@ -0,0 +1,173 @@
+package com.jasonernst.awm.loggers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects records and writes them in groups, so many records share one transaction and one
+ * sync to storage instead of paying for one each.
+ *
+ * A group is written once it holds maxRecords records, from the thread adding the last one, or
+ * maxDelayMillis after its first record was added, from the buffer's own thread. Groups are
+ * written one at a time, in the order they were collected.
+ */
+public class GroupCommitBuffer<T> {
+
+    /**
+     * Writes a group of records durably, ie: in a single transaction.
+     */
+    public interface Sink<T> {
+        void write(List<T> records) throws Exception;
+    }
+
+    /**
+     * Told the outcome of each group. Called on the thread which wrote it.
+     */
+    public interface Listener<T> {
+        void onDurable(List<T> records);
+        void onFailed(List<T> records, Exception ex);
+    }
+
+    private static final long CLOSE_TIMEOUT_MILLIS = 5000;
+
+    private final Logger logger = LoggerFactory.getLogger(GroupCommitBuffer.class);
+    private final Sink<T> sink;
+    private final Listener<T> listener;
+    private final int maxRecords;
+    private final long maxDelayMillis;
+    private final ScheduledExecutorService timer;
+
+    private final Object writeLock = new Object();
+    private List<T> pending;
+    private ScheduledFuture<?> scheduledFlush;
+    private boolean closed;
+
+    public GroupCommitBuffer(Sink<T> sink, Listener<T> listener, int maxRecords,
+                             long maxDelayMillis) {
+        if (maxRecords < 1) {
+            throw new IllegalArgumentException("maxRecords must be at least 1");
+        }
+        this.sink = sink;
+        this.listener = listener;
+        this.maxRecords = maxRecords;
+        this.maxDelayMillis = maxDelayMillis;
+        this.pending = new ArrayList<>(maxRecords);
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "awm-group-commit");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Adds a record to the current group, writing the group if that fills it.
+     * @throws IllegalStateException if the buffer was closed
+     */
+    public void add(T record) {
+        boolean full = false;
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Buffer closed");
+            }
+            pending.add(record);
+            if (pending.size() >= maxRecords) {
+                full = true;
+            } else if (pending.size() == 1) {
+                scheduledFlush = timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, maxDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes whatever has been collected so far, on the calling thread.
+     */
+    public void flush() {
+        // taking the group under the write lock keeps the groups in order
+        synchronized (writeLock) {
+            List<T> records;
+            synchronized (this) {
+                records = takePending();
+            }
+            write(records);
+        }
+    }
+
+    /**
+     * @return the number of records waiting to be written.
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Writes whatever has been collected, on the buffer's own thread, waits for it to be durable
+     * and stops the buffer. Records added afterwards are refused.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        // the buffer's thread, rather than the caller's which may not be allowed to do i/o
+        Future<?> finalFlush = timer.submit(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        });
+        timer.shutdown();
+        try {
+            finalFlush.get(CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            logger.warn("Failed writing the last records before closing", ex);
+        }
+    }
+
+    private List<T> takePending() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        List<T> records = pending;
+        pending = new ArrayList<>(maxRecords);
+        return records;
+    }
+
+    private void write(List<T> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        try {
+            sink.write(records);
+        } catch (Exception ex) {
+            logger.warn("Failed writing {} records", records.size(), ex);
+            listener.onFailed(records, ex);
+            return;
+        }
+        listener.onDurable(records);
+    }
+}
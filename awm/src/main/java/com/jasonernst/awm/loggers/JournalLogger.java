@@ -0,0 +1,307 @@
+package com.jasonernst.awm.loggers;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.anadeainc.rxbus.Bus;
+import com.anadeainc.rxbus.BusProvider;
+
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import com.jasonernst.awm.ObservingDevice;
+import com.jasonernst.awm.encoders.JsonStreamWriter;
+import com.jasonernst.awm.stats.NetworkStat;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Caches observations in a SegmentJournal rather than the observation database, for collection
+ * rates at which a SQLite insert per observation doesn't keep up. Observations are appended
+ * as compact JSON, and uploaded in batches straight from the mapped segments.
+ *
+ * Records are uploaded in the order they were logged, and the journal only moves past the
+ * ones the server stored or rejected: a record the server asks to retry holds back the
+ * records after it, which are sent again with it on the next pass.
+ */
+public class JournalLogger implements StatsLogger, JsonLogger {
+
+    private final String TAG = JournalLogger.class.getCanonicalName();
+    private static final String JOURNAL_DIRECTORY = "awm-journal";
+    // how long stop() waits for an upload in progress, which may be on the UI thread
+    static final long STOP_JOIN_MILLIS = 1000;
+    private Bus eventBus = BusProvider.getInstance();
+    private NetworkLogger networkLogger;
+    private final File directory;
+    private volatile SegmentJournal journal;
+    private volatile boolean running;
+    private volatile Thread networkThread;
+    private long evicted;
+
+    /**
+     * Paces the upload loop. Call signal() on it to have a waiting loop check for uploads now,
+     * for instance after coming back online.
+     */
+    @Getter
+    private final UploadScheduler uploadScheduler = new UploadScheduler();
+
+    /**
+     * The size of each segment file and the most segments kept, which together cap the space
+     * used. Take effect on the next start().
+     */
+    @Getter @Setter
+    private int segmentBytes = SegmentJournal.DEFAULT_SEGMENT_BYTES;
+
+    @Getter @Setter
+    private int maxSegments = SegmentJournal.DEFAULT_MAX_SEGMENTS;
+
+    /**
+     * The most records sent in a single upload request.
+     */
+    @Getter @Setter
+    private int batchRecords = 50;
+
+    /**
+     * The most bytes of records sent in a single upload request. A record larger than this is
+     * still sent, on its own.
+     */
+    @Getter @Setter
+    private long batchBytes = 256 * 1024;
+
+    @Getter @Setter
+    private NetworkLogger.BatchFormat batchFormat = NetworkLogger.BatchFormat.NDJSON;
+
+    public JournalLogger(Context context, NetworkLogger networkLogger) {
+        this(new File(context.getFilesDir(), JOURNAL_DIRECTORY), networkLogger);
+    }
+
+    public JournalLogger(File directory, NetworkLogger networkLogger) {
+        this.directory = directory;
+        this.networkLogger = networkLogger;
+    }
+
+    /**
+     * Waits for the upload thread of the last run, if it is still finishing an upload, so two
+     * journals are never open on the same directory.
+     */
+    @Override
+    public void start() throws Exception {
+        Thread previous = networkThread;
+        if (previous != null) {
+            previous.join();
+        }
+        journal = SegmentJournal.open(directory, segmentBytes, maxSegments);
+        evicted = 0;
+        running = true;
+        networkThread = new Thread(this::uploadLogs, "awm-journal-upload");
+        networkThread.start();
+    }
+
+    /**
+     * Forces the journal to storage before stopping. Gives the upload thread a moment to finish;
+     * one still blocked on the network stops at the end of that upload, which the connection
+     * timeouts bound, and the next start() waits for it.
+     */
+    @Override
+    public void stop() {
+        running = false;
+        Thread thread = networkThread;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(STOP_JOIN_MILLIS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // only syncs, the segments stay mapped for a thread which is still finishing
+        SegmentJournal current = journal;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    @Override
+    public void log(NetworkStat stat, ObservingDevice thisDevice) {
+        final JsonStreamWriter json;
+        try {
+            json = stat.encodeJSON(thisDevice, JsonStreamWriter.Style.COMPACT);
+        } catch (JSONException ex) {
+            Log.d(TAG, ex.toString());
+            return;
+        }
+        append(new UploadClient.Body() {
+            @Override
+            public int length() {
+                return json.size();
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                json.writeTo(out);
+            }
+        });
+    }
+
+    /**
+     * Caches an observation which was already encoded, ie: one spilled by the LogDispatcher.
+     */
+    @Override
+    public void logJson(String json) {
+        if (json == null || json.length() == 0) {
+            return;
+        }
+        // entries are sent one per line, and line breaks only ever appear between tokens
+        append(UploadClient.body(json.replace("\n", "").getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public boolean canLogJson() {
+        return true;
+    }
+
+    private void append(UploadClient.Body body) {
+        SegmentJournal current = journal;
+        if (current == null) {
+            eventBus.post(new LogEvent(LogEvent.EventType.FAILURE, LogEvent.LogType.DISK, 1));
+            return;
+        }
+        try {
+            current.append(body);
+        } catch (IOException | IllegalArgumentException ex) {
+            //this occurs if the storage space is full
+            Log.d(TAG, "Failed journaling: " + ex.toString());
+            eventBus.post(new LogEvent(LogEvent.EventType.FAILURE, LogEvent.LogType.DISK, 1));
+            return;
+        }
+        uploadScheduler.signal();
+        eventBus.post(new LogEvent(LogEvent.EventType.SUCCESS, LogEvent.LogType.DISK, 1));
+        postEvictions(current);
+    }
+
+    private void postEvictions(SegmentJournal current) {
+        long total = current.getEvictedCount();
+        long dropped;
+        synchronized (this) {
+            dropped = total - evicted;
+            evicted = total;
+        }
+        if (dropped > 0) {
+            eventBus.post(new LogEvent(LogEvent.EventType.EVICTED, LogEvent.LogType.DISK,
+                    (int) Math.min(Integer.MAX_VALUE, dropped)));
+        }
+    }
+
+    public void uploadLogs() {
+        while (running && !Thread.currentThread().isInterrupted()) {
+            try {
+                uploadScheduler.await();
+            } catch (InterruptedException ex) {
+                return;
+            }
+            SegmentJournal current = journal;
+            // the loop wakes at least every idle recheck, so this bounds what power loss can take
+            current.sync();
+            if (!networkLogger.isOnline() || current.isEmpty()) {
+                uploadScheduler.idle();
+                continue;
+            }
+
+            int resolved;
+            try {
+                resolved = uploadBacklog(current);
+            } catch (IOException ex) {
+                Log.d(TAG, "Failed uploading: " + ex.toString());
+                resolved = -1;
+            }
+            if (resolved <= 0) {
+                // the server is unreachable or keeps declining the same records
+                uploadScheduler.backoff();
+            } else if (!current.isEmpty()) {
+                uploadScheduler.drain();
+            } else {
+                uploadScheduler.idle();
+            }
+        }
+    }
+
+    /**
+     * Uploads batches until the journal is empty or a record has to be retried.
+     * @return the number of records uploaded or discarded
+     */
+    private int uploadBacklog(SegmentJournal current) throws IOException {
+        int resolved = 0;
+        while (running && !Thread.currentThread().isInterrupted()) {
+            SegmentJournal.Batch batch = current.read(Math.max(batchRecords, 1), batchBytes);
+            if (batch.isEmpty()) {
+                break;
+            }
+            BatchResult result = networkLogger.postBatch(new BatchBody(batch, batchFormat),
+                    batch.size(), batchFormat);
+            int done = 0;
+            while (done < batch.size() && (result.isSuccess(done) || result.isRejected(done))) {
+                if (result.isRejected(done)) {
+                    Log.d(TAG, "Invalid entry - removing: " + result.getMessage(done));
+                }
+                done++;
+            }
+            if (done > 0) {
+                current.acknowledge(batch.getEnd(done - 1));
+                resolved += done;
+            }
+            if (done < batch.size()) {
+                Log.d(TAG, "Entry not stored, will retry: " + result.getMessage(done));
+                break;
+            }
+        }
+        return resolved;
+    }
+
+    /**
+     * A batch of journal records as an upload body, written from the mapped segments without
+     * copying them into a request buffer first.
+     */
+    private static final class BatchBody implements UploadClient.Body {
+        private final SegmentJournal.Batch batch;
+        private final NetworkLogger.BatchFormat format;
+
+        BatchBody(SegmentJournal.Batch batch, NetworkLogger.BatchFormat format) {
+            this.batch = batch;
+            this.format = format;
+        }
+
+        @Override
+        public int length() {
+            // a separator between records, and brackets or a trailing newline
+            int framing = format == NetworkLogger.BatchFormat.JSON_ARRAY ? batch.size() + 1
+                    : batch.size();
+            return (int) batch.getBytes() + framing;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            boolean array = format == NetworkLogger.BatchFormat.JSON_ARRAY;
+            WritableByteChannel channel = Channels.newChannel(out);
+            if (array) {
+                out.write('[');
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                if (i > 0) {
+                    out.write(array ? ',' : '\n');
+                }
+                ByteBuffer record = batch.getRecord(i);
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+            }
+            out.write(array ? ']' : '\n');
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.jasonernst.awm.loggers;
+
+/**
+ * A logger which can also take an observation which was already encoded as json, for instance
+ * one which was spilled to disk before it could be logged.
+ */
+public interface JsonLogger {
+    void logJson(String json) throws Exception;
+
+    /**
+     * @return whether logJson() can log an observation now, rather than fail and lose it, ie:
+     * false while a logger which uploads is offline.
+     */
+    boolean canLogJson();
+}
@@ -0,0 +1,510 @@
+package com.jasonernst.awm.loggers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.jasonernst.awm.ObservingDevice;
+import com.jasonernst.awm.encoders.JsonStreamWriter;
+import com.jasonernst.awm.stats.NetworkStat;
+
+/**
+ * Hands observations to the loggers on a fixed number of worker threads, so a burst of
+ * observations can't start a burst of threads.
+ *
+ * Observations wait in a bounded queue. When it is full, the overflow policy decides what
+ * happens to the next one. With a single worker, observations are logged in the order they were
+ * dispatched; with more, several may be logged at once.
+ *
+ * The workers have threads of their own, rather than occupying those of an executor which
+ * other work is scheduled on.
+ *
+ * Spilled observations are always JSON, in the COMPACT style, whatever encoding the logger
+ * would have used for them, since they are handed back through JsonLogger.logJson().
+ */
+public class LogDispatcher {
+
+    public enum OverflowPolicy {
+        /**
+         * Wait for room in the queue. This holds up the thread calling dispatch(), which is
+         * usually the one delivering bus events.
+         */
+        BLOCK,
+        /**
+         * Discard the oldest queued observation to make room for the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * Encode the observation as json and append it to a file, to be logged once the queue
+         * has drained. Falls back to DROP_OLDEST for loggers which aren't a JsonLogger. A
+         * NetworkLogger using the BINARY encoding uploads spilled observations as JSON.
+         */
+        SPILL_TO_DISK,
+    }
+
+    /**
+     * Told when a dispatched observation won't be logged after all.
+     */
+    public interface DropListener {
+        /**
+         * Called on whichever thread gave up on the observation: the one dispatching, a worker,
+         * or the one stopping the dispatcher.
+         */
+        void onDropped(NetworkStat stat);
+    }
+
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final int DEFAULT_WORKERS = 2;
+    private static final long POLL_MILLIS = 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(LogDispatcher.class);
+    private final int workers;
+    private final BlockingQueue<Entry> queue;
+    private final File spillDirectory;
+    private volatile OverflowPolicy overflowPolicy;
+
+    private final Map<StatsLogger, SpillFile> spillFiles = new HashMap<>();
+    private final AtomicBoolean replaying = new AtomicBoolean();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private final List<Thread> running = new ArrayList<>();
+    private volatile boolean started;
+    private volatile DropListener dropListener;
+
+    private static class Entry {
+        final StatsLogger statsLogger;
+        final NetworkStat stat;
+        final ObservingDevice device;
+
+        Entry(StatsLogger statsLogger, NetworkStat stat, ObservingDevice device) {
+            this.statsLogger = statsLogger;
+            this.stat = stat;
+            this.device = device;
+        }
+    }
+
+    /**
+     * @param spillDirectory where SPILL_TO_DISK keeps its files, one per logger. May be null if
+     *                       that policy isn't used.
+     */
+    public LogDispatcher(int workers, int capacity, OverflowPolicy overflowPolicy,
+                         File spillDirectory) {
+        if (workers < 1 || capacity < 1) {
+            throw new IllegalArgumentException("Need at least one worker and one queue slot");
+        }
+        this.workers = workers;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.spillDirectory = spillDirectory;
+    }
+
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        for (int i = 0; i < workers; i++) {
+            Thread thread = new Thread(this::work, "awm-dispatch-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            running.add(thread);
+        }
+    }
+
+    /**
+     * Stops the workers. Observations still queued are spilled if the policy is SPILL_TO_DISK,
+     * and are otherwise discarded.
+     */
+    public synchronized void stop() {
+        started = false;
+        for (Thread worker : running) {
+            worker.interrupt();
+        }
+        running.clear();
+
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            if (overflowPolicy != OverflowPolicy.SPILL_TO_DISK || !spill(entry)) {
+                dropped.incrementAndGet();
+                notifyDropped(entry);
+            }
+        }
+    }
+
+    /**
+     * Queues the observation to be logged by statsLogger.
+     */
+    public void dispatch(StatsLogger statsLogger, NetworkStat stat, ObservingDevice device)
+            throws InterruptedException {
+        Entry entry = new Entry(statsLogger, stat, device);
+        if (queue.offer(entry)) {
+            return;
+        }
+        switch (overflowPolicy) {
+            case BLOCK:
+                queue.put(entry);
+                break;
+            case SPILL_TO_DISK:
+                if (spill(entry)) {
+                    break;
+                }
+                // fall through
+            case DROP_OLDEST:
+            default:
+                while (!queue.offer(entry)) {
+                    Entry oldest = queue.poll();
+                    if (oldest != null) {
+                        dropped.incrementAndGet();
+                        notifyDropped(oldest);
+                    }
+                }
+                break;
+        }
+    }
+
+    /**
+     * Picks up observations spilled for the logger by a previous run, so they are logged once
+     * the queue next drains.
+     */
+    public void restoreSpilled(StatsLogger statsLogger) {
+        if (spillDirectory != null && statsLogger instanceof JsonLogger) {
+            spillFile(statsLogger);
+        }
+    }
+
+    public void setDropListener(DropListener dropListener) {
+        this.dropListener = dropListener;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * @return the number of observations waiting in memory to be logged.
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getCapacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    /**
+     * @return the number of observations waiting on disk to be logged.
+     */
+    public long getSpillDepth() {
+        long depth = 0;
+        synchronized (spillFiles) {
+            for (SpillFile spillFile : spillFiles.values()) {
+                depth += spillFile.count;
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * @return the number of observations discarded because the queue was full, since creation.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of observations spilled to disk, since creation.
+     */
+    public long getSpilledCount() {
+        return spilled.get();
+    }
+
+    private void work() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Entry entry = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (entry != null) {
+                    try {
+                        entry.statsLogger.log(entry.stat, entry.device);
+                    } catch (InterruptedException ex) {
+                        throw ex;
+                    } catch (Exception ex) {
+                        logger.warn("Failed logging observation", ex);
+                        notifyDropped(entry);
+                    }
+                }
+                if (queue.isEmpty()) {
+                    replaySpilled();
+                }
+            }
+        } catch (InterruptedException ex) {
+            // stopped
+        }
+    }
+
+    private boolean spill(Entry entry) {
+        if (spillDirectory == null || !(entry.statsLogger instanceof JsonLogger)) {
+            return false;
+        }
+        String json;
+        try {
+            json = entry.stat.toJSON(entry.device, JsonStreamWriter.Style.COMPACT);
+        } catch (Exception ex) {
+            // nothing can log it either, ie: no position yet
+            dropped.incrementAndGet();
+            notifyDropped(entry);
+            return true;
+        }
+        try {
+            spillFile(entry.statsLogger).append(json);
+            spilled.incrementAndGet();
+            return true;
+        } catch (IOException ex) {
+            logger.warn("Failed spilling observation", ex);
+            return false;
+        }
+    }
+
+    private void notifyDropped(Entry entry) {
+        DropListener listener = dropListener;
+        if (listener != null) {
+            listener.onDropped(entry.stat);
+        }
+    }
+
+    private SpillFile spillFile(StatsLogger statsLogger) {
+        synchronized (spillFiles) {
+            SpillFile spillFile = spillFiles.get(statsLogger);
+            if (spillFile == null) {
+                spillFile = new SpillFile(new File(spillDirectory,
+                        statsLogger.getClass().getSimpleName() + ".ndjson"));
+                spillFiles.put(statsLogger, spillFile);
+            }
+            return spillFile;
+        }
+    }
+
+    /**
+     * Logs whatever was spilled, once there is nothing queued in memory. Only one worker replays
+     * at a time.
+     */
+    private void replaySpilled() throws InterruptedException {
+        if (spillDirectory == null || !replaying.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            List<Map.Entry<StatsLogger, SpillFile>> files;
+            synchronized (spillFiles) {
+                files = new ArrayList<>(spillFiles.entrySet());
+            }
+            for (Map.Entry<StatsLogger, SpillFile> file : files) {
+                JsonLogger jsonLogger = (JsonLogger) file.getKey();
+                if (!jsonLogger.canLogJson()) {
+                    // left on disk until it can, ie: back online
+                    continue;
+                }
+                List<String> lines;
+                try {
+                    lines = file.getValue().take();
+                } catch (IOException ex) {
+                    logger.warn("Failed reading spilled observations", ex);
+                    continue;
+                }
+                replay(file.getValue(), jsonLogger, lines);
+            }
+        } finally {
+            replaying.set(false);
+        }
+    }
+
+    /**
+     * Logs the lines taken from the spill file, putting back those not logged yet if the worker
+     * is stopped or the logger can't take them any more.
+     */
+    private void replay(SpillFile spillFile, JsonLogger jsonLogger, List<String> lines)
+            throws InterruptedException {
+        for (int i = 0; i < lines.size(); i++) {
+            if (Thread.currentThread().isInterrupted()) {
+                putBack(spillFile, lines, i);
+                throw new InterruptedException();
+            }
+            try {
+                jsonLogger.logJson(lines.get(i));
+            } catch (InterruptedException ex) {
+                putBack(spillFile, lines, i);
+                throw ex;
+            } catch (IOException ex) {
+                // it went offline or the server can't take it for now, not the line's fault
+                logger.warn("Failed logging spilled observation, will retry", ex);
+                putBack(spillFile, lines, i);
+                return;
+            } catch (Exception ex) {
+                if (!jsonLogger.canLogJson()) {
+                    putBack(spillFile, lines, i);
+                    return;
+                }
+                logger.warn("Failed logging spilled observation", ex);
+            }
+        }
+    }
+
+    private void putBack(SpillFile spillFile, List<String> lines, int from) {
+        try {
+            spillFile.putBack(lines.subList(from, lines.size()));
+        } catch (IOException ex) {
+            logger.warn("Failed putting back " + (lines.size() - from)
+                    + " spilled observations", ex);
+            dropped.addAndGet(lines.size() - from);
+        }
+    }
+
+    /**
+     * Newline delimited json observations waiting for one logger.
+     */
+    private static class SpillFile {
+        private final File file;
+        private volatile long count;
+
+        SpillFile(File file) {
+            this.file = file;
+            this.count = countLines(file);
+        }
+
+        private static long countLines(File file) {
+            long lines = 0;
+            if (!file.exists()) {
+                return lines;
+            }
+            try {
+                FileInputStream in = new FileInputStream(file);
+                try {
+                    byte[] chunk = new byte[8192];
+                    int read;
+                    while ((read = in.read(chunk)) != -1) {
+                        for (int i = 0; i < read; i++) {
+                            if (chunk[i] == '\n') {
+                                lines++;
+                            }
+                        }
+                    }
+                } finally {
+                    in.close();
+                }
+            } catch (IOException ex) {
+                // take() will find out
+                return 1;
+            }
+            return lines;
+        }
+
+        synchronized void append(String json) throws IOException {
+            File parent = file.getParentFile();
+            if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                throw new IOException("Can't create " + parent);
+            }
+            OutputStream out = new FileOutputStream(file, true);
+            try {
+                Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                writer.write(json);
+                writer.write('\n');
+                writer.flush();
+            } finally {
+                out.close();
+            }
+            count++;
+        }
+
+        /**
+         * Puts lines taken but not logged back in front of those spilled since.
+         */
+        synchronized void putBack(List<String> lines) throws IOException {
+            if (lines.isEmpty()) {
+                return;
+            }
+            List<String> later = new ArrayList<>();
+            if (file.exists()) {
+                later = read();
+            }
+            File parent = file.getParentFile();
+            if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                throw new IOException("Can't create " + parent);
+            }
+            File rewritten = new File(file.getPath() + ".tmp");
+            OutputStream out = new FileOutputStream(rewritten);
+            try {
+                Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                for (String line : lines) {
+                    writer.write(line);
+                    writer.write('\n');
+                }
+                for (String line : later) {
+                    writer.write(line);
+                    writer.write('\n');
+                }
+                writer.flush();
+            } finally {
+                out.close();
+            }
+            if (!rewritten.renameTo(file)) {
+                throw new IOException("Can't replace " + file);
+            }
+            count = lines.size() + later.size();
+        }
+
+        /**
+         * @return everything spilled so far, which is removed from the file.
+         */
+        synchronized List<String> take() throws IOException {
+            List<String> lines = new ArrayList<>();
+            if (count == 0 || !file.exists()) {
+                count = 0;
+                return lines;
+            }
+            lines = read();
+            if (!file.delete()) {
+                throw new IOException("Can't remove " + file);
+            }
+            count = 0;
+            return lines;
+        }
+
+        private List<String> read() throws IOException {
+            List<String> lines = new ArrayList<>();
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.length() > 0) {
+                        lines.add(line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            return lines;
+        }
+    }
+}
@@ -5,7 +5,9 @@ public class LogEvent {
     public enum EventType {
         SUCCESS,
         FAILURE,
-        MALFORMED
+        MALFORMED,
+        // records removed to keep the store within its caps
+        EVICTED
     }
 
     public enum LogType {
@@ -1,10 +1,6 @@
 package com.jasonernst.awm.loggers;
 
 import android.content.Context;
-import android.net.ConnectivityManager;
-import android.net.Network;
-import android.net.NetworkInfo;
-import android.os.Build;
 import android.util.Log;
 import android.util.Pair;
 
@@ -13,30 +9,112 @@ import com.anadeainc.rxbus.BusProvider;
 
 import org.json.JSONException;
 
-import java.io.DataOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.net.HttpURLConnection;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidParameterException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import com.jasonernst.awm.ObservingDevice;
+import com.jasonernst.awm.encoders.BinaryObservationWriter;
+import com.jasonernst.awm.encoders.JsonStreamWriter;
+import com.jasonernst.awm.stats.ConnectivityStats;
 import com.jasonernst.awm.stats.NetworkStat;
+import lombok.Getter;
+import lombok.Setter;
 
-public class NetworkLogger implements StatsLogger {
+public class NetworkLogger implements StatsLogger, JsonLogger {
 
     private static final String TAG = NetworkLogger.class.getCanonicalName();
+    public static final String JSON_CONTENT_TYPE = "application/json;charset=UTF-8";
+    public static final String NDJSON_CONTENT_TYPE = "application/x-ndjson;charset=UTF-8";
+
+    /**
+     * The encodings the server accepts, selected with the Content-Type of the upload.
+     */
+    public enum Encoding {
+        JSON(JSON_CONTENT_TYPE),
+        BINARY(BinaryObservationWriter.CONTENT_TYPE);
+
+        private final String contentType;
+
+        Encoding(String contentType) {
+            this.contentType = contentType;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+    }
+
     private boolean privacy;
     private boolean wifiUploads;
     private String urlString;
     private Bus eventBus;
     private Context context;
 
+    private static final int MAX_UPLOADS_IN_FLIGHT = 4;
+    private final ConnectivityMonitor connectivityMonitor;
+
+    /**
+     * Keeps connections to the server alive between uploads and reports their latency. Null if
+     * the url is invalid.
+     */
+    @Getter
+    private final UploadClient uploadClient;
+
+    /**
+     * The layout of JSON sent directly from log(). PRETTY is the layout the server has always
+     * been sent, COMPACT drops the whitespace.
+     */
+    @Getter @Setter
+    private JsonStreamWriter.Style jsonStyle = JsonStreamWriter.Style.PRETTY;
+
+    /**
+     * The encoding used for observations sent directly from log(). BINARY packs MACs and
+     * numbers and dictionary codes the strings, for metered links. Observations which were
+     * stored as JSON first, ie: spilled by the LogDispatcher, are still uploaded as JSON.
+     */
+    @Getter @Setter
+    private Encoding encoding = Encoding.JSON;
+
+    /**
+     * How the entries of a batch upload are put together.
+     */
+    public enum BatchFormat {
+        JSON_ARRAY(JSON_CONTENT_TYPE),
+        NDJSON(NDJSON_CONTENT_TYPE);
+
+        private final String contentType;
+
+        BatchFormat(String contentType) {
+            this.contentType = contentType;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+    }
+
     public NetworkLogger(Context context, boolean privacy, boolean wifiUploads, String url) {
          eventBus = BusProvider.getInstance();
          this.context = context;
          this.privacy = privacy;
          this.wifiUploads = wifiUploads;
          this.urlString = url;
+         this.connectivityMonitor = new ConnectivityMonitor(context);
+         UploadClient client = null;
+         try {
+             client = new UploadClient(new URL(url), MAX_UPLOADS_IN_FLIGHT);
+         } catch (MalformedURLException ex) {
+             Log.e(TAG, "Invalid upload url, nothing will be uploaded: " + url);
+         }
+         this.uploadClient = client;
     }
 
     /**
@@ -51,100 +129,208 @@ public class NetworkLogger implements StatsLogger {
             throw new InvalidParameterException("Zero sized db entry");
         }
 
-        URL url = new URL(urlString);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("Content-Type", "application/json;charset=UTF-8");
-        conn.setRequestProperty("Accept", "application/json");
-        conn.setDoOutput(true);
-        conn.setDoInput(true);
-
-        DataOutputStream os = new DataOutputStream(conn.getOutputStream());
-        os.writeBytes(jsonData);
-        os.flush();
-        os.close();
+        byte[] body = jsonData.getBytes(StandardCharsets.UTF_8);
         Log.i("UPLOAD PENDING DATA", jsonData);
-        int status = conn.getResponseCode();
-        Log.i("UPLOAD PENDING STATUS", String.valueOf(status));
-        Log.i("UPLOAD PENDING MSG", conn.getResponseMessage());
-        conn.disconnect();
+        checkResponse(client().post(JSON_CONTENT_TYPE, UploadClient.body(body)));
+    }
+
+    /**
+     * Uploads an observation which was already encoded in the binary format.
+     * @throws IOException if the upload fails
+     */
+    public void uploadBinaryEntry(byte[] payload) throws IOException {
+        if(payload == null || payload.length == 0) {
+            throw new InvalidParameterException("Zero sized db entry");
+        }
+        checkResponse(client().post(Encoding.BINARY.getContentType(), UploadClient.body(payload)));
+    }
+
+    /**
+     * Encodes the observation with the configured encoding into a reusable buffer and streams
+     * it out, without building any intermediate strings.
+     * @param stat the observation
+     * @param thisDevice the state of the observing device
+     * @throws JSONException if the observation can't be encoded, ie: there is no position yet
+     * @throws IOException if the upload fails
+     */
+    public void uploadObservation(NetworkStat stat, ObservingDevice thisDevice)
+            throws JSONException, IOException {
+        UploadClient.Body body;
+        if (encoding == Encoding.BINARY) {
+            final BinaryObservationWriter binary = stat.encodeBinary(thisDevice);
+            body = new UploadClient.Body() {
+                @Override
+                public int length() {
+                    return binary.size();
+                }
+
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    binary.writeTo(out);
+                }
+            };
+        } else {
+            final JsonStreamWriter json = stat.encodeJSON(thisDevice, jsonStyle);
+            body = new UploadClient.Body() {
+                @Override
+                public int length() {
+                    return json.size();
+                }
+
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    json.writeTo(out);
+                }
+            };
+        }
+        checkResponse(client().post(encoding.getContentType(), body));
+    }
+
+    private UploadClient client() throws MalformedURLException {
+        if (uploadClient == null) {
+            throw new MalformedURLException("Invalid upload url: " + urlString);
+        }
+        return uploadClient;
+    }
+
+    /**
+     * Splits failures the way BatchResult does: the server rejecting the entry with a 4xx means
+     * it will never be stored, anything else may be retried.
+     * @throws InvalidParameterException if the entry was rejected
+     * @throws IOException if it wasn't stored but may be sent again
+     */
+    private void checkResponse(UploadClient.Response response) throws IOException {
+        Log.i("UPLOAD PENDING STATUS", response.getStatus() + " in "
+                + response.getLatencyMillis() + " ms");
+        Log.i("UPLOAD PENDING MSG", String.valueOf(response.getMessage()));
 
+        int status = response.getStatus();
+        if (status >= 400 && status < 500) {
+           throw new InvalidParameterException(response.getMessage());
+        }
         if (status != 200) {
-           throw new InvalidParameterException(conn.getResponseMessage());
+            throw new IOException("Upload failed: " + status + " " + response.getMessage());
         }
 
         eventBus.post(new LogEvent(LogEvent.EventType.SUCCESS, LogEvent.LogType.NETWORK, 1));
     }
 
+    /**
+     * Uploads several JSON encoded entries in a single request. The server answers with a
+     * result for each entry so that some may be stored while others are rejected.
+     * @param jsonEntries the entries, none of which may be empty
+     * @param format whether to send the entries as a JSON array or newline delimited
+     * @return the result of each entry, in the same order
+     * @throws IOException if the request failed as a whole, in which case none of the entries
+     * were stored.
+     */
+    public BatchResult uploadBatch(List<String> jsonEntries, BatchFormat format)
+            throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if (format == BatchFormat.JSON_ARRAY) {
+            body.write('[');
+        }
+        for (int i = 0; i < jsonEntries.size(); i++) {
+            String entry = jsonEntries.get(i);
+            if (entry == null || entry.length() == 0) {
+                throw new InvalidParameterException("Zero sized entry in batch");
+            }
+            if (i > 0) {
+                body.write(format == BatchFormat.JSON_ARRAY ? ',' : '\n');
+            }
+            if (format == BatchFormat.NDJSON) {
+                // line breaks only ever appear between tokens, string values have them escaped
+                entry = entry.replace("\n", "");
+            }
+            body.write(entry.getBytes(StandardCharsets.UTF_8));
+        }
+        body.write(format == BatchFormat.JSON_ARRAY ? ']' : '\n');
+        return postBatch(UploadClient.body(body.toByteArray()), jsonEntries.size(), format);
+    }
+
+    /**
+     * Uploads a batch whose body was already put together in the given format.
+     * @param entries the number of entries in the body
+     * @return the result of each entry, in the same order
+     * @throws IOException if the request failed as a whole, in which case none of the entries
+     * were stored.
+     */
+    public BatchResult postBatch(UploadClient.Body body, int entries, BatchFormat format)
+            throws IOException {
+        UploadClient.Response response = client().post(format.getContentType(), body);
+        Log.i("UPLOAD BATCH STATUS", response.getStatus() + " for " + entries
+                + " entries in " + response.getLatencyMillis() + " ms");
+        if (response.getStatus() != 200) {
+            throw new IOException("Batch upload failed: " + response.getStatus() + " "
+                    + response.getMessage());
+        }
+
+        BatchResult result;
+        try {
+            result = BatchResult.parse(response.getBody(), entries);
+        } catch (JSONException ex) {
+            throw new IOException("Malformed batch response: " + ex.getMessage());
+        }
+        eventBus.post(new LogEvent(LogEvent.EventType.SUCCESS, LogEvent.LogType.NETWORK,
+                result.getSuccessCount()));
+        return result;
+    }
+
+    /**
+     * Queues a batch upload on one of the upload client's threads, so that several batches can
+     * be in flight at once. Blocks while the most batches allowed are already in flight.
+     */
+    public Future<BatchResult> submitBatch(final List<String> jsonEntries,
+                                           final BatchFormat format)
+            throws InterruptedException, IOException {
+        return client().submit(new Callable<BatchResult>() {
+            @Override
+            public BatchResult call() throws IOException {
+                return uploadBatch(jsonEntries, format);
+            }
+        });
+    }
+
     public boolean isWifiConnected() {
-        Pair<Boolean, Boolean> isConnected = isWifiIsMobileConnected();
-        return isConnected.first;
+        return connectivityMonitor.getStats().isWifiConnected();
     }
 
     public boolean isMobileConnected() {
-        Pair<Boolean, Boolean> isConnected = isWifiIsMobileConnected();
-        return isConnected.second;
+        return connectivityMonitor.getStats().isCellularConnected();
     }
 
     public Pair<Boolean, Boolean> isWifiIsMobileConnected() {
-        ConnectivityManager connMgr =
-                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-        boolean isWifiConn = false;
-        boolean isMobileConn = false;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            for (Network network : connMgr.getAllNetworks()) {
-                NetworkInfo networkInfo = connMgr.getNetworkInfo(network);
-                if (networkInfo.getType() == ConnectivityManager.TYPE_WIFI) {
-                    isWifiConn |= networkInfo.isConnected();
-                }
-                if (networkInfo.getType() == ConnectivityManager.TYPE_MOBILE) {
-                    isMobileConn |= networkInfo.isConnected();
-                }
-            }
-        } else {
-            NetworkInfo[] networkInfos = connMgr.getAllNetworkInfo();
-            if(networkInfos != null) {
-                for (NetworkInfo networkInfo : networkInfos) {
-                    if (networkInfo.getType() == ConnectivityManager.TYPE_WIFI) {
-                        isWifiConn |= networkInfo.isConnected();
-                    }
-                    if (networkInfo.getType() == ConnectivityManager.TYPE_MOBILE) {
-                        isMobileConn |= networkInfo.isConnected();
-                    }
-                }
-            }
-        }
-
-        return new Pair<>(isWifiConn, isMobileConn);
+        ConnectivityStats stats = connectivityMonitor.getStats();
+        return new Pair<>(stats.isWifiConnected(), stats.isCellularConnected());
     }
 
-    public boolean isOnline() {
-        ConnectivityManager connMgr = (ConnectivityManager)
-                context.getSystemService(Context.CONNECTIVITY_SERVICE);
-        NetworkInfo networkInfo = connMgr.getActiveNetworkInfo();
+    public boolean isMetered() {
+        return connectivityMonitor.getStats().isMetered();
+    }
 
-        if(networkInfo == null) {
-            Log.d(TAG, "NETWORK INFO NULL, Can't determine connectivity");
-        } else {
-            Log.d(TAG, "CONNECTED? " + networkInfo.isConnected());
-        }
+    public ConnectivityStats getConnectivity() {
+        return connectivityMonitor.getStats();
+    }
 
-        if (wifiUploads && !isWifiConnected()) {
-            Log.d(TAG, "Wi-Fi uploads only and NOT on Wi-Fi");
+    public boolean isOnline() {
+        ConnectivityStats stats = connectivityMonitor.getStats();
+        if (wifiUploads && !stats.isWifiConnected()) {
             return false;
         }
-
-        return (networkInfo != null && networkInfo.isConnected());
+        return stats.isConnected();
     }
 
     @Override
     public void start() throws Exception {
-
+        connectivityMonitor.start();
     }
 
     @Override
     public void stop() {
-
+        connectivityMonitor.stop();
+        if (uploadClient != null) {
+            uploadClient.close();
+        }
     }
 
     /**
@@ -152,15 +338,30 @@ public class NetworkLogger implements StatsLogger {
      * it should use the uploadJsonEntry function
      * @param stat the NetworkStat to log
      * @param thisDevice the state of the observing device.
+     * @throws JSONException if the observation can't be encoded, ie: there is no position yet
+     * @throws IOException if the upload fails
      */
     @Override
-    public void log(NetworkStat stat, ObservingDevice thisDevice) {
+    public void log(NetworkStat stat, ObservingDevice thisDevice)
+            throws JSONException, IOException {
+        //failures are left to the caller, which may need to know the observation was lost
+        uploadObservation(stat, thisDevice);
+    }
+
+    /**
+     * Uploads an observation which was already encoded, ie: one spilled by the LogDispatcher.
+     */
+    @Override
+    public void logJson(String json) throws IOException {
         try {
-            uploadJsonEntry(stat.toJSON(thisDevice));
-        } catch (JSONException ex) {
+            uploadJsonEntry(json);
+        } catch (InvalidParameterException ex) {
             //ignore this entry if this gets thrown
-        } catch(IOException ex) {
-            //we don't keep track of fails atm so just do nothing
         }
     }
+
+    @Override
+    public boolean canLogJson() {
+        return isOnline();
+    }
 }
@@ -0,0 +1,31 @@
+package com.jasonernst.awm.loggers;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+import lombok.Data;
+
+/**
+ * A running count of rows of the dataobservation table, kept up to date by triggers so the
+ * counts don't need a scan of the table. See ObservationDatabase.
+ */
+@Data
+@Entity(tableName = "observationcounters")
+public class ObservationCounter {
+
+    // every row
+    public static final String TOTAL = "total";
+    // rows with uploadedsuccesfully = 1
+    public static final String UPLOADED = "uploaded";
+    // rows with uploaded = 1
+    public static final String IN_PROGRESS = "inprogress";
+
+    @NonNull
+    @PrimaryKey @ColumnInfo(name = "name")
+    private String name = TOTAL;
+
+    @ColumnInfo(name = "value")
+    private long value;
+}
@@ -1,10 +1,97 @@
 package com.jasonernst.awm.loggers;
 
 
+import androidx.annotation.NonNull;
 import androidx.room.Database;
 import androidx.room.RoomDatabase;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
 
-@Database(entities = {DatabaseObservation.class}, version = 1)
+/**
+ * Version 2 indexes the upload state columns and keeps running counts of the rows in
+ * observationcounters, maintained by triggers on dataobservation, so the record counts shown
+ * to users cost the same at a million rows as at ten.
+ *
+ * Version 3 stores observations in the binary format along with the time of the scan, leaving
+ * the JSON column for the rows cached before.
+ */
+@Database(entities = {DatabaseObservation.class, ObservationCounter.class}, version = 3)
 public abstract class ObservationDatabase extends RoomDatabase {
     public abstract DatabaseObservationDao databaseObservationDao();
+
+    public static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_dataobservation_uploaded` "
+                    + "ON `dataobservation` (`uploaded`)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_dataobservation_uploadedsuccesfully` "
+                    + "ON `dataobservation` (`uploadedsuccesfully`)");
+            db.execSQL("CREATE TABLE IF NOT EXISTS `observationcounters` (`name` TEXT NOT NULL, "
+                    + "`value` INTEGER NOT NULL, PRIMARY KEY(`name`))");
+            createCounterTriggers(db);
+            recount(db);
+        }
+    };
+
+    public static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE `dataobservation` ADD COLUMN `observation_binary` BLOB");
+            db.execSQL("ALTER TABLE `dataobservation` ADD COLUMN `timestamp` INTEGER NOT NULL "
+                    + "DEFAULT 0");
+        }
+    };
+
+    /**
+     * Sets up the counters of a freshly created database.
+     */
+    public static final Callback CALLBACK = new Callback() {
+        @Override
+        public void onCreate(@NonNull SupportSQLiteDatabase db) {
+            createCounterTriggers(db);
+            recount(db);
+        }
+    };
+
+    /**
+     * Each trigger adjusts the counters by the difference the change made to the row.
+     */
+    static void createCounterTriggers(SupportSQLiteDatabase db) {
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS dataobservation_count_insert "
+                + "AFTER INSERT ON dataobservation BEGIN "
+                + counterUpdate("1", "NEW.uploadedsuccesfully", "NEW.uploaded")
+                + "END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS dataobservation_count_delete "
+                + "AFTER DELETE ON dataobservation BEGIN "
+                + counterUpdate("-1", "-OLD.uploadedsuccesfully", "-OLD.uploaded")
+                + "END");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS dataobservation_count_update "
+                + "AFTER UPDATE OF uploaded, uploadedsuccesfully ON dataobservation BEGIN "
+                + counterUpdate("0", "NEW.uploadedsuccesfully - OLD.uploadedsuccesfully",
+                        "NEW.uploaded - OLD.uploaded")
+                + "END");
+    }
+
+    private static String counterUpdate(String total, String uploaded, String inProgress) {
+        return "UPDATE observationcounters SET value = value + (" + total + ") "
+                + "WHERE name = '" + ObservationCounter.TOTAL + "'; "
+                + "UPDATE observationcounters SET value = value + (" + uploaded + ") "
+                + "WHERE name = '" + ObservationCounter.UPLOADED + "'; "
+                + "UPDATE observationcounters SET value = value + (" + inProgress + ") "
+                + "WHERE name = '" + ObservationCounter.IN_PROGRESS + "'; ";
+    }
+
+    /**
+     * Sets the counters from the rows themselves. This is the one place the table is counted:
+     * on creation, migration and after clearAllTables(), which empties the counters too.
+     */
+    static void recount(SupportSQLiteDatabase db) {
+        db.execSQL("INSERT OR REPLACE INTO observationcounters (name, value) VALUES "
+                + "('" + ObservationCounter.TOTAL + "', "
+                + "(SELECT COUNT(*) FROM dataobservation)), "
+                + "('" + ObservationCounter.UPLOADED + "', "
+                + "(SELECT COUNT(*) FROM dataobservation WHERE uploadedsuccesfully = 1)), "
+                + "('" + ObservationCounter.IN_PROGRESS + "', "
+                + "(SELECT COUNT(*) FROM dataobservation WHERE uploaded = 1))");
+    }
 }
@@ -0,0 +1,247 @@
+package com.jasonernst.awm.loggers;
+
+import org.json.JSONException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.jasonernst.awm.ObservingDevice;
+import com.jasonernst.awm.encoders.JsonStreamWriter;
+import com.jasonernst.awm.stats.NetworkStat;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Holds the observations made while offline when not caching them in the database, and
+ * uploads them once back online.
+ *
+ * The most recent capacity observations are kept in memory. Older ones are spilled to a small
+ * SegmentJournal, which is opened the first time it is needed, and which drops its oldest
+ * observations once full. Whatever is still in memory on stop() is spilled too, so nothing is
+ * lost between runs.
+ *
+ * flush() uploads the spilled observations then the ones in memory, in the order they were
+ * logged, and is meant to be called from a background thread when connectivity returns.
+ */
+public class OfflineBuffer implements StatsLogger, JsonLogger {
+
+    public static final int DEFAULT_CAPACITY = 1000;
+    public static final int SPILL_SEGMENT_BYTES = 1024 * 1024;
+    public static final int SPILL_MAX_SEGMENTS = 8;
+
+    private final Logger logger = LoggerFactory.getLogger(OfflineBuffer.class);
+    private final NetworkLogger networkLogger;
+    private final File spillDirectory;
+    private final int capacity;
+    private final ArrayDeque<String> buffer;
+    private final Object flushLock = new Object();
+    private SegmentJournal spill;
+
+    /**
+     * The most observations sent in a single upload request.
+     */
+    @Getter @Setter
+    private volatile int batchRecords = 50;
+
+    @Getter @Setter
+    private volatile NetworkLogger.BatchFormat batchFormat = NetworkLogger.BatchFormat.JSON_ARRAY;
+
+    public OfflineBuffer(NetworkLogger networkLogger, File spillDirectory, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.networkLogger = networkLogger;
+        this.spillDirectory = spillDirectory;
+        this.capacity = capacity;
+        this.buffer = new ArrayDeque<>(capacity);
+    }
+
+    /**
+     * Reopens the observations spilled by an earlier run, if there are any, so the next flush()
+     * uploads them.
+     */
+    @Override
+    public synchronized void start() throws IOException {
+        String[] previous = spillDirectory.list();
+        if (spill == null && previous != null && previous.length > 0) {
+            openSpill();
+        }
+    }
+
+    /**
+     * Spills what is in memory.
+     */
+    @Override
+    public synchronized void stop() {
+        while (!buffer.isEmpty()) {
+            if (!spillOldest()) {
+                logger.warn("Lost {} buffered observations", buffer.size());
+                buffer.clear();
+            }
+        }
+        if (spill != null) {
+            spill.close();
+        }
+    }
+
+    @Override
+    public void log(NetworkStat stat, ObservingDevice thisDevice) throws JSONException {
+        // encoded now, while the device state is that of the observation
+        logJson(stat.toJSON(thisDevice, JsonStreamWriter.Style.COMPACT));
+    }
+
+    @Override
+    public synchronized void logJson(String json) {
+        if (json == null || json.length() == 0) {
+            return;
+        }
+        if (buffer.size() >= capacity && !spillOldest()) {
+            // keep the most recent ones
+            buffer.poll();
+        }
+        buffer.add(json);
+    }
+
+    @Override
+    public boolean canLogJson() {
+        return true;
+    }
+
+    /**
+     * @return the number of observations held in memory.
+     */
+    public synchronized int getBufferedCount() {
+        return buffer.size();
+    }
+
+    /**
+     * @return true if there are observations in memory or spilled.
+     */
+    public synchronized boolean hasPending() {
+        return !buffer.isEmpty() || (spill != null && !spill.isEmpty());
+    }
+
+    /**
+     * Uploads everything held, oldest first, stopping at the first failure or at an entry the
+     * server asks to retry. Only one flush runs at a time.
+     * @return the number of observations uploaded or rejected by the server
+     * @throws IOException if an upload failed, in which case what wasn't sent is kept
+     */
+    public int flush() throws IOException {
+        synchronized (flushLock) {
+            int resolved = 0;
+            int sent;
+            do {
+                sent = flushSpilled();
+                resolved += sent;
+            } while (sent > 0);
+            do {
+                sent = flushBuffered();
+                resolved += sent;
+            } while (sent > 0);
+            return resolved;
+        }
+    }
+
+    /**
+     * @return the number of spilled observations resolved, 0 once there are none or the server
+     * asks for a retry.
+     */
+    private int flushSpilled() throws IOException {
+        SegmentJournal.Batch batch;
+        synchronized (this) {
+            if (spill == null) {
+                return 0;
+            }
+            batch = spill.read(Math.max(batchRecords, 1), Long.MAX_VALUE);
+        }
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        List<String> entries = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            ByteBuffer record = batch.getRecord(i);
+            byte[] bytes = new byte[record.remaining()];
+            record.get(bytes);
+            entries.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        int done = resolvedPrefix(networkLogger.uploadBatch(entries, batchFormat));
+        if (done > 0) {
+            synchronized (this) {
+                spill.acknowledge(batch.getEnd(done - 1));
+            }
+        }
+        return done;
+    }
+
+    /**
+     * @return the number of buffered observations resolved, 0 once there are none or the server
+     * asks for a retry.
+     */
+    private int flushBuffered() throws IOException {
+        List<String> entries = new ArrayList<>();
+        synchronized (this) {
+            Iterator<String> iterator = buffer.iterator();
+            while (iterator.hasNext() && entries.size() < Math.max(batchRecords, 1)) {
+                entries.add(iterator.next());
+            }
+        }
+        if (entries.isEmpty()) {
+            return 0;
+        }
+        int done = resolvedPrefix(networkLogger.uploadBatch(entries, batchFormat));
+        synchronized (this) {
+            // only ever removed here, and spilling takes from the same end, so a spill during
+            // the upload means some of the batch is now spilled and will be sent again
+            for (int i = 0; i < done && !buffer.isEmpty(); i++) {
+                if (buffer.peek() == entries.get(i)) {
+                    buffer.poll();
+                }
+            }
+        }
+        return done;
+    }
+
+    /**
+     * @return how many entries from the start of the batch the server stored or rejected.
+     */
+    private int resolvedPrefix(BatchResult result) {
+        int done = 0;
+        while (done < result.size() && (result.isSuccess(done) || result.isRejected(done))) {
+            if (result.isRejected(done)) {
+                logger.debug("Invalid entry - removing: {}", result.getMessage(done));
+            }
+            done++;
+        }
+        return done;
+    }
+
+    /**
+     * @return false if the oldest observation in memory couldn't be spilled.
+     */
+    private boolean spillOldest() {
+        try {
+            if (spill == null) {
+                openSpill();
+            }
+            spill.append(UploadClient.body(buffer.peek().getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException | IllegalArgumentException ex) {
+            logger.warn("Failed spilling an observation", ex);
+            return false;
+        }
+        buffer.poll();
+        return true;
+    }
+
+    private void openSpill() throws IOException {
+        spill = SegmentJournal.open(spillDirectory, SPILL_SEGMENT_BYTES, SPILL_MAX_SEGMENTS);
+    }
+}
@@ -0,0 +1,281 @@
+package com.jasonernst.awm.loggers;
+
+import android.database.Cursor;
+import android.database.SQLException;
+import android.util.Log;
+
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+import com.anadeainc.rxbus.Bus;
+import com.anadeainc.rxbus.BusProvider;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * Keeps the observation database within a size and row cap, on a background schedule.
+ *
+ * Each run:
+ * - evicts records until the database is under both caps, in the order the eviction policy
+ *   gives,
+ * - when free storage is below lowStorageBytes, first drops records already uploaded and then
+ *   thins the oldest half of the rest to every other record, so there is room to keep logging
+ *   new observations rather than failing to,
+ * - returns the pages freed by deletes to the file system with an incremental vacuum, once
+ *   the database has been switched to incremental vacuum. The switch takes a full vacuum, which
+ *   needs room for a copy of the database, so it waits for a run with that much free.
+ *
+ * Evictions are posted on the bus as a LogEvent of type EVICTED.
+ */
+public class RetentionManager {
+
+    public enum EvictionPolicy {
+        /**
+         * Evict the oldest records, whether they were uploaded or not.
+         */
+        OLDEST_FIRST,
+        /**
+         * Evict the oldest records which were already uploaded, and only then the oldest of
+         * the rest.
+         */
+        UPLOADED_FIRST,
+    }
+
+    private static final String TAG = RetentionManager.class.getCanonicalName();
+    // rows deleted per statement, so a big eviction doesn't hold the database for long
+    private static final int EVICT_CHUNK = 1000;
+    // ids per IN (...) list, under SQLite's limit of 999 variables
+    private static final int IDS_PER_STATEMENT = 500;
+    // pages released per incremental vacuum
+    private static final int VACUUM_PAGES = 2048;
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final ObservationDatabase db;
+    private final File databaseFile;
+    private Bus eventBus = BusProvider.getInstance();
+    private ScheduledExecutorService executor;
+
+    @Getter @Setter
+    private volatile long maxBytes = 64L * 1024 * 1024;
+
+    @Getter @Setter
+    private volatile long maxRows = 500000;
+
+    @Getter @Setter
+    private volatile EvictionPolicy evictionPolicy = EvictionPolicy.UPLOADED_FIRST;
+
+    /**
+     * Below this many bytes free on the storage holding the database, old records are thinned.
+     */
+    @Getter @Setter
+    private volatile long lowStorageBytes = 50L * 1024 * 1024;
+
+    @Getter @Setter
+    private volatile long intervalMillis = 5 * 60 * 1000;
+
+    @Getter
+    private volatile long lastEvicted;
+
+    @Getter
+    private volatile long totalEvicted;
+
+    public RetentionManager(ObservationDatabase db, File databaseFile) {
+        this.db = db;
+        this.databaseFile = databaseFile;
+    }
+
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "awm-retention");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(this::runSafely, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Runs as soon as possible rather than waiting for the schedule, for instance after a
+     * write failed for lack of space.
+     */
+    public synchronized void runNow() {
+        if (executor != null) {
+            executor.execute(this::runSafely);
+        }
+    }
+
+    private void runSafely() {
+        try {
+            run();
+        } catch (Exception ex) {
+            Log.e(TAG, "Retention run failed: " + ex.toString());
+        }
+    }
+
+    /**
+     * Applies the caps once, on the calling thread.
+     * @return the number of records evicted
+     */
+    public long run() {
+        SupportSQLiteDatabase sqlite = db.getOpenHelper().getWritableDatabase();
+        DatabaseObservationDao dao = db.databaseObservationDao();
+
+        long evicted = 0;
+        boolean lowOnStorage = isLowOnStorage();
+        if (lowOnStorage) {
+            Log.w(TAG, "Low on storage, thinning old records");
+            evicted += thin(dao);
+        }
+
+        long rows = dao.getCount();
+        long bytes = usedBytes(sqlite);
+        long excess = Math.max(0, rows - maxRows);
+        if (bytes > maxBytes && rows > 0) {
+            // the bytes are only known for the whole database, so go by the average record
+            long bytesPerRow = Math.max(1, bytes / rows);
+            excess = Math.max(excess, (bytes - maxBytes + bytesPerRow - 1) / bytesPerRow);
+        }
+        evicted += evict(dao, excess);
+
+        // after evicting, so a failure can't stop the database from shrinking
+        if (!enableIncrementalVacuum(sqlite)) {
+            // when short of space, give it all back rather than a bit each run
+            incrementalVacuum(sqlite, lowOnStorage ? 0 : VACUUM_PAGES);
+        }
+
+        lastEvicted = evicted;
+        totalEvicted += evicted;
+        if (evicted > 0) {
+            Log.i(TAG, "Evicted " + evicted + " records");
+            eventBus.post(new LogEvent(LogEvent.EventType.EVICTED, LogEvent.LogType.DB,
+                    (int) Math.min(Integer.MAX_VALUE, evicted)));
+        }
+        return evicted;
+    }
+
+    private long evict(DatabaseObservationDao dao, long count) {
+        long evicted = 0;
+        if (evictionPolicy == EvictionPolicy.UPLOADED_FIRST) {
+            evicted += deleteInChunks(dao, count, true);
+        }
+        evicted += deleteInChunks(dao, count - evicted, false);
+        return evicted;
+    }
+
+    private long deleteInChunks(DatabaseObservationDao dao, long count, boolean uploadedOnly) {
+        long deleted = 0;
+        while (deleted < count) {
+            int chunk = (int) Math.min(EVICT_CHUNK, count - deleted);
+            int rows = uploadedOnly ? dao.deleteOldestUploaded(chunk) : dao.deleteOldest(chunk);
+            if (rows == 0) {
+                break;
+            }
+            deleted += rows;
+        }
+        return deleted;
+    }
+
+    /**
+     * Drops everything already uploaded, then every other record of the oldest half of what is
+     * left.
+     */
+    private long thin(DatabaseObservationDao dao) {
+        long thinned = deleteInChunks(dao, Long.MAX_VALUE, true);
+        int rows = dao.getCount();
+        if (rows < 2) {
+            return thinned;
+        }
+        List<Long> ids = dao.getOldestIds(rows / 2);
+        List<Long> doomed = new ArrayList<>(ids.size() / 2 + 1);
+        for (int i = 1; i < ids.size(); i += 2) {
+            doomed.add(ids.get(i));
+        }
+        for (int start = 0; start < doomed.size(); start += IDS_PER_STATEMENT) {
+            List<Long> chunk = doomed.subList(start,
+                    Math.min(doomed.size(), start + IDS_PER_STATEMENT));
+            thinned += dao.deleteByIds(chunk);
+        }
+        return thinned;
+    }
+
+    private boolean isLowOnStorage() {
+        File directory = databaseFile.getParentFile();
+        return directory != null && directory.getUsableSpace() < lowStorageBytes;
+    }
+
+    private static long usedBytes(SupportSQLiteDatabase sqlite) {
+        long pages = pragma(sqlite, "page_count") - pragma(sqlite, "freelist_count");
+        return pages * sqlite.getPageSize();
+    }
+
+    /**
+     * Databases are created without auto vacuum, and switching to incremental needs a full
+     * vacuum once, outside of any transaction. The vacuum rebuilds the database in a temporary
+     * copy, so it is put off while there isn't room for two more, and if it fails all the same
+     * the next run tries again.
+     * @return whether the full vacuum ran, which gave back every free page already
+     */
+    private boolean enableIncrementalVacuum(SupportSQLiteDatabase sqlite) {
+        if (pragma(sqlite, "auto_vacuum") == AUTO_VACUUM_INCREMENTAL) {
+            return false;
+        }
+        File directory = databaseFile.getParentFile();
+        if (directory == null || directory.getUsableSpace() < 2 * databaseFile.length()) {
+            Log.w(TAG, "Not enough space to enable incremental vacuum yet");
+            return false;
+        }
+        Log.i(TAG, "Enabling incremental vacuum");
+        try {
+            sqlite.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            sqlite.execSQL("VACUUM");
+            return true;
+        } catch (SQLException ex) {
+            Log.w(TAG, "Failed enabling incremental vacuum: " + ex.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Gives back up to pages free pages, 0 for all of them. The pragma only does its work as
+     * its statement is stepped, so the cursor is run through before it is closed.
+     */
+    private static void incrementalVacuum(SupportSQLiteDatabase sqlite, int pages) {
+        Cursor cursor = sqlite.query(pages > 0 ? "PRAGMA incremental_vacuum(" + pages + ")"
+                : "PRAGMA incremental_vacuum");
+        try {
+            cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long pragma(SupportSQLiteDatabase sqlite, String name) {
+        Cursor cursor = sqlite.query("PRAGMA " + name);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+}
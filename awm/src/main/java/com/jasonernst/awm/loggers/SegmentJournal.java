@@ -0,0 +1,586 @@
+package com.jasonernst.awm.loggers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of records kept in fixed size, memory mapped segment files.
+ *
+ * Each record is its length, a CRC32 of its bytes, then the bytes. A length of zero marks the
+ * end of the records of a segment, which is why the length is written last. Reading stops at
+ * the first record whose CRC doesn't match, so a record torn by a crash is never returned, and
+ * on opening the journal the tail of the last segment is scanned to find where to append next.
+ *
+ * Records are read from the cursor, as views of the mapped segments rather than copies, and
+ * acknowledged once they no longer need to be kept. A record found damaged once the journal is
+ * open, ie: by failing storage, loses the rest of its segment, which the cursor skips. The cursor is saved on each
+ * acknowledgement, and segments wholly before it are deleted. When the journal holds
+ * maxSegments segments, the oldest is dropped to make room even if it wasn't acknowledged.
+ *
+ * Appends reach the page cache straight away and so survive the app crashing; sync() forces
+ * them to storage to survive the device losing power.
+ */
+public class SegmentJournal {
+
+    public static final int DEFAULT_SEGMENT_BYTES = 4 * 1024 * 1024;
+    public static final int DEFAULT_MAX_SEGMENTS = 16;
+    private static final int HEADER_BYTES = 8;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CURSOR_FILE = "cursor";
+
+    /**
+     * A place in the journal: the offset of a record within a segment.
+     */
+    public static final class Position {
+        private final long segment;
+        private final int offset;
+
+        Position(long segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        public long getSegment() {
+            return segment;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        @Override
+        public String toString() {
+            return segment + ":" + offset;
+        }
+    }
+
+    /**
+     * Records read from the journal, with the position just after each of them, to acknowledge
+     * all or some of them.
+     */
+    public static final class Batch {
+        private final List<ByteBuffer> records;
+        private final List<Position> ends;
+        private final long bytes;
+
+        Batch(List<ByteBuffer> records, List<Position> ends, long bytes) {
+            this.records = records;
+            this.ends = ends;
+            this.bytes = bytes;
+        }
+
+        public int size() {
+            return records.size();
+        }
+
+        public boolean isEmpty() {
+            return records.isEmpty();
+        }
+
+        /**
+         * @return a read only view of the record, positioned at its start
+         */
+        public ByteBuffer getRecord(int index) {
+            return records.get(index).duplicate();
+        }
+
+        /**
+         * @return the position to acknowledge to drop records 0 to index
+         */
+        public Position getEnd(int index) {
+            return ends.get(index);
+        }
+
+        public Position getEnd() {
+            return ends.get(ends.size() - 1);
+        }
+
+        /**
+         * @return the total length of the records
+         */
+        public long getBytes() {
+            return bytes;
+        }
+    }
+
+    private static final class Segment {
+        final long index;
+        final File file;
+        // dropped once the segment is deleted, so the mapping can be released
+        MappedByteBuffer buffer;
+        // the end of the records written, for the segment being appended to
+        int end;
+
+        Segment(long index, File file, MappedByteBuffer buffer) {
+            this.index = index;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(SegmentJournal.class);
+    private final File directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final CRC32 crc = new CRC32();
+    private final byte[] chunk = new byte[8192];
+    private Segment head;
+    private Position cursor;
+    private boolean dirty;
+    private long evicted;
+    private long damaged;
+
+    private SegmentJournal(File directory, int segmentBytes, int maxSegments) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+    }
+
+    /**
+     * Opens the journal in the directory, recovering whatever was appended before.
+     */
+    public static SegmentJournal open(File directory, int segmentBytes, int maxSegments)
+            throws IOException {
+        if (segmentBytes <= HEADER_BYTES || maxSegments < 2) {
+            throw new IllegalArgumentException("Invalid journal size " + segmentBytes + " x "
+                    + maxSegments);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        SegmentJournal journal = new SegmentJournal(directory, segmentBytes, maxSegments);
+        journal.recover();
+        return journal;
+    }
+
+    private void recover() throws IOException {
+        List<Long> indices = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        indices.add(Long.parseLong(
+                                name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException ex) {
+                        logger.warn("Ignoring {}", file);
+                    }
+                }
+            }
+        }
+        Collections.sort(indices);
+        for (long index : indices) {
+            File file = segmentFile(index);
+            if (file.length() != segmentBytes) {
+                // not one of ours, or created with another size: its records can't be trusted
+                logger.warn("Discarding segment {} of {} bytes", file, file.length());
+                delete(file);
+                continue;
+            }
+            segments.put(index, new Segment(index, file, map(file)));
+        }
+
+        if (segments.isEmpty()) {
+            head = createSegment(0);
+        } else {
+            head = segments.lastEntry().getValue();
+            // until its end is found, the whole segment may hold records
+            head.end = segmentBytes;
+            head.end = scan(head, 0);
+            // anything after the last good record is a torn write, clear it for the next ones
+            for (int i = head.end; i < segmentBytes; i++) {
+                if (head.buffer.get(i) != 0) {
+                    head.buffer.put(i, (byte) 0);
+                    dirty = true;
+                }
+            }
+        }
+        cursor = readCursor();
+        Position end = new Position(head.index, head.end);
+        if (compare(cursor, end) > 0) {
+            // what it pointed into was torn, appends carry on from the end of what is left
+            cursor = end;
+        }
+        logger.info("Opened journal with {} segments, cursor at {}", segments.size(), cursor);
+    }
+
+    /**
+     * Appends a record.
+     * @throws IllegalArgumentException if the record can't fit in a segment
+     * @throws IOException if the body doesn't write the length it declared, or a new segment
+     * can't be created
+     */
+    public synchronized Position append(UploadClient.Body body) throws IOException {
+        int length = body.length();
+        if (length <= 0 || length > segmentBytes - HEADER_BYTES) {
+            throw new IllegalArgumentException("Can't journal a record of " + length + " bytes");
+        }
+        if (head.end + HEADER_BYTES + length > segmentBytes) {
+            roll();
+        }
+        int start = head.end;
+        MappedBufferOutputStream out = new MappedBufferOutputStream(head.buffer,
+                start + HEADER_BYTES, length);
+        crc.reset();
+        out.crc = crc;
+        body.writeTo(out);
+        if (out.written != length) {
+            throw new IOException("Record declared " + length + " bytes but wrote "
+                    + out.written);
+        }
+        head.buffer.putInt(start + 4, (int) crc.getValue());
+        head.buffer.putInt(start, length);
+        head.end = start + HEADER_BYTES + length;
+        dirty = true;
+        return new Position(head.index, head.end);
+    }
+
+    /**
+     * Reads records from the cursor, at least one if there are any.
+     * @param maxRecords the most records to read
+     * @param maxBytes the most bytes of records to read, unless the first is larger
+     */
+    public synchronized Batch read(int maxRecords, long maxBytes) {
+        List<ByteBuffer> records = new ArrayList<>();
+        List<Position> ends = new ArrayList<>();
+        long bytes = 0;
+        long segmentIndex = cursor.segment;
+        int offset = cursor.offset;
+        while (records.size() < maxRecords) {
+            Map.Entry<Long, Segment> entry = segments.ceilingEntry(segmentIndex);
+            if (entry == null) {
+                break;
+            }
+            Segment segment = entry.getValue();
+            if (segment.index != segmentIndex) {
+                offset = 0;
+            }
+            int length = recordAt(segment, offset);
+            if (length < 0 || (length == 0 && segment == head && offset < head.end)) {
+                // return what was read before it, the damage is skipped from the next read
+                if (!records.isEmpty() || !skipDamaged(segment)) {
+                    break;
+                }
+                segmentIndex = segment.index + 1;
+                offset = 0;
+                continue;
+            }
+            if (length == 0) {
+                if (segment == head) {
+                    break;
+                }
+                // the rest of this segment is empty, carry on with the next
+                segmentIndex = segment.index + 1;
+                offset = 0;
+                continue;
+            }
+            if (!records.isEmpty() && bytes + length > maxBytes) {
+                break;
+            }
+            ByteBuffer record = segment.buffer.duplicate();
+            record.position(offset + HEADER_BYTES);
+            record.limit(offset + HEADER_BYTES + length);
+            records.add(record.slice().asReadOnlyBuffer());
+            offset += HEADER_BYTES + length;
+            ends.add(new Position(segment.index, offset));
+            bytes += length;
+            segmentIndex = segment.index;
+        }
+        return new Batch(records, ends, bytes);
+    }
+
+    /**
+     * Moves the cursor past the records up to position, deleting the segments it has left.
+     */
+    public synchronized void acknowledge(Position position) throws IOException {
+        if (compare(position, cursor) <= 0) {
+            return;
+        }
+        cursor = position;
+        writeCursor();
+        while (!segments.isEmpty() && segments.firstKey() < cursor.segment) {
+            release(segments.pollFirstEntry().getValue());
+        }
+    }
+
+    /**
+     * Forces what was appended since the last sync to storage.
+     */
+    public synchronized void sync() {
+        if (dirty) {
+            head.buffer.force();
+            dirty = false;
+        }
+    }
+
+    /**
+     * @return true if every record has been acknowledged.
+     */
+    public synchronized boolean isEmpty() {
+        return read(1, Long.MAX_VALUE).isEmpty();
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * @return the number of segments whose records after a damaged one were skipped, their
+     * number being unknown.
+     */
+    public synchronized long getDamagedCount() {
+        return damaged;
+    }
+
+    /**
+     * @return the number of records dropped unacknowledged to stay within maxSegments.
+     */
+    public synchronized long getEvictedCount() {
+        return evicted;
+    }
+
+    public synchronized Position getCursor() {
+        return cursor;
+    }
+
+    public synchronized void close() {
+        sync();
+    }
+
+    private void roll() throws IOException {
+        sync();
+        if (segments.size() >= maxSegments) {
+            Segment oldest = segments.pollFirstEntry().getValue();
+            int from = oldest.index == cursor.segment ? cursor.offset : 0;
+            if (oldest.index >= cursor.segment) {
+                long dropped = countRecords(oldest, from);
+                evicted += dropped;
+                logger.warn("Journal full, dropped {} records", dropped);
+                cursor = new Position(oldest.index + 1, 0);
+                writeCursor();
+            }
+            release(oldest);
+        }
+        head = createSegment(head.index + 1);
+    }
+
+    /**
+     * Moves the cursor past the rest of a segment at the cursor which holds a damaged record.
+     * The head is rolled first, so appends carry on in a segment which can still be read.
+     * @return false if the cursor couldn't be moved
+     */
+    private boolean skipDamaged(Segment segment) {
+        try {
+            if (segment == head) {
+                roll();
+            }
+            acknowledge(new Position(segment.index + 1, 0));
+        } catch (IOException ex) {
+            logger.warn("Can't skip damaged segment {}", segment.index, ex);
+            return false;
+        }
+        damaged++;
+        logger.warn("Skipped the rest of damaged segment {}", segment.index);
+        return true;
+    }
+
+    private void release(Segment segment) {
+        segment.buffer = null;
+        delete(segment.file);
+    }
+
+    private Segment createSegment(long index) throws IOException {
+        File file = segmentFile(index);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(segmentBytes);
+        } finally {
+            raf.close();
+        }
+        Segment segment = new Segment(index, file, map(file));
+        segments.put(index, segment);
+        return segment;
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // the mapping stays valid after the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the length of the valid record at offset, 0 if the records end there, or -1 if
+     * the record there is damaged.
+     */
+    private int recordAt(Segment segment, int offset) {
+        if (segment == head && offset >= head.end) {
+            return 0;
+        }
+        if (offset + HEADER_BYTES > segmentBytes) {
+            return 0;
+        }
+        int length = segment.buffer.getInt(offset);
+        if (length == 0) {
+            return 0;
+        }
+        if (length < 0 || length > segmentBytes - offset - HEADER_BYTES) {
+            return -1;
+        }
+        int expected = segment.buffer.getInt(offset + 4);
+        ByteBuffer bytes = segment.buffer.duplicate();
+        bytes.position(offset + HEADER_BYTES);
+        crc.reset();
+        int remaining = length;
+        while (remaining > 0) {
+            int n = Math.min(remaining, chunk.length);
+            bytes.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+            remaining -= n;
+        }
+        if ((int) crc.getValue() != expected) {
+            logger.warn("Bad checksum at {}:{}", segment.index, offset);
+            return -1;
+        }
+        return length;
+    }
+
+    /**
+     * @return the end of the valid records from offset on.
+     */
+    private int scan(Segment segment, int offset) {
+        int length;
+        while ((length = recordAt(segment, offset)) > 0) {
+            offset += HEADER_BYTES + length;
+        }
+        return offset;
+    }
+
+    private long countRecords(Segment segment, int offset) {
+        long count = 0;
+        int length;
+        while ((length = recordAt(segment, offset)) > 0) {
+            offset += HEADER_BYTES + length;
+            count++;
+        }
+        return count;
+    }
+
+    private Position readCursor() {
+        Position first = new Position(segments.firstKey(), 0);
+        File file = new File(directory, CURSOR_FILE);
+        if (!file.exists()) {
+            return first;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                Position saved = new Position(in.readLong(), in.readInt());
+                return compare(saved, first) < 0 ? first : saved;
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            logger.warn("Unreadable cursor, starting from the oldest segment", ex);
+            return first;
+        }
+    }
+
+    /**
+     * Replaces the cursor file in one step, so a crash leaves either the old or the new one.
+     */
+    private void writeCursor() throws IOException {
+        File tmp = new File(directory, CURSOR_FILE + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeLong(cursor.segment);
+            data.writeInt(cursor.offset);
+            data.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(new File(directory, CURSOR_FILE))) {
+            throw new IOException("Can't save the journal cursor");
+        }
+    }
+
+    private File segmentFile(long index) {
+        return new File(directory, String.format(Locale.US, "%020d", index) + SEGMENT_SUFFIX);
+    }
+
+    private void delete(File file) {
+        if (!file.delete()) {
+            logger.warn("Can't delete {}", file);
+        }
+    }
+
+    private static int compare(Position a, Position b) {
+        if (a.segment != b.segment) {
+            return a.segment < b.segment ? -1 : 1;
+        }
+        return Integer.compare(a.offset, b.offset);
+    }
+
+    /**
+     * Writes a record body straight into the mapped segment, checksumming it on the way.
+     */
+    private static final class MappedBufferOutputStream extends OutputStream {
+        private final ByteBuffer buffer;
+        private final int limit;
+        CRC32 crc;
+        int written;
+
+        MappedBufferOutputStream(MappedByteBuffer mapped, int start, int length) {
+            this.buffer = mapped.duplicate();
+            this.buffer.position(start);
+            this.limit = length;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (written + 1 > limit) {
+                throw new IOException("Record longer than declared");
+            }
+            buffer.put((byte) b);
+            crc.update(b);
+            written++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (written + length > limit) {
+                throw new IOException("Record longer than declared");
+            }
+            buffer.put(bytes, offset, length);
+            crc.update(bytes, offset, length);
+            written += length;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.jasonernst.awm.loggers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Posts uploads to the collection server over persistent connections.
+ *
+ * HttpURLConnection keeps a connection alive and hands it to the next request to the same host
+ * so long as the response is read to the end and disconnect() is not called, which is what this
+ * class takes care of. That saves a TCP connection, and with https a TLS handshake, per upload.
+ *
+ * At most maxInFlight requests are outstanding at once, whether they are made synchronously
+ * with post() or queued with submit(). The latency of each request is measured from opening the
+ * connection to reading the last byte of the response.
+ */
+public class UploadClient {
+
+    /**
+     * Writes a request body of a known length.
+     */
+    public interface Body {
+        int length();
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    public static class Response {
+        private final int status;
+        private final String message;
+        private final byte[] body;
+        private final long latencyNanos;
+
+        Response(int status, String message, byte[] body, long latencyNanos) {
+            this.status = status;
+            this.message = message;
+            this.body = body;
+            this.latencyNanos = latencyNanos;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public String getBody() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+
+        public long getLatencyMillis() {
+            return latencyNanos / 1000000;
+        }
+    }
+
+    // an interrupt doesn't unblock a socket, so these bound how long stopping can wait on one
+    public static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    public static final int READ_TIMEOUT_MILLIS = 30 * 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(UploadClient.class);
+    private final URL url;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final Semaphore queued;
+    private ExecutorService executor;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private volatile long lastLatencyNanos;
+
+    public UploadClient(URL url, int maxInFlight) {
+        this.url = url;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight, true);
+        this.queued = new Semaphore(maxInFlight, true);
+    }
+
+    public static Body body(final byte[] bytes) {
+        return new Body() {
+            @Override
+            public int length() {
+                return bytes.length;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(bytes);
+            }
+        };
+    }
+
+    /**
+     * POSTs the body and waits for the response, blocking first while maxInFlight requests
+     * are already outstanding.
+     */
+    public Response post(String contentType, Body body) throws IOException {
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to upload");
+        }
+        try {
+            return execute(contentType, body);
+        } finally {
+            inFlight.release();
+        }
+    }
+
+    /**
+     * Runs the task, which is expected to make uploads with post(), on one of the client's own
+     * threads. Blocks while maxInFlight tasks are already queued or running, so callers can't
+     * get too far ahead of the server.
+     */
+    public <T> Future<T> submit(final Callable<T> task) throws InterruptedException {
+        queued.acquire();
+        try {
+            return executor().submit(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    try {
+                        return task.call();
+                    } finally {
+                        queued.release();
+                    }
+                }
+            });
+        } catch (RuntimeException ex) {
+            queued.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Stops the threads used by submit(), interrupting the tasks running and cancelling those
+     * still queued. Connections that are idle are left for the system to expire.
+     */
+    public synchronized void close() {
+        if (executor != null) {
+            for (Runnable pending : executor.shutdownNow()) {
+                // never run, so they won't give back their place themselves
+                if (pending instanceof Future) {
+                    ((Future<?>) pending).cancel(false);
+                }
+                queued.release();
+            }
+            executor = null;
+        }
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public int getInFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    public long getLastLatencyMillis() {
+        return lastLatencyNanos / 1000000;
+    }
+
+    public long getMaxLatencyMillis() {
+        return maxLatencyNanos.get() / 1000000;
+    }
+
+    public long getMeanLatencyMillis() {
+        long count = requests.get();
+        return count == 0 ? 0 : totalLatencyNanos.get() / count / 1000000;
+    }
+
+    private synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(maxInFlight, new ThreadFactory() {
+                private int count = 0;
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "awm-upload-" + count++);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    private Response execute(String contentType, Body body) throws IOException {
+        long start = System.nanoTime();
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Content-Type", contentType);
+        conn.setRequestProperty("Accept", "application/json");
+        conn.setRequestProperty("Connection", "keep-alive");
+        conn.setDoOutput(true);
+        conn.setDoInput(true);
+        // otherwise HttpURLConnection buffers the whole body again before sending it
+        conn.setFixedLengthStreamingMode(body.length());
+
+        try {
+            OutputStream os = conn.getOutputStream();
+            body.writeTo(os);
+            os.close();
+
+            int status = conn.getResponseCode();
+            String message = conn.getResponseMessage();
+            // the connection only goes back to the pool once the response has been consumed
+            InputStream is = status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+            byte[] response = readFully(is);
+
+            long latency = System.nanoTime() - start;
+            record(latency);
+            logger.debug("POST {} -> {} in {} ms", contentType, status, latency / 1000000);
+            return new Response(status, message, response, latency);
+        } catch (IOException ex) {
+            // a broken connection must not be reused
+            conn.disconnect();
+            throw ex;
+        }
+    }
+
+    private void record(long latencyNanos) {
+        requests.incrementAndGet();
+        totalLatencyNanos.addAndGet(latencyNanos);
+        lastLatencyNanos = latencyNanos;
+        long max;
+        do {
+            max = maxLatencyNanos.get();
+        } while (latencyNanos > max && !maxLatencyNanos.compareAndSet(max, latencyNanos));
+    }
+
+    private static byte[] readFully(InputStream is) throws IOException {
+        if (is == null) {
+            return new byte[0];
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        int read;
+        try {
+            while ((read = is.read(chunk)) != -1) {
+                out.write(chunk, 0, read);
+            }
+        } finally {
+            is.close();
+        }
+        return out.toByteArray();
+    }
+}
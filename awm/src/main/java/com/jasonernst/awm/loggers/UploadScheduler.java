@@ -0,0 +1,161 @@
+package com.jasonernst.awm.loggers;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Random;
+
+/**
+ * Decides when the upload loop runs next.
+ *
+ * After each pass the loop tells the scheduler how it went: drain() if there is more backlog to
+ * send straight away, backoff() if the upload failed, idle() if there is nothing left to send.
+ * await() then returns immediately while draining, after an exponentially growing and jittered
+ * delay while backing off, and on the next signal() while idle, so the loop neither polls an
+ * empty table nor hammers a server which is down.
+ *
+ * Signals which arrive during a backoff are remembered but don't cut it short.
+ */
+public class UploadScheduler {
+
+    public enum State {
+        DRAINING,
+        BACKOFF,
+        IDLE,
+    }
+
+    public static final long DEFAULT_MIN_BACKOFF_MILLIS = 5000;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 10 * 60 * 1000;
+    public static final long DEFAULT_IDLE_RECHECK_MILLIS = 60 * 1000;
+
+    private final Logger logger = LoggerFactory.getLogger(UploadScheduler.class);
+    private final Object lock = new Object();
+    private final long minBackoffMillis;
+    private final long maxBackoffMillis;
+    private final long idleRecheckMillis;
+    private final Random random;
+
+    private State state = State.DRAINING;
+    private boolean signalled;
+    private int failures;
+    private long backoffUntil;
+
+    public UploadScheduler() {
+        this(DEFAULT_MIN_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS, DEFAULT_IDLE_RECHECK_MILLIS,
+                new Random());
+    }
+
+    /**
+     * @param idleRecheckMillis how long to stay idle without a signal before checking again
+     *                          anyway, since not everything which makes uploads possible (such
+     *                          as coming back online) signals. 0 waits for a signal forever.
+     */
+    public UploadScheduler(long minBackoffMillis, long maxBackoffMillis, long idleRecheckMillis,
+                           Random random) {
+        if (minBackoffMillis <= 0 || maxBackoffMillis < minBackoffMillis) {
+            throw new IllegalArgumentException("Invalid backoff " + minBackoffMillis + "-"
+                    + maxBackoffMillis);
+        }
+        this.minBackoffMillis = minBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.idleRecheckMillis = idleRecheckMillis;
+        this.random = random;
+    }
+
+    /**
+     * Wakes the loop if it is idle, because there is something new to upload.
+     */
+    public void signal() {
+        synchronized (lock) {
+            signalled = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * There is more to upload and the last pass made progress, so run again straight away.
+     */
+    public void drain() {
+        synchronized (lock) {
+            state = State.DRAINING;
+            failures = 0;
+        }
+    }
+
+    /**
+     * There is nothing to upload, or no way to upload it, so wait for a signal.
+     */
+    public void idle() {
+        synchronized (lock) {
+            state = State.IDLE;
+            failures = 0;
+        }
+    }
+
+    /**
+     * The last pass failed, so wait before the next one: a random time between half and all of
+     * minBackoff * 2^(failures - 1), capped at maxBackoff. The jitter keeps many devices which
+     * lost the server at the same moment from all coming back at the same moment.
+     * @return the delay chosen, in milliseconds
+     */
+    public long backoff() {
+        synchronized (lock) {
+            failures++;
+            // never shift far enough to overflow
+            int shift = Math.min(failures - 1, Long.numberOfLeadingZeros(minBackoffMillis) - 1);
+            long ceiling = Math.min(maxBackoffMillis, minBackoffMillis << shift);
+            long half = ceiling / 2;
+            long delay = half + (long) (random.nextDouble() * (ceiling - half));
+            state = State.BACKOFF;
+            backoffUntil = System.nanoTime() + delay * 1000000;
+            logger.debug("Upload failed {} times, backing off {} ms", failures, delay);
+            return delay;
+        }
+    }
+
+    /**
+     * Blocks until the next pass should run.
+     */
+    public void await() throws InterruptedException {
+        synchronized (lock) {
+            switch (state) {
+                case BACKOFF:
+                    long remaining;
+                    while ((remaining = backoffUntil - System.nanoTime()) > 0) {
+                        lock.wait(Math.max(1, remaining / 1000000));
+                    }
+                    break;
+                case IDLE:
+                    long deadline = System.nanoTime() + idleRecheckMillis * 1000000;
+                    while (!signalled) {
+                        if (idleRecheckMillis <= 0) {
+                            lock.wait();
+                        } else {
+                            remaining = deadline - System.nanoTime();
+                            if (remaining <= 0) {
+                                break;
+                            }
+                            lock.wait(Math.max(1, remaining / 1000000));
+                        }
+                    }
+                    break;
+                case DRAINING:
+                default:
+                    break;
+            }
+            signalled = false;
+        }
+    }
+
+    public State getState() {
+        synchronized (lock) {
+            return state;
+        }
+    }
+
+    public int getFailures() {
+        synchronized (lock) {
+            return failures;
+        }
+    }
+}
@@ -15,4 +15,14 @@ public class ConnectivityStats {
     private Inet4Address inet4Address;
     private boolean isWifiConnected;
     private boolean isCellularConnected;
+    // connected to any network with internet access, whatever the transport
+    private boolean isConnected;
+    // the network in use is metered, so uploads may cost the user
+    private boolean isMetered;
+    // the system has checked the network in use actually reaches the internet
+    private boolean isValidated;
+
+    public static ConnectivityStats disconnected() {
+        return new ConnectivityStats(null, null, false, false, false, false, false);
+    }
 }
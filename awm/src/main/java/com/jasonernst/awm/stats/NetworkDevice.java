@@ -1,17 +1,17 @@
 package com.jasonernst.awm.stats;
 
-import lombok.AllArgsConstructor;
 import lombok.Data;
-import lombok.Getter;
-import lombok.Setter;
 
 /**
  * This class is meant to represent an observed Network Device from a Wi-Fi or Bluetooth scan.
  * None of the fields are required, the more that are provided, the more clearer a picture of the
  * state of connectivity in the region is. What can be provided is dependent on the permissions
  * given to the operating system, chipset, etc.
+ *
+ * The name and security capabilities are interned in the StringDictionary, since the same ones
+ * are seen over and over.
  */
-@Data @AllArgsConstructor
+@Data
 public class NetworkDevice {
     private String name;
     private String mac;
@@ -20,6 +20,17 @@ public class NetworkDevice {
     private int channelWidth;
     private String security;
 
+    public NetworkDevice(String name, String mac, int signalStrength, int frequency,
+                         int channelWidth, String security) {
+        StringDictionary dictionary = StringDictionary.getInstance();
+        this.name = dictionary.intern(name);
+        this.mac = mac;
+        this.signalStrength = signalStrength;
+        this.frequency = frequency;
+        this.channelWidth = channelWidth;
+        this.security = dictionary.intern(security);
+    }
+
     public NetworkDevice(NetworkDevice other) {
         this.name = other.getName();
         this.mac = other.getMac();
@@ -28,4 +39,12 @@ public class NetworkDevice {
         this.channelWidth = other.getChannelWidth();
         this.security = other.getSecurity();
     }
+
+    public void setName(String name) {
+        this.name = StringDictionary.getInstance().intern(name);
+    }
+
+    public void setSecurity(String security) {
+        this.security = StringDictionary.getInstance().intern(security);
+    }
 }
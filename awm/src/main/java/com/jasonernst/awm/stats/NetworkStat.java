@@ -2,63 +2,657 @@ package com.jasonernst.awm.stats;
 
 import org.json.JSONException;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.sql.Timestamp;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import com.jasonernst.awm.ObservingDevice;
+import com.jasonernst.awm.encoders.BinaryObservationReader;
+import com.jasonernst.awm.encoders.BinaryObservationWriter;
+import com.jasonernst.awm.encoders.JsonStreamWriter;
+import com.jasonernst.awm.encoders.MacAddress;
 
-import lombok.AllArgsConstructor;
-import lombok.Data;
 import lombok.Getter;
-import lombok.Setter;
 
-@Data
-@AllArgsConstructor
+/**
+ * An immutable snapshot of the devices seen by one scan, published by the collectors. The
+ * devices are held in flat arrays, one per field, with the MACs as 48 bit values and the names
+ * and security capabilities as ids into the distinct strings of the scan. Those strings are
+ * interned in the StringDictionary, so scans share one instance of each, and the encoded
+ * observation refers to them by their dictionary ids. A snapshot costs a
+ * handful of allocations however many devices it holds, and subscribers on any thread can read
+ * it without locking while the collector carries on with the next scan.
+ *
+ * Collectors fill a Builder, which they reuse from scan to scan, and publish what it holds
+ * with build(). Consumers walk the devices with a Cursor, or by index.
+ */
 public class NetworkStat {
 
     public enum DeviceType {
         BLUETOOTH,
         WIFI,
-        WIFI_DIRECT
+        WIFI_DIRECT,
+        BLUETOOTH_LE
     }
 
-    private DeviceType type;
-    private ConcurrentHashMap<String, NetworkDevice> devices;
+    @Getter
+    private final DeviceType type;
+
+    /**
+     * When the scan completed, in ms since the epoch. Encoded as the time of the observation,
+     * however much later that is.
+     */
+    @Getter
+    private final long timestamp;
+    private final int count;
+    private final long[] macs;
+    private final short[] signalStrengths;
+    private final int[] frequencies;
+    private final int[] channelWidths;
+    // the names and security capabilities are ids into strings, which holds each distinct one
+    // of the scan once
+    private final int[] nameIds;
+    private final int[] securityIds;
+    private final String[] strings;
+    // the StringDictionary id of each of strings, -1 for null
+    private final int[] stringKeys;
+
+    /**
+     * Collects the devices of a scan, keyed by MAC address, the last one seen of each MAC
+     * winning. Each field is kept in its own array, the MACs as 48 bit values and the strings as
+     * ids, and the arrays are kept from scan to scan, so filling the builder doesn't allocate
+     * once they have grown to fit the largest scan. Not thread safe, meant to be owned by one
+     * collector.
+     */
+    public static final class Builder {
+        private final LongIntMap index;
+        private final Map<String, Integer> stringIds = new HashMap<>();
+        private String[] strings;
+        private int[] stringKeys;
+        private int stringCount;
+        private int count;
+        private long[] macs;
+        private short[] signalStrengths;
+        private int[] frequencies;
+        private int[] channelWidths;
+        private int[] nameIds;
+        private int[] securityIds;
+
+        public Builder() {
+            this(16);
+        }
+
+        public Builder(int capacity) {
+            capacity = Math.max(capacity, 1);
+            index = new LongIntMap(capacity);
+            strings = new String[capacity];
+            stringKeys = new int[capacity];
+            macs = new long[capacity];
+            signalStrengths = new short[capacity];
+            frequencies = new int[capacity];
+            channelWidths = new int[capacity];
+            nameIds = new int[capacity];
+            securityIds = new int[capacity];
+        }
+
+        /**
+         * Adds a device, or replaces the one with the same MAC.
+         * @param mac the 48 bit MAC address, see MacAddress.parse()
+         */
+        public Builder put(String name, long mac, int signalStrength, int frequency,
+                           int channelWidth, String security) {
+            if (mac < 0) {
+                // there is nothing to identify it by, and the server can't store it
+                return this;
+            }
+            int i = index.get(mac);
+            if (i == LongIntMap.MISSING) {
+                if (count == macs.length) {
+                    grow();
+                }
+                i = count++;
+                index.put(mac, i);
+            }
+            macs[i] = mac;
+            signalStrengths[i] = (short) Math.max(Short.MIN_VALUE,
+                    Math.min(Short.MAX_VALUE, signalStrength));
+            frequencies[i] = frequency;
+            channelWidths[i] = channelWidth;
+            nameIds[i] = stringId(name);
+            securityIds[i] = stringId(security);
+            return this;
+        }
+
+        /**
+         * Adds a device with a MAC in the usual notation. Devices whose MAC doesn't parse are
+         * left out.
+         */
+        public Builder put(String name, String mac, int signalStrength, int frequency,
+                           int channelWidth, String security) {
+            return put(name, MacAddress.parse(mac), signalStrength, frequency, channelWidth,
+                    security);
+        }
+
+        public Builder put(NetworkDevice device) {
+            return put(device.getName(), device.getMac(), device.getSignalStrength(),
+                    device.getFrequency(), device.getChannelWidth(), device.getSecurity());
+        }
+
+        /**
+         * Adds the device at index of a snapshot.
+         */
+        public Builder put(NetworkStat stat, int index) {
+            return put(stat.getName(index), stat.macs[index], stat.signalStrengths[index],
+                    stat.frequencies[index], stat.channelWidths[index], stat.getSecurity(index));
+        }
+
+        public int size() {
+            return count;
+        }
+
+        /**
+         * @return the row of the device with the MAC, or -1 if there is none.
+         */
+        public int indexOf(long mac) {
+            return mac < 0 ? -1 : index.get(mac);
+        }
+
+        public long getMac(int i) {
+            return macs[i];
+        }
+
+        public int getSignalStrength(int i) {
+            return signalStrengths[i];
+        }
+
+        public int getFrequency(int i) {
+            return frequencies[i];
+        }
+
+        public int getChannelWidth(int i) {
+            return channelWidths[i];
+        }
+
+        public String getName(int i) {
+            return strings[nameIds[i]];
+        }
+
+        public String getSecurity(int i) {
+            return strings[securityIds[i]];
+        }
+
+        /**
+         * Empties the builder, keeping its arrays for the next scan.
+         */
+        public Builder clear() {
+            // drop the strings so they don't outlive the scan
+            Arrays.fill(strings, 0, stringCount, null);
+            stringIds.clear();
+            stringCount = 0;
+            index.clear();
+            count = 0;
+            return this;
+        }
+
+        /**
+         * @return a snapshot of the devices collected so far, timestamped now. The builder can
+         * carry on being filled, or be cleared, without affecting it.
+         */
+        public NetworkStat build(DeviceType type) {
+            return build(type, System.currentTimeMillis());
+        }
+
+        public NetworkStat build(DeviceType type, long timestamp) {
+            return new NetworkStat(type, this, timestamp);
+        }
+
+        private int stringId(String value) {
+            Integer id = stringIds.get(value);
+            if (id == null) {
+                if (stringCount == strings.length) {
+                    strings = Arrays.copyOf(strings, stringCount * 2);
+                    stringKeys = Arrays.copyOf(stringKeys, stringCount * 2);
+                }
+                StringDictionary.Entry entry = StringDictionary.getInstance().lookup(value);
+                id = stringCount;
+                strings[stringCount] = entry == null ? null : entry.getValue();
+                stringKeys[stringCount++] = entry == null ? -1 : entry.getId();
+                stringIds.put(value, id);
+            }
+            return id;
+        }
+
+        private void grow() {
+            int capacity = macs.length * 2;
+            macs = Arrays.copyOf(macs, capacity);
+            signalStrengths = Arrays.copyOf(signalStrengths, capacity);
+            frequencies = Arrays.copyOf(frequencies, capacity);
+            channelWidths = Arrays.copyOf(channelWidths, capacity);
+            nameIds = Arrays.copyOf(nameIds, capacity);
+            securityIds = Arrays.copyOf(securityIds, capacity);
+        }
+    }
+
+    /**
+     * A movable view of one device of a snapshot, so consumers can walk the devices without
+     * an object per device. Reuse one across snapshots with of().
+     */
+    public static final class Cursor {
+        private NetworkStat stat;
+        private int index;
+
+        /**
+         * Points the cursor before the first device of stat.
+         */
+        public Cursor of(NetworkStat stat) {
+            this.stat = stat;
+            this.index = -1;
+            return this;
+        }
+
+        /**
+         * Moves to the next device.
+         * @return false once past the last one
+         */
+        public boolean next() {
+            return ++index < stat.count;
+        }
+
+        public Cursor moveTo(int index) {
+            if (index < 0 || index >= stat.count) {
+                throw new IndexOutOfBoundsException(index + " of " + stat.count);
+            }
+            this.index = index;
+            return this;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return the 48 bit MAC address, see MacAddress.format()
+         */
+        public long getMac() {
+            return stat.macs[index];
+        }
+
+        public int getSignalStrength() {
+            return stat.signalStrengths[index];
+        }
+
+        public int getFrequency() {
+            return stat.frequencies[index];
+        }
+
+        public int getChannelWidth() {
+            return stat.channelWidths[index];
+        }
+
+        public String getName() {
+            return stat.strings[stat.nameIds[index]];
+        }
+
+        public String getSecurity() {
+            return stat.strings[stat.securityIds[index]];
+        }
+    }
+
+    protected NetworkStat(DeviceType type, Builder builder, long timestamp) {
+        this.type = type;
+        this.timestamp = timestamp;
+        this.count = builder.count;
+        this.macs = Arrays.copyOf(builder.macs, count);
+        this.signalStrengths = Arrays.copyOf(builder.signalStrengths, count);
+        this.frequencies = Arrays.copyOf(builder.frequencies, count);
+        this.channelWidths = Arrays.copyOf(builder.channelWidths, count);
+        this.nameIds = Arrays.copyOf(builder.nameIds, count);
+        this.securityIds = Arrays.copyOf(builder.securityIds, count);
+        this.strings = Arrays.copyOf(builder.strings, builder.stringCount);
+        this.stringKeys = Arrays.copyOf(builder.stringKeys, builder.stringCount);
+    }
+
+    public NetworkStat(DeviceType type, Map<String, NetworkDevice> devices) {
+        this(type, fill(new Builder(devices.size()), devices), System.currentTimeMillis());
+    }
+
+    private static Builder fill(Builder builder, Map<String, NetworkDevice> devices) {
+        for (NetworkDevice device : devices.values()) {
+            builder.put(device);
+        }
+        return builder;
+    }
+
+    /**
+     * @return the number of devices seen.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return a cursor before the first device. Prefer reusing one with Cursor.of().
+     */
+    public Cursor cursor() {
+        return new Cursor().of(this);
+    }
+
+    /**
+     * @return the 48 bit MAC address of the device at index.
+     */
+    public long getMacValue(int index) {
+        return macs[index];
+    }
+
+    /**
+     * @return the MAC address of the device at index, formatted. Allocates, prefer
+     * getMacValue().
+     */
+    public String getMac(int index) {
+        return MacAddress.format(macs[index]);
+    }
+
+    public String getName(int index) {
+        return strings[nameIds[index]];
+    }
+
+    public int getSignalStrength(int index) {
+        return signalStrengths[index];
+    }
+
+    public int getFrequency(int index) {
+        return frequencies[index];
+    }
+
+    public int getChannelWidth(int index) {
+        return channelWidths[index];
+    }
+
+    public String getSecurity(int index) {
+        return strings[securityIds[index]];
+    }
+
+    /**
+     * @return the row of the device with the MAC, or -1 if it wasn't seen. A linear search.
+     */
+    public int indexOf(long mac) {
+        for (int i = 0; i < count; i++) {
+            if (macs[i] == mac) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return a copy of the device at index.
+     */
+    public NetworkDevice getDevice(int index) {
+        return new NetworkDevice(getName(index), getMac(index), signalStrengths[index],
+                frequencies[index], channelWidths[index], getSecurity(index));
+    }
+
+    /**
+     * @return the devices keyed by MAC address, in the order they were seen. Builds a new map
+     * each time, so prefer the cursor.
+     */
+    public Map<String, NetworkDevice> getDevices() {
+        Map<String, NetworkDevice> devices = new LinkedHashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            NetworkDevice device = getDevice(i);
+            devices.put(device.getMac(), device);
+        }
+        return Collections.unmodifiableMap(devices);
+    }
+
+    // each thread which encodes gets its own writer, whose buffer grows to fit the largest scan
+    private static final ThreadLocal<JsonStreamWriter> WRITER = new ThreadLocal<JsonStreamWriter>() {
+        @Override
+        protected JsonStreamWriter initialValue() {
+            return new JsonStreamWriter(JsonStreamWriter.Style.PRETTY);
+        }
+    };
+
+    private static final ThreadLocal<BinaryObservationWriter> BINARY_WRITER =
+            new ThreadLocal<BinaryObservationWriter>() {
+        @Override
+        protected BinaryObservationWriter initialValue() {
+            return new BinaryObservationWriter();
+        }
+    };
 
     public String toJSON(ObservingDevice thisDevice) throws JSONException {
+        return toJSON(thisDevice, JsonStreamWriter.Style.PRETTY);
+    }
+
+    public String toJSON(ObservingDevice thisDevice, JsonStreamWriter.Style style)
+            throws JSONException {
+        return encodeJSON(thisDevice, style).toString();
+    }
+
+    /**
+     * Encodes the observation into a writer which is reused by the calling thread, so the result
+     * is only valid until the next encode on the same thread. Use writeTo() on the result to send
+     * the bytes somewhere without making a copy.
+     */
+    public JsonStreamWriter encodeJSON(ObservingDevice thisDevice, JsonStreamWriter.Style style)
+            throws JSONException {
+        JsonStreamWriter writer = WRITER.get().reset(style);
+        try {
+            writeJSON(thisDevice, writer);
+        } catch (IOException ex) {
+            // can't happen, the writer is backed by memory
+            throw new IllegalStateException(ex);
+        }
+        return writer;
+    }
+
+    /**
+     * Streams the observation to the OutputStream without building it in memory first.
+     */
+    public void writeJSON(ObservingDevice thisDevice, OutputStream out,
+                          JsonStreamWriter.Style style) throws JSONException, IOException {
+        JsonStreamWriter writer = new JsonStreamWriter(out, style);
+        writeJSON(thisDevice, writer);
+        writer.flush();
+    }
+
+    /**
+     * Writes the observation in the writer's style. PRETTY is the layout servers have always
+     * received, with the strings written out on each device; COMPACT refers to them by id in a
+     * "strings" object instead.
+     */
+    public void writeJSON(ObservingDevice thisDevice, JsonStreamWriter writer)
+            throws JSONException, IOException {
 
         if(thisDevice.getPosition().latitude == 0 || thisDevice.getPosition().longitude == 0) {
             throw new JSONException("null position. ignoring this measure");
         }
 
-        String deviceJson = "";
-        int count = 1;
-        for(NetworkDevice network : devices.values()) {
-            deviceJson += "\t\t\t{\n";
-            deviceJson += "\t\t\t\t\"mac_address\": \"" + network.getMac() + "\",\n";
-            deviceJson += "\t\t\t\t\"signal_strength\": " + network.getSignalStrength() + ",\n";
-            deviceJson += "\t\t\t\t\"frequency\": " + network.getFrequency() + ",\n";
-            deviceJson += "\t\t\t\t\"channel_width\": " + network.getChannelWidth() + ",\n";
-            deviceJson += "\t\t\t\t\"security\": \"" + network.getSecurity() + "\",\n";
-            if (type == NetworkStat.DeviceType.BLUETOOTH) {
-                deviceJson += "\t\t\t\t\"mac_type\": " + 0 + ",\n";
-            } else if (type == NetworkStat.DeviceType.WIFI) {
-                deviceJson += "\t\t\t\t\"mac_type\": " + 1 + ",\n";
-            } else {
-                deviceJson += "\t\t\t\t\"mac_type\": " + -1 + ",\n";
+        writer.beginObject().name("awm_measure").beginObject();
+        thisDevice.writeReportingDevice(writer, new Timestamp(timestamp));
+        if (writer.getStyle() == JsonStreamWriter.Style.PRETTY) {
+            writeLegacyDevices(writer);
+            writeMeasureFields(writer);
+            writer.endObject().endObject();
+            return;
+        }
+        // each distinct string once, keyed by its dictionary id, which the devices refer to
+        writer.name("strings").beginObject();
+        for (int s = 0; s < strings.length; s++) {
+            if (strings[s] != null) {
+                writer.name(Integer.toString(stringKeys[s])).value(strings[s]);
+            }
+        }
+        writer.endObject();
+        writer.name("devices").beginArray();
+        int macType = getMacType();
+        for(int i = 0; i < count; i++) {
+            writer.beginObject()
+                    .name("mac_address").macValue(macs[i])
+                    .name("signal_strength").value(signalStrengths[i])
+                    .name("frequency").value(frequencies[i])
+                    .name("channel_width").value(channelWidths[i])
+                    .name("security_id").value(stringKeys[securityIds[i]])
+                    .name("mac_type").value(macType)
+                    .name("network_name_id").value(stringKeys[nameIds[i]])
+                    .endObject();
+        }
+        writer.endArray();
+        writeMeasureFields(writer);
+        writer.endObject().endObject();
+    }
+
+    /**
+     * Writes the devices with their strings as text, the way servers from before the "strings"
+     * object expect them.
+     */
+    private void writeLegacyDevices(JsonStreamWriter writer) throws IOException {
+        writer.name("devices").beginArray();
+        int macType = getMacType();
+        for(int i = 0; i < count; i++) {
+            writer.beginObject()
+                    .name("mac_address").macValue(macs[i])
+                    .name("signal_strength").value(signalStrengths[i])
+                    .name("frequency").value(frequencies[i])
+                    .name("channel_width").value(channelWidths[i])
+                    .name("security").value(getSecurity(i))
+                    .name("mac_type").value(macType)
+                    .name("network_name").value(getName(i))
+                    .endObject();
+        }
+        writer.endArray();
+    }
+
+    /**
+     * Writes any fields of the awm_measure besides the reporting device and the devices.
+     */
+    protected void writeMeasureFields(JsonStreamWriter writer) throws IOException {
+    }
+
+    /**
+     * Encodes the observation in the binary format into a writer which is reused by the calling
+     * thread, so the result is only valid until the next encode on the same thread.
+     * @throws JSONException if there is no position yet, same as for the JSON format
+     */
+    public BinaryObservationWriter encodeBinary(ObservingDevice thisDevice) throws JSONException {
+        BinaryObservationWriter writer = BINARY_WRITER.get().reset();
+        writeBinary(thisDevice, writer);
+        return writer;
+    }
+
+    public void writeBinary(ObservingDevice thisDevice, BinaryObservationWriter writer)
+            throws JSONException {
+
+        if(thisDevice.getPosition().latitude == 0 || thisDevice.getPosition().longitude == 0) {
+            throw new JSONException("null position. ignoring this measure");
+        }
+
+        thisDevice.writeReportingDevice(writer, timestamp);
+        writeBinaryDelta(writer);
+        // no device count, the devices run to the end of the payload
+        int macType = getMacType();
+        for(int i = 0; i < count; i++) {
+            writer.writeMac(macs[i])
+                    .writeSignedVarint(macType)
+                    .writeSignedVarint(signalStrengths[i])
+                    .writeSignedVarint(frequencies[i])
+                    .writeSignedVarint(channelWidths[i])
+                    .writeNullableString(getSecurity(i))
+                    .writeNullableString(getName(i));
+        }
+    }
+
+    /**
+     * Writes the delta section of the binary format, which for a whole scan is just a marker.
+     */
+    protected void writeBinaryDelta(BinaryObservationWriter writer) {
+        writer.writeVarint(ScanDelta.BINARY_WHOLE);
+    }
+
+    /**
+     * Writes an observation which was encoded in the binary format as JSON, the same as
+     * writeJSON would have written it, for observations which are stored in the binary format
+     * and sent as JSON. In the COMPACT style the strings are keyed by their index in the payload
+     * rather than their StringDictionary id, which the server doesn't mind since they only need
+     * to be unique within a measure; the PRETTY style writes them as text.
+     * @throws IllegalArgumentException if the payload is malformed
+     */
+    public static void binaryToJSON(byte[] payload, JsonStreamWriter writer) throws IOException {
+        BinaryObservationReader reader = new BinaryObservationReader(payload);
+        writer.beginObject().name("awm_measure").beginObject();
+        ObservingDevice.copyReportingDevice(reader, writer);
+        // version 1 has no delta section, every scan was sent whole
+        long delta = reader.getVersion() == 1 ? ScanDelta.BINARY_WHOLE : reader.readVarint();
+        long deltaMacType = 0;
+        long sequence = 0;
+        long[] removed = null;
+        if (delta != ScanDelta.BINARY_WHOLE) {
+            deltaMacType = reader.readSignedVarint();
+            sequence = reader.readVarint();
+            long count = reader.readVarint();
+            if (count > payload.length / 6) {
+                throw new IllegalArgumentException("Truncated payload");
+            }
+            removed = new long[(int) count];
+            for (int i = 0; i < removed.length; i++) {
+                removed[i] = reader.readMac();
+            }
+        }
+        boolean legacy = writer.getStyle() == JsonStreamWriter.Style.PRETTY;
+        String[] dictionary = reader.getDictionary();
+        if (!legacy) {
+            writer.name("strings").beginObject();
+            for (int s = 0; s < dictionary.length; s++) {
+                writer.name(Integer.toString(s)).value(dictionary[s]);
             }
-            deviceJson += "\t\t\t\t\"network_name\": \"" + network.getName() + "\"\n";
-            if (count < devices.size()) {
-                deviceJson += "\t\t\t},\n";
+            writer.endObject();
+        }
+        writer.name("devices").beginArray();
+        while (reader.hasRemaining()) {
+            long mac = reader.readMac();
+            long macType = reader.readSignedVarint();
+            writer.beginObject()
+                    .name("mac_address").macValue(mac)
+                    .name("signal_strength").value(reader.readSignedVarint())
+                    .name("frequency").value(reader.readSignedVarint())
+                    .name("channel_width").value(reader.readSignedVarint());
+            if (legacy) {
+                writer.name("security").value(reader.readNullableString())
+                        .name("mac_type").value(macType)
+                        .name("network_name").value(reader.readNullableString());
             } else {
-                deviceJson += "\t\t\t}\n";
+                writer.name("security_id").value(reader.readNullableStringId())
+                        .name("mac_type").value(macType)
+                        .name("network_name_id").value(reader.readNullableStringId());
             }
-            count++;
+            writer.endObject();
+        }
+        writer.endArray();
+        if (removed != null) {
+            ScanDelta.writeDelta(writer, deltaMacType, sequence,
+                    delta == ScanDelta.BINARY_KEYFRAME, removed);
         }
+        writer.endObject().endObject();
+    }
 
-        return thisDevice.prepareJSON(deviceJson, new Timestamp(new Date().getTime()));
+    /**
+     * @return the mac_type the server expects for devices of this type.
+     */
+    public int getMacType() {
+        if (type == NetworkStat.DeviceType.BLUETOOTH) {
+            return 0;
+        } else if (type == NetworkStat.DeviceType.WIFI) {
+            return 1;
+        } else if (type == NetworkStat.DeviceType.BLUETOOTH_LE) {
+            return 2;
+        } else {
+            return -1;
+        }
     }
 }
@@ -0,0 +1,67 @@
+package com.jasonernst.awm.stats;
+
+import java.io.IOException;
+
+import com.jasonernst.awm.encoders.BinaryObservationWriter;
+import com.jasonernst.awm.encoders.JsonStreamWriter;
+
+import lombok.Getter;
+
+/**
+ * A scan sent as the difference from the previous one of the same type: its devices are only
+ * those which are new or changed, and removed holds the 48 bit MAC addresses no longer seen. A
+ * keyframe holds every device of the scan, and the server replaces its state with it.
+ *
+ * In JSON the difference is described by a "delta" object in the awm_measure, and in the
+ * binary format by the delta section between the reporting device and the devices, so a delta
+ * cached in the binary format is still uploaded as a delta.
+ */
+@Getter
+public class ScanDelta extends NetworkStat {
+
+    private final long sequence;
+    private final boolean keyframe;
+    private final long[] removed;
+
+    // what the delta section of the binary format starts with
+    static final int BINARY_WHOLE = 0;
+    static final int BINARY_DELTA = 1;
+    static final int BINARY_KEYFRAME = 2;
+
+    public ScanDelta(NetworkStat scan, NetworkStat.Builder changed, long[] removed,
+                     long sequence, boolean keyframe) {
+        super(scan.getType(), changed, scan.getTimestamp());
+        this.removed = removed;
+        this.sequence = sequence;
+        this.keyframe = keyframe;
+    }
+
+    @Override
+    protected void writeMeasureFields(JsonStreamWriter writer) throws IOException {
+        writeDelta(writer, getMacType(), sequence, keyframe, removed);
+    }
+
+    @Override
+    protected void writeBinaryDelta(BinaryObservationWriter writer) {
+        writer.writeVarint(keyframe ? BINARY_KEYFRAME : BINARY_DELTA)
+                .writeSignedVarint(getMacType())
+                .writeVarint(sequence)
+                .writeVarint(removed.length);
+        for (long mac : removed) {
+            writer.writeMac(mac);
+        }
+    }
+
+    static void writeDelta(JsonStreamWriter writer, long macType, long sequence,
+                           boolean keyframe, long[] removed) throws IOException {
+        writer.name("delta").beginObject()
+                .name("mac_type").value(macType)
+                .name("sequence").value(sequence)
+                .name("keyframe").value(keyframe)
+                .name("removed").beginArray();
+        for (long mac : removed) {
+            writer.macValue(mac);
+        }
+        writer.endArray().endObject();
+    }
+}
@@ -0,0 +1,129 @@
+package com.jasonernst.awm.stats;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+import lombok.Getter;
+
+/**
+ * Turns consecutive scans into ScanDeltas, keeping the table of devices last sent for each
+ * DeviceType.
+ *
+ * A device is sent again when it is new, when any of its fields besides the signal strength
+ * changed, or when its signal strength moved by at least rssiThreshold dB from the value last
+ * sent. Every keyframeInterval scans of a type the whole scan is sent as a keyframe, so the
+ * server recovers from a lost or reordered delta within that many scans.
+ */
+public class ScanDeltaEncoder {
+
+    public static final int DEFAULT_RSSI_THRESHOLD = 5;
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 20;
+
+    private static class TypeState {
+        // what the server holds, swapped with next each scan so neither is reallocated
+        NetworkStat.Builder sent = new NetworkStat.Builder();
+        NetworkStat.Builder next = new NetworkStat.Builder();
+        long sequence;
+        int sinceKeyframe;
+        boolean started;
+    }
+
+    @Getter
+    private final int rssiThreshold;
+
+    @Getter
+    private final int keyframeInterval;
+
+    private final Map<NetworkStat.DeviceType, TypeState> states =
+            new EnumMap<>(NetworkStat.DeviceType.class);
+    // reused for the devices of each delta
+    private final NetworkStat.Builder changed = new NetworkStat.Builder();
+    private long[] removed = new long[16];
+
+    public ScanDeltaEncoder() {
+        this(DEFAULT_RSSI_THRESHOLD, DEFAULT_KEYFRAME_INTERVAL);
+    }
+
+    public ScanDeltaEncoder(int rssiThreshold, int keyframeInterval) {
+        if (keyframeInterval < 1) {
+            throw new IllegalArgumentException("keyframeInterval must be at least 1");
+        }
+        this.rssiThreshold = rssiThreshold;
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    /**
+     * @return the delta from the last scan of the same type, or null if nothing changed enough
+     * to be worth sending. Scans which aren't sent still count towards the next keyframe.
+     */
+    public synchronized ScanDelta encode(NetworkStat scan) {
+        TypeState state = states.get(scan.getType());
+        if (state == null) {
+            state = new TypeState();
+            states.put(scan.getType(), state);
+        }
+        boolean keyframe = !state.started || state.sinceKeyframe + 1 >= keyframeInterval;
+
+        changed.clear();
+        state.next.clear();
+        int removedCount = 0;
+        for (int i = 0; i < scan.size(); i++) {
+            int last = keyframe ? -1 : state.sent.indexOf(scan.getMacValue(i));
+            if (last == -1 || hasChanged(state.sent, last, scan, i)) {
+                changed.put(scan, i);
+                state.next.put(scan, i);
+            } else {
+                // drift is measured from what was sent, so keep that
+                state.next.put(state.sent.getName(last), state.sent.getMac(last),
+                        state.sent.getSignalStrength(last), state.sent.getFrequency(last),
+                        state.sent.getChannelWidth(last), state.sent.getSecurity(last));
+            }
+        }
+        if (!keyframe) {
+            for (int i = 0; i < state.sent.size(); i++) {
+                if (state.next.indexOf(state.sent.getMac(i)) == -1) {
+                    if (removedCount == removed.length) {
+                        removed = Arrays.copyOf(removed, removedCount * 2);
+                    }
+                    removed[removedCount++] = state.sent.getMac(i);
+                }
+            }
+        }
+        NetworkStat.Builder swap = state.sent;
+        state.sent = state.next;
+        state.next = swap;
+
+        if (keyframe) {
+            state.sinceKeyframe = 0;
+            state.started = true;
+        } else {
+            state.sinceKeyframe++;
+            if (changed.size() == 0 && removedCount == 0) {
+                return null;
+            }
+        }
+        return new ScanDelta(scan, changed, Arrays.copyOf(removed, removedCount),
+                state.sequence++, keyframe);
+    }
+
+    /**
+     * Forgets what was sent, so the next scan of each type is a keyframe. For when deltas may
+     * have been lost, ie: the cache was cleared.
+     */
+    public synchronized void reset() {
+        states.clear();
+    }
+
+    private boolean hasChanged(NetworkStat.Builder sent, int last, NetworkStat scan, int i) {
+        return Math.abs(scan.getSignalStrength(i) - sent.getSignalStrength(last)) >= rssiThreshold
+                || scan.getFrequency(i) != sent.getFrequency(last)
+                || scan.getChannelWidth(i) != sent.getChannelWidth(last)
+                || !equal(scan.getName(i), sent.getName(last))
+                || !equal(scan.getSecurity(i), sent.getSecurity(last));
+    }
+
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
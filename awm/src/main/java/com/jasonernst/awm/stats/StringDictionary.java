@@ -0,0 +1,125 @@
+package com.jasonernst.awm.stats;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A process-wide intern table for the strings which repeat from scan to scan, the SSIDs and
+ * Bluetooth names and the security capabilities such as "[WPA2-PSK-CCMP][ESS]". Each distinct
+ * string is held once, so the devices of every scan share the same instances, and is given an
+ * id which the encoded observations refer to instead of repeating the text.
+ *
+ * The table holds at most capacity strings and evicts the least recently used one when full.
+ * Ids are never reused: a string which was evicted and comes back gets a new id, so an id in an
+ * observation which was already encoded can't come to mean a different string.
+ */
+public final class StringDictionary {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * A string of the dictionary along with its id.
+     */
+    public static final class Entry {
+        private final String value;
+        private final int id;
+
+        Entry(String value, int id) {
+            this.value = value;
+            this.id = id;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public int getId() {
+            return id;
+        }
+    }
+
+    private static final StringDictionary INSTANCE = new StringDictionary(DEFAULT_CAPACITY);
+
+    private final LinkedHashMap<String, Entry> entries;
+    private int capacity;
+    private int nextId;
+    private long evicted;
+
+    public static StringDictionary getInstance() {
+        return INSTANCE;
+    }
+
+    StringDictionary(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.capacity = capacity;
+        // access ordered, so the eldest entry is the least recently used
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > StringDictionary.this.capacity) {
+                    evicted++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the entry of value, adding it if it isn't held yet, or null for null.
+     */
+    public synchronized Entry lookup(String value) {
+        if (value == null) {
+            return null;
+        }
+        Entry entry = entries.get(value);
+        if (entry == null) {
+            entry = new Entry(value, nextId++);
+            entries.put(value, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * @return the instance of value held by the dictionary, which is value itself if it wasn't
+     * held yet.
+     */
+    public String intern(String value) {
+        Entry entry = lookup(value);
+        return entry == null ? null : entry.getValue();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Changes the most strings held, evicting the least recently used ones when shrinking.
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.capacity = capacity;
+        Iterator<String> eldest = entries.keySet().iterator();
+        while (entries.size() > capacity) {
+            eldest.next();
+            eldest.remove();
+            evicted++;
+        }
+    }
+
+    /**
+     * @return how many strings were evicted to make room for others.
+     */
+    public synchronized long getEvictedCount() {
+        return evicted;
+    }
+}
@@ -0,0 +1,55 @@
+package com.jasonernst.awm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import io.reactivex.processors.PublishProcessor;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.schedulers.TestScheduler;
+import io.reactivex.subscribers.TestSubscriber;
+
+public class FlowControlTest {
+
+    @Test public void latestKeepsTheNewest() {
+        PublishProcessor<Integer> items = PublishProcessor.create();
+        TestSubscriber<Integer> subscriber = FlowControl.latest()
+                .apply(items, Schedulers.trampoline()).test(0);
+        for (int i = 0; i < 5; i++) {
+            items.onNext(i);
+        }
+        subscriber.assertNoValues();
+        // the first was already in hand-off to the scheduler
+        subscriber.request(2);
+        subscriber.assertValues(0, 4);
+        items.onNext(5);
+        subscriber.request(1);
+        subscriber.assertValues(0, 4, 5).assertNoErrors();
+    }
+
+    @Test public void bufferDropsTheOldest() {
+        PublishProcessor<Integer> items = PublishProcessor.create();
+        TestSubscriber<Integer> subscriber = FlowControl.buffer(2)
+                .apply(items, Schedulers.trampoline()).test(0);
+        for (int i = 0; i < 5; i++) {
+            items.onNext(i);
+        }
+        subscriber.request(10);
+        subscriber.assertValues(0, 3, 4).assertNoErrors();
+    }
+
+    @Test public void samplePassesOnePerPeriod() {
+        TestScheduler timer = new TestScheduler();
+        PublishProcessor<Integer> items = PublishProcessor.create();
+        TestSubscriber<Integer> subscriber = FlowControl.sample(1, TimeUnit.SECONDS, timer)
+                .apply(items, Schedulers.trampoline()).test();
+        items.onNext(1);
+        items.onNext(2);
+        timer.advanceTimeBy(1, TimeUnit.SECONDS);
+        items.onNext(3);
+        timer.advanceTimeBy(1, TimeUnit.SECONDS);
+        // nothing new in this period
+        timer.advanceTimeBy(1, TimeUnit.SECONDS);
+        subscriber.assertValues(2, 3).assertNoErrors();
+    }
+}
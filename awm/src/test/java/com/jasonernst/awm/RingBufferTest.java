@@ -0,0 +1,68 @@
+package com.jasonernst.awm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RingBufferTest {
+
+    @Test public void isFirstInFirstOutAcrossLaps() {
+        RingBuffer<Integer> ring = new RingBuffer<>(3);
+        assertEquals(4, ring.capacity());
+        for (int lap = 0; lap < 3; lap++) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(ring.offer(lap * 4 + i));
+            }
+            assertFalse(ring.offer(-1));
+            assertEquals(4, ring.size());
+            for (int i = 0; i < 4; i++) {
+                assertEquals(lap * 4 + i, (int) ring.poll());
+            }
+            assertNull(ring.poll());
+            assertTrue(ring.isEmpty());
+        }
+    }
+
+    @Test public void takesFromSeveralProducers() throws InterruptedException {
+        final RingBuffer<Integer> ring = new RingBuffer<>(64);
+        final int producers = 4;
+        final int each = 10000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int base = p * each;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < each; i++) {
+                    while (!ring.offer(base + i)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        int[] next = new int[producers];
+        int received = 0;
+        while (received < producers * each) {
+            Integer value = ring.poll();
+            if (value == null) {
+                Thread.yield();
+                continue;
+            }
+            // each producer's events arrive in the order it offered them
+            int producer = value / each;
+            assertEquals(next[producer]++, value % each);
+            received++;
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(ring.isEmpty());
+    }
+}
@@ -0,0 +1,67 @@
+package com.jasonernst.awm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.jasonernst.awm.stats.GPSStats;
+import com.jasonernst.awm.stats.NetworkStat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StatsPipelineTest {
+
+    private static NetworkStat scan() {
+        return new NetworkStat.Builder().build(NetworkStat.DeviceType.WIFI);
+    }
+
+    @Test public void handlesOnItsOwnThread() throws InterruptedException {
+        StatsPipeline pipeline = new StatsPipeline(8, null);
+        final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch handled = new CountDownLatch(20);
+        pipeline.getNetworkStats().subscribe(stat -> {
+            threads.add(Thread.currentThread().getName());
+            handled.countDown();
+        });
+        pipeline.start();
+        try {
+            for (int i = 0; i < 20; i++) {
+                assertTrue(pipeline.publish(scan()));
+                // let the consumer keep up, the ring only holds 8
+                Thread.sleep(1);
+            }
+            assertTrue(handled.await(5, TimeUnit.SECONDS));
+        } finally {
+            pipeline.stop();
+        }
+        assertNotEquals(Thread.currentThread().getName(), threads.get(0));
+        assertEquals(0, pipeline.getNetworkStats().getDropped());
+    }
+
+    @Test public void dropsWhenFullAndDrainsOnStop() {
+        StatsPipeline pipeline = new StatsPipeline(4, null);
+        final List<GPSStats> positions = new ArrayList<>();
+        // not started, so nothing is taken off the ring
+        pipeline.getGpsStats().subscribe(positions::add);
+        for (int i = 0; i < 6; i++) {
+            pipeline.publish(new GPSStats(i, i));
+        }
+        assertEquals(4, pipeline.getGpsStats().getDepth());
+        assertEquals(2, pipeline.getGpsStats().getDropped());
+
+        pipeline.start();
+        pipeline.stop();
+        assertEquals(4, positions.size());
+        assertEquals(3, positions.get(3).longitude, 0);
+
+        pipeline.getGpsStats().unsubscribe();
+        assertFalse(pipeline.publish(new GPSStats(1, 1)));
+    }
+}
@@ -0,0 +1,45 @@
+package com.jasonernst.awm.collectors;
+
+import org.junit.jupiter.api.Test;
+
+import com.jasonernst.awm.stats.NetworkStat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class DiscoveryDutyCycleTest {
+
+    private static NetworkStat found(long... macs) {
+        NetworkStat.Builder builder = new NetworkStat.Builder();
+        for (long mac : macs) {
+            builder.put("phone", mac, -70, 0, 0, "");
+        }
+        return builder.build(NetworkStat.DeviceType.BLUETOOTH);
+    }
+
+    @Test public void sleepsLongerWhileNothingChanges() {
+        DiscoveryDutyCycle dutyCycle = new DiscoveryDutyCycle();
+        dutyCycle.setWindows(10000, 1000, 5000);
+        assertEquals(1000, dutyCycle.onCycleFinished(10000, found(1, 2)));
+        // the order they were found in doesn't matter
+        assertEquals(2000, dutyCycle.onCycleFinished(10000, found(2, 1)));
+        assertEquals(4000, dutyCycle.onCycleFinished(10000, found(1, 2)));
+        assertEquals(5000, dutyCycle.onCycleFinished(10000, found(1, 2)));
+        assertEquals(1000, dutyCycle.onCycleFinished(10000, found(1, 2, 3)));
+
+        dutyCycle.onCycleFinished(10000, found(1, 2, 3));
+        dutyCycle.reset();
+        assertEquals(1000, dutyCycle.getSleepMillis());
+        assertEquals(1000, dutyCycle.onCycleFinished(10000, found(1, 2, 3)));
+    }
+
+    @Test public void keepsTheTimeAndDevicesPerCycle() {
+        DiscoveryDutyCycle dutyCycle = new DiscoveryDutyCycle();
+        dutyCycle.onCycleFinished(12000, found(1, 2, 3));
+        dutyCycle.onCycleFinished(8000, found());
+        assertEquals(2, dutyCycle.getCycleCount());
+        assertEquals(8000, dutyCycle.getLastDiscoveryTimeMillis());
+        assertEquals(10000, dutyCycle.getAverageDiscoveryTimeMillis(), 0);
+        assertEquals(0, dutyCycle.getLastDeviceCount());
+        assertEquals(1.5, dutyCycle.getAverageDeviceCount(), 0);
+    }
+}
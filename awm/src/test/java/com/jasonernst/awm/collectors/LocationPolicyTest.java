@@ -0,0 +1,48 @@
+package com.jasonernst.awm.collectors;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LocationPolicyTest {
+
+    @Test public void followsTheSpeed() {
+        LocationPolicy policy = new LocationPolicy();
+        assertEquals(LocationPolicy.Mode.WALKING, policy.getMode());
+        assertTrue(policy.onSpeed(0));
+        assertEquals(LocationPolicy.Mode.STATIONARY, policy.getMode());
+        assertTrue(policy.onSpeed(15));
+        assertEquals(LocationPolicy.Mode.DRIVING, policy.getMode());
+        assertEquals(LocationPolicy.Priority.HIGH_ACCURACY, policy.getMode().getPriority());
+        assertTrue(policy.onSpeed(1));
+        assertEquals(LocationPolicy.Mode.WALKING, policy.getMode());
+    }
+
+    @Test public void doesntFlapAroundAThreshold() {
+        LocationPolicy policy = new LocationPolicy();
+        policy.onSpeed(5);
+        assertFalse(policy.onSpeed(4));
+        assertFalse(policy.onSpeed(5.5f));
+        assertEquals(LocationPolicy.Mode.DRIVING, policy.getMode());
+
+        policy.onSpeed(0);
+        assertFalse(policy.onSpeed(0.4f));
+        assertEquals(LocationPolicy.Mode.STATIONARY, policy.getMode());
+        assertTrue(policy.onSpeed(0.5f));
+        assertFalse(policy.onSpeed(0.4f));
+        assertEquals(LocationPolicy.Mode.WALKING, policy.getMode());
+    }
+
+    @Test public void lowBatteryOutweighsTheSpeed() {
+        LocationPolicy policy = new LocationPolicy();
+        policy.onSpeed(20);
+        assertTrue(policy.onBattery(10));
+        assertEquals(LocationPolicy.Mode.LOW_BATTERY, policy.getMode());
+        // still remembered for when the battery recovers
+        assertFalse(policy.onSpeed(20));
+        assertTrue(policy.onBattery(90));
+        assertEquals(LocationPolicy.Mode.DRIVING, policy.getMode());
+    }
+}
@@ -0,0 +1,45 @@
+package com.jasonernst.awm.collectors;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ScanFreshnessFilterTest {
+
+    @Test public void passesEachSightingOnce() {
+        ScanFreshnessFilter filter = new ScanFreshnessFilter(1000);
+        filter.reset(0);
+        assertTrue(filter.isFresh(1, 10, 20));
+        assertTrue(filter.isFresh(2, 10, 20));
+        // the cached list of a throttled scan
+        assertFalse(filter.isFresh(1, 10, 30));
+        assertFalse(filter.isFresh(2, 10, 30));
+        // 1 seen again, 2 only still cached
+        assertTrue(filter.isFresh(1, 40, 50));
+        assertFalse(filter.isFresh(2, 10, 50));
+        assertEquals(3, filter.getSuppressedCount());
+    }
+
+    @Test public void dropsWhatWasCachedBeforeStartingOrIsTooOld() {
+        ScanFreshnessFilter filter = new ScanFreshnessFilter(1000);
+        filter.reset(100);
+        assertFalse(filter.isFresh(1, 99, 200));
+        assertTrue(filter.isFresh(1, 100, 200));
+        assertFalse(filter.isFresh(2, 500, 2000));
+        assertEquals(2, filter.getSuppressedCount());
+    }
+
+    @Test public void forgetsOldSightingsAsItFills() {
+        ScanFreshnessFilter filter = new ScanFreshnessFilter(1000);
+        filter.reset(0);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.isFresh(i, i * 100, i * 100));
+        }
+        // only those of the last 1000 are worth keeping
+        assertTrue(filter.size() < 100);
+        assertFalse(filter.isFresh(999, 99900, 99950));
+        assertTrue(filter.isFresh(999, 99950, 99950));
+    }
+}
@@ -0,0 +1,91 @@
+package com.jasonernst.awm.collectors;
+
+import org.junit.jupiter.api.Test;
+
+import com.jasonernst.awm.stats.GPSStats;
+import com.jasonernst.awm.stats.NetworkStat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WiFiScanSchedulerTest {
+
+    private static NetworkStat scan(long... macs) {
+        NetworkStat.Builder builder = new NetworkStat.Builder();
+        for (long mac : macs) {
+            builder.put("ssid", mac, -60, 2412, 20, "WPA2");
+        }
+        return builder.build(NetworkStat.DeviceType.WIFI);
+    }
+
+    @Test public void staysWithinTheBudget() {
+        WiFiScanScheduler scheduler = new WiFiScanScheduler(true);
+        scheduler.setIntervals(1000, 1000, 1000);
+        long now = 0;
+        for (int i = 0; i < 4; i++) {
+            assertTrue(scheduler.canScan(now));
+            scheduler.onScanRequested(now, true);
+            now += scheduler.getDelayMillis(now);
+        }
+        // the fifth has to wait for the first to leave the 2 minute window
+        assertEquals(WiFiScanScheduler.DEFAULT_BUDGET_WINDOW_MILLIS, now);
+        assertFalse(scheduler.canScan(now - 1));
+        assertTrue(scheduler.canScan(now));
+        scheduler.onScanRequested(now, false);
+        assertEquals(4, scheduler.getRequestedCount());
+        assertEquals(1, scheduler.getThrottledCount());
+    }
+
+    @Test public void unthrottledOnlyKeepsTheInterval() {
+        WiFiScanScheduler scheduler = new WiFiScanScheduler(false);
+        assertEquals(0, scheduler.getDelayMillis(0));
+        for (int i = 0; i < 10; i++) {
+            assertTrue(scheduler.canScan(i));
+            scheduler.onScanRequested(i, true);
+        }
+        assertEquals(WiFiScanScheduler.DEFAULT_INTERVAL_MILLIS + 9, scheduler.getDelayMillis(9) + 9);
+    }
+
+    @Test public void backsOffWhileTheScansStayTheSame() {
+        WiFiScanScheduler scheduler = new WiFiScanScheduler(false);
+        long now = 0;
+        for (int i = 0; i < 10; i++) {
+            scheduler.onResults(scan(1, 2, 3, 4, 5));
+            scheduler.onScanRequested(now, true);
+            now += scheduler.getDelayMillis(now);
+        }
+        assertEquals(WiFiScanScheduler.DEFAULT_MAX_INTERVAL_MILLIS, scheduler.getIntervalMillis());
+
+        // new access points mean the device moved, so it scans as often as it may again
+        scheduler.onResults(scan(6, 7, 8, 9, 10));
+        scheduler.onScanRequested(now, true);
+        assertEquals(WiFiScanScheduler.DEFAULT_MIN_INTERVAL_MILLIS, scheduler.getIntervalMillis());
+        assertEquals(11, scheduler.getReturnedCount());
+    }
+
+    @Test public void aRecentPositionOutweighsTheScans() {
+        WiFiScanScheduler scheduler = new WiFiScanScheduler(false);
+        scheduler.onResults(scan(1, 2, 3));
+        scheduler.onResults(scan(1, 2, 3));
+        // about 11m in 10s
+        scheduler.onPosition(0, new GPSStats(-123.0, 49.0));
+        scheduler.onPosition(10000, new GPSStats(-123.0, 49.0001));
+        scheduler.onScanRequested(10000, true);
+        assertEquals(WiFiScanScheduler.DEFAULT_MIN_INTERVAL_MILLIS, scheduler.getIntervalMillis());
+
+        // once the position is stale the scans say it is stationary
+        scheduler.onScanRequested(10000 + 3 * 60 * 1000, true);
+        assertEquals(WiFiScanScheduler.DEFAULT_INTERVAL_MILLIS * 2, scheduler.getIntervalMillis());
+    }
+
+    @Test public void waitsLongerOnLowBattery() {
+        WiFiScanScheduler scheduler = new WiFiScanScheduler(false);
+        scheduler.onScanRequested(0, true);
+        assertEquals(WiFiScanScheduler.DEFAULT_INTERVAL_MILLIS, scheduler.getDelayMillis(0));
+        scheduler.onBattery(15);
+        assertEquals(WiFiScanScheduler.DEFAULT_INTERVAL_MILLIS * 2, scheduler.getDelayMillis(0));
+        scheduler.onBattery(80);
+        assertEquals(WiFiScanScheduler.DEFAULT_INTERVAL_MILLIS, scheduler.getDelayMillis(0));
+    }
+}
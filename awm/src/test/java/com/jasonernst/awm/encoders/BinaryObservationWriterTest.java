@@ -0,0 +1,85 @@
+package com.jasonernst.awm.encoders;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class BinaryObservationWriterTest {
+
+    private static byte[] bytes(int... values) {
+        byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) values[i];
+        }
+        return result;
+    }
+
+    @Test public void headerAndDictionary() throws IOException {
+        BinaryObservationWriter writer = new BinaryObservationWriter();
+        writer.writeString("ssid").writeString("[ESS]").writeString("ssid").writeString(null);
+
+        byte[] expected = bytes(
+                'A', 'W', 'M', 2,
+                3,
+                4, 's', 's', 'i', 'd',
+                5, '[', 'E', 'S', 'S', ']',
+                4, 'n', 'u', 'l', 'l',
+                0, 1, 0, 2);
+        assertArrayEquals(expected, writer.toByteArray());
+        assertEquals(expected.length, writer.size());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.writeTo(out);
+        assertArrayEquals(expected, out.toByteArray());
+    }
+
+    @Test public void nullableStrings() {
+        BinaryObservationWriter writer = new BinaryObservationWriter();
+        writer.writeNullableString("ssid").writeNullableString(null)
+                .writeNullableString("ssid");
+        assertArrayEquals(bytes('A', 'W', 'M', 2, 1, 4, 's', 's', 'i', 'd', 0, 1, 0),
+                writer.toByteArray());
+
+        BinaryObservationReader reader = new BinaryObservationReader(writer.toByteArray());
+        assertEquals("ssid", reader.readNullableString());
+        assertEquals(-1, reader.readNullableStringId());
+        assertEquals(0, reader.readNullableStringId());
+    }
+
+    @Test public void version1WroteNullAsAString() {
+        BinaryObservationReader reader = new BinaryObservationReader(
+                bytes('A', 'W', 'M', 1, 1, 4, 'n', 'u', 'l', 'l', 0));
+        assertNull(reader.readNullableString());
+    }
+
+    @Test public void varints() {
+        BinaryObservationWriter writer = new BinaryObservationWriter();
+        writer.writeVarint(1).writeVarint(300).writeSignedVarint(-1).writeSignedVarint(-65)
+                .writeSignedVarint(2412);
+
+        byte[] payload = writer.toByteArray();
+        byte[] body = new byte[payload.length - 5];
+        System.arraycopy(payload, 5, body, 0, body.length);
+        // 300 = 0b10_0101100, -1 -> 1, -65 -> 129, 2412 -> 4824
+        assertArrayEquals(bytes(1, 0xAC, 0x02, 0x01, 0x81, 0x01, 0xD8, 0x25), body);
+    }
+
+    @Test public void macs() {
+        assertEquals(0x001122AABBCCL, MacAddress.parse("00:11:22:aa:bb:cc"));
+        assertEquals(0x001122AABBCCL, MacAddress.parse("00-11-22-AA-BB-CC"));
+        assertEquals(-1, MacAddress.parse("02:00:00:00:00"));
+        assertEquals(-1, MacAddress.parse("zz:11:22:aa:bb:cc"));
+        assertEquals("00:11:22:AA:BB:CC", MacAddress.format(0x001122AABBCCL));
+
+        BinaryObservationWriter writer = new BinaryObservationWriter();
+        writer.writeMac("00:11:22:aa:bb:cc").writeMac("not a mac").reset();
+        writer.writeMac("ff:ee:dd:cc:bb:aa");
+        assertArrayEquals(bytes('A', 'W', 'M', 2, 0, 0xFF, 0xEE, 0xDD, 0xCC, 0xBB, 0xAA),
+                writer.toByteArray());
+    }
+}
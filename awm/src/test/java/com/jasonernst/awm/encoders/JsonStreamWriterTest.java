@@ -0,0 +1,101 @@
+package com.jasonernst.awm.encoders;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class JsonStreamWriterTest {
+
+    private static void writeSample(JsonStreamWriter writer) throws IOException {
+        writer.beginObject().name("awm_measure").beginObject()
+                .name("reporting_device").beginObject()
+                    .name("uuid").value("abc")
+                    .name("battery_life").stringValue(100f)
+                .endObject()
+                .name("devices").beginArray()
+                    .beginObject()
+                        .name("mac_address").value("00:11:22:33:44:55")
+                        .name("signal_strength").value(-40)
+                    .endObject()
+                    .beginObject()
+                        .name("network_name").value((String) null)
+                    .endObject()
+                .endArray()
+                .endObject().endObject();
+    }
+
+    @Test public void prettyMatchesLegacyLayout() throws IOException {
+        JsonStreamWriter writer = new JsonStreamWriter(JsonStreamWriter.Style.PRETTY);
+        writeSample(writer);
+
+        String expected = "{\n"
+                + "\t\"awm_measure\": {\n"
+                + "\t\t\"reporting_device\": {\n"
+                + "\t\t\t\"uuid\": \"abc\",\n"
+                + "\t\t\t\"battery_life\": \"100.0\"\n"
+                + "\t\t},\n"
+                + "\t\t\"devices\": [\n"
+                + "\t\t\t{\n"
+                + "\t\t\t\t\"mac_address\": \"00:11:22:33:44:55\",\n"
+                + "\t\t\t\t\"signal_strength\": -40\n"
+                + "\t\t\t},\n"
+                + "\t\t\t{\n"
+                + "\t\t\t\t\"network_name\": \"null\"\n"
+                + "\t\t\t}\n"
+                + "\t\t]\n"
+                + "\t}\n"
+                + "}\n";
+        assertEquals(expected, writer.toString());
+    }
+
+    @Test public void compact() throws IOException {
+        JsonStreamWriter writer = new JsonStreamWriter(JsonStreamWriter.Style.COMPACT);
+        writeSample(writer);
+
+        assertEquals("{\"awm_measure\":{\"reporting_device\":{\"uuid\":\"abc\","
+                + "\"battery_life\":\"100.0\"},\"devices\":[{\"mac_address\":"
+                + "\"00:11:22:33:44:55\",\"signal_strength\":-40},{\"network_name\":\"null\"}]}}",
+                writer.toString());
+    }
+
+    @Test public void emptyArray() throws IOException {
+        JsonStreamWriter writer = new JsonStreamWriter(JsonStreamWriter.Style.PRETTY);
+        writer.beginObject().name("devices").beginArray().endArray().endObject();
+        assertEquals("{\n\t\"devices\": [\n\t]\n}\n", writer.toString());
+    }
+
+    @Test public void escaping() throws IOException {
+        JsonStreamWriter writer = new JsonStreamWriter(JsonStreamWriter.Style.COMPACT);
+        writer.beginArray()
+                .value("quote\" slash\\ tab\t nl\n bell\u0007")
+                .value("caf\u00e9 \ud83d\udcf6")
+                .endArray();
+        assertEquals("[\"quote\\\" slash\\\\ tab\\t nl\\n bell\\u0007\",\"caf\u00e9 \ud83d\udcf6\"]",
+                writer.toString());
+    }
+
+    @Test public void streamsInChunksAndReuses() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonStreamWriter streaming = new JsonStreamWriter(out, JsonStreamWriter.Style.COMPACT);
+        JsonStreamWriter buffered = new JsonStreamWriter(JsonStreamWriter.Style.COMPACT);
+        for (JsonStreamWriter writer : new JsonStreamWriter[] {streaming, buffered}) {
+            writer.beginArray();
+            for (int i = 0; i < 5000; i++) {
+                writer.value("ssid-" + i).value(i);
+            }
+            writer.endArray();
+        }
+        streaming.flush();
+        assertArrayEquals(buffered.toByteArray(), out.toByteArray());
+
+        buffered.reset(JsonStreamWriter.Style.COMPACT);
+        buffered.beginArray().value(Long.MIN_VALUE).value(0).endArray();
+        assertEquals("[-9223372036854775808,0]",
+                new String(buffered.toByteArray(), StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,86 @@
+package com.jasonernst.awm.loggers;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class GroupCommitBufferTest {
+
+    private static class Recorder implements GroupCommitBuffer.Sink<Integer>,
+            GroupCommitBuffer.Listener<Integer> {
+        final List<List<Integer>> written = Collections.synchronizedList(new ArrayList<>());
+        final List<Integer> durable = Collections.synchronizedList(new ArrayList<>());
+        final List<Integer> failed = Collections.synchronizedList(new ArrayList<>());
+        volatile boolean fail;
+        volatile CountDownLatch latch = new CountDownLatch(1);
+
+        @Override
+        public void write(List<Integer> records) throws Exception {
+            if (fail) {
+                throw new Exception("disk full");
+            }
+            written.add(new ArrayList<>(records));
+        }
+
+        @Override
+        public void onDurable(List<Integer> records) {
+            durable.addAll(records);
+            latch.countDown();
+        }
+
+        @Override
+        public void onFailed(List<Integer> records, Exception ex) {
+            failed.addAll(records);
+            latch.countDown();
+        }
+    }
+
+    @Test public void writesFullGroups() {
+        Recorder recorder = new Recorder();
+        GroupCommitBuffer<Integer> buffer = new GroupCommitBuffer<>(recorder, recorder, 3, 60000);
+        for (int i = 0; i < 7; i++) {
+            buffer.add(i);
+        }
+        assertEquals(Arrays.asList(Arrays.asList(0, 1, 2), Arrays.asList(3, 4, 5)),
+                recorder.written);
+        assertEquals(1, buffer.getPendingCount());
+
+        buffer.close();
+        assertEquals(Arrays.asList(6), recorder.written.get(2));
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6), recorder.durable);
+        assertThrows(IllegalStateException.class, () -> buffer.add(7));
+    }
+
+    @Test public void writesPartialGroupsAfterTheDelay() throws InterruptedException {
+        Recorder recorder = new Recorder();
+        GroupCommitBuffer<Integer> buffer = new GroupCommitBuffer<>(recorder, recorder, 100, 50);
+        long start = System.nanoTime();
+        buffer.add(1);
+        buffer.add(2);
+        assertTrue(recorder.latch.await(5, TimeUnit.SECONDS));
+        assertTrue((System.nanoTime() - start) / 1000000 >= 49);
+        assertEquals(Arrays.asList(Arrays.asList(1, 2)), recorder.written);
+        assertEquals(0, buffer.getPendingCount());
+        buffer.close();
+    }
+
+    @Test public void reportsFailures() {
+        Recorder recorder = new Recorder();
+        recorder.fail = true;
+        GroupCommitBuffer<Integer> buffer = new GroupCommitBuffer<>(recorder, recorder, 2, 60000);
+        buffer.add(1);
+        buffer.add(2);
+        assertEquals(Arrays.asList(1, 2), recorder.failed);
+        assertTrue(recorder.durable.isEmpty());
+        buffer.close();
+    }
+}
@@ -0,0 +1,204 @@
+package com.jasonernst.awm.loggers;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.jasonernst.awm.ObservingDevice;
+import com.jasonernst.awm.encoders.JsonStreamWriter;
+import com.jasonernst.awm.stats.NetworkStat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class LogDispatcherTest {
+
+    private final ObservingDevice device = mock(ObservingDevice.class);
+
+    /**
+     * Records what it logs, and holds up its worker until released.
+     */
+    private static class RecordingLogger implements StatsLogger, JsonLogger {
+        final List<String> logged = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile CountDownLatch done;
+        // goes offline once it has logged this many
+        volatile int onlineFor = Integer.MAX_VALUE;
+
+        @Override
+        public void log(NetworkStat stat, ObservingDevice thisDevice) throws Exception {
+            release.await();
+            record(stat.toJSON(thisDevice, JsonStreamWriter.Style.COMPACT));
+        }
+
+        @Override
+        public void logJson(String json) throws IOException {
+            if (!canLogJson()) {
+                throw new IOException("Offline");
+            }
+            record(json);
+        }
+
+        @Override
+        public boolean canLogJson() {
+            return logged.size() < onlineFor;
+        }
+
+        private void record(String json) {
+            logged.add(json);
+            if (done != null) {
+                done.countDown();
+            }
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void stop() {
+        }
+    }
+
+    private NetworkStat stat(String json) throws Exception {
+        NetworkStat stat = mock(NetworkStat.class);
+        when(stat.toJSON(eq(device), any(JsonStreamWriter.Style.class))).thenReturn(json);
+        return stat;
+    }
+
+    /**
+     * Dispatches one observation and waits until the single worker is stuck logging it, so the
+     * queue starts empty.
+     */
+    private void occupyWorker(LogDispatcher dispatcher, RecordingLogger logger) throws Exception {
+        dispatcher.dispatch(logger, stat("first"), device);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (dispatcher.getQueueDepth() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, dispatcher.getQueueDepth());
+    }
+
+    @Test public void dropsOldestWhenFull() throws Exception {
+        RecordingLogger logger = new RecordingLogger();
+        LogDispatcher dispatcher = new LogDispatcher(1, 2,
+                LogDispatcher.OverflowPolicy.DROP_OLDEST, null);
+        List<NetworkStat> dropped = Collections.synchronizedList(new ArrayList<>());
+        dispatcher.setDropListener(dropped::add);
+        dispatcher.start();
+        occupyWorker(dispatcher, logger);
+
+        List<NetworkStat> stats = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            stats.add(stat("" + i));
+            dispatcher.dispatch(logger, stats.get(i), device);
+        }
+        assertEquals(2, dispatcher.getQueueDepth());
+        assertEquals(3, dispatcher.getDroppedCount());
+        assertEquals(stats.subList(0, 3), dropped);
+
+        logger.done = new CountDownLatch(3);
+        logger.release.countDown();
+        assertTrue(logger.done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("first", "3", "4"), logger.logged);
+        dispatcher.stop();
+    }
+
+    @Test public void spillsWhenFullAndReplaysOnceDrained(@TempDir File spillDirectory)
+            throws Exception {
+        RecordingLogger logger = new RecordingLogger();
+        LogDispatcher dispatcher = new LogDispatcher(1, 2,
+                LogDispatcher.OverflowPolicy.SPILL_TO_DISK, spillDirectory);
+        dispatcher.start();
+        occupyWorker(dispatcher, logger);
+
+        for (int i = 0; i < 5; i++) {
+            dispatcher.dispatch(logger, stat("{\"n\":" + i + "}"), device);
+        }
+        assertEquals(2, dispatcher.getQueueDepth());
+        assertEquals(3, dispatcher.getSpillDepth());
+        assertEquals(0, dispatcher.getDroppedCount());
+
+        logger.done = new CountDownLatch(6);
+        logger.release.countDown();
+        assertTrue(logger.done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("first", "{\"n\":0}", "{\"n\":1}", "{\"n\":2}",
+                "{\"n\":3}", "{\"n\":4}"), logger.logged);
+        assertEquals(0, dispatcher.getSpillDepth());
+        dispatcher.stop();
+    }
+
+    @Test public void stopSpillsWhatIsQueued(@TempDir File spillDirectory) throws Exception {
+        RecordingLogger logger = new RecordingLogger();
+        LogDispatcher dispatcher = new LogDispatcher(1, 4,
+                LogDispatcher.OverflowPolicy.SPILL_TO_DISK, spillDirectory);
+        dispatcher.start();
+        occupyWorker(dispatcher, logger);
+        dispatcher.dispatch(logger, stat("{\"n\":0}"), device);
+        dispatcher.dispatch(logger, stat("{\"n\":1}"), device);
+        dispatcher.stop();
+        assertEquals(0, dispatcher.getQueueDepth());
+
+        // the next run picks up where this one left off
+        RecordingLogger next = new RecordingLogger();
+        next.done = new CountDownLatch(2);
+        LogDispatcher restarted = new LogDispatcher(1, 4,
+                LogDispatcher.OverflowPolicy.SPILL_TO_DISK, spillDirectory);
+        restarted.restoreSpilled(next);
+        assertEquals(2, restarted.getSpillDepth());
+        restarted.start();
+        assertTrue(next.done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("{\"n\":0}", "{\"n\":1}"), next.logged);
+        restarted.stop();
+    }
+
+    @Test public void keepsSpilledWhileTheLoggerIsOffline(@TempDir File spillDirectory)
+            throws Exception {
+        RecordingLogger logger = new RecordingLogger();
+        LogDispatcher dispatcher = new LogDispatcher(1, 4,
+                LogDispatcher.OverflowPolicy.SPILL_TO_DISK, spillDirectory);
+        dispatcher.start();
+        occupyWorker(dispatcher, logger);
+        for (int i = 0; i < 3; i++) {
+            dispatcher.dispatch(logger, stat("{\"n\":" + i + "}"), device);
+        }
+        dispatcher.stop();
+        assertEquals(3, dispatcher.getSpillDepth());
+
+        // the first goes through, then the connection drops
+        RecordingLogger next = new RecordingLogger();
+        next.onlineFor = 1;
+        next.done = new CountDownLatch(1);
+        LogDispatcher restarted = new LogDispatcher(1, 4,
+                LogDispatcher.OverflowPolicy.SPILL_TO_DISK, spillDirectory);
+        restarted.restoreSpilled(next);
+        restarted.start();
+        assertTrue(next.done.await(5, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (restarted.getSpillDepth() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        // give it the chance to replay while still offline
+        Thread.sleep(100);
+        assertEquals(2, restarted.getSpillDepth());
+        assertEquals(Arrays.asList("{\"n\":0}"), next.logged);
+
+        next.done = new CountDownLatch(2);
+        next.onlineFor = Integer.MAX_VALUE;
+        assertTrue(next.done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("{\"n\":0}", "{\"n\":1}", "{\"n\":2}"), next.logged);
+        restarted.stop();
+    }
+}
@@ -0,0 +1,95 @@
+package com.jasonernst.awm.loggers;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class OfflineBufferTest {
+
+    /**
+     * Stands in for the server, storing everything it is sent unless told to fail.
+     */
+    private static NetworkLogger server(final List<String> uploaded, final boolean[] fail)
+            throws IOException {
+        NetworkLogger networkLogger = mock(NetworkLogger.class);
+        when(networkLogger.uploadBatch(anyList(), any())).thenAnswer(invocation -> {
+            if (fail[0]) {
+                throw new IOException("unreachable");
+            }
+            List<String> entries = invocation.getArgument(0);
+            uploaded.addAll(entries);
+            int[] statuses = new int[entries.size()];
+            Arrays.fill(statuses, 200);
+            return new BatchResult(statuses, new String[entries.size()]);
+        });
+        return networkLogger;
+    }
+
+    @Test public void uploadsSpilledThenBufferedInOrder(@TempDir File directory)
+            throws Exception {
+        List<String> uploaded = new ArrayList<>();
+        boolean[] fail = {false};
+        OfflineBuffer buffer = new OfflineBuffer(server(uploaded, fail), directory, 3);
+        buffer.setBatchRecords(2);
+        buffer.start();
+        for (int i = 0; i < 7; i++) {
+            buffer.logJson("{\"n\":" + i + "}");
+        }
+        assertEquals(3, buffer.getBufferedCount());
+        assertTrue(buffer.hasPending());
+
+        assertEquals(7, buffer.flush());
+        assertEquals(7, uploaded.size());
+        for (int i = 0; i < 7; i++) {
+            assertEquals("{\"n\":" + i + "}", uploaded.get(i));
+        }
+        assertFalse(buffer.hasPending());
+    }
+
+    @Test public void keepsEverythingWhenTheUploadFails(@TempDir File directory)
+            throws Exception {
+        List<String> uploaded = new ArrayList<>();
+        boolean[] fail = {true};
+        OfflineBuffer buffer = new OfflineBuffer(server(uploaded, fail), directory, 2);
+        for (int i = 0; i < 4; i++) {
+            buffer.logJson("{\"n\":" + i + "}");
+        }
+        assertThrows(IOException.class, buffer::flush);
+        assertEquals(2, buffer.getBufferedCount());
+
+        fail[0] = false;
+        assertEquals(4, buffer.flush());
+        assertEquals(4, uploaded.size());
+    }
+
+    @Test public void survivesRestarting(@TempDir File directory) throws Exception {
+        List<String> uploaded = new ArrayList<>();
+        boolean[] fail = {false};
+        NetworkLogger networkLogger = server(uploaded, fail);
+        OfflineBuffer buffer = new OfflineBuffer(networkLogger, directory, 10);
+        buffer.start();
+        buffer.logJson("{\"n\":0}");
+        buffer.logJson("{\"n\":1}");
+        buffer.stop();
+
+        buffer = new OfflineBuffer(networkLogger, directory, 10);
+        buffer.start();
+        assertTrue(buffer.hasPending());
+        assertEquals(2, buffer.flush());
+        assertEquals(Arrays.asList("{\"n\":0}", "{\"n\":1}"), uploaded);
+    }
+}
@@ -0,0 +1,154 @@
+package com.jasonernst.awm.loggers;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SegmentJournalTest {
+
+    private static UploadClient.Body record(String text) {
+        return UploadClient.body(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String text(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Test public void readsAndAcknowledgesInOrder(@TempDir File directory) throws IOException {
+        SegmentJournal journal = SegmentJournal.open(directory, 64, 4);
+        for (int i = 0; i < 10; i++) {
+            journal.append(record("record-" + i));
+        }
+        // 16 bytes a record with its header, so four to a segment
+        assertEquals(3, journal.getSegmentCount());
+
+        SegmentJournal.Batch batch = journal.read(6, Long.MAX_VALUE);
+        assertEquals(6, batch.size());
+        assertEquals("record-0", text(batch.getRecord(0)));
+        assertEquals("record-5", text(batch.getRecord(5)));
+
+        journal.acknowledge(batch.getEnd(4));
+        assertEquals(2, journal.getSegmentCount());
+        batch = journal.read(100, 16);
+        assertEquals(2, batch.size());
+        assertEquals("record-5", text(batch.getRecord(0)));
+
+        journal.acknowledge(journal.read(100, Long.MAX_VALUE).getEnd());
+        assertTrue(journal.isEmpty());
+        assertEquals(1, journal.getSegmentCount());
+    }
+
+    @Test public void recoversAfterReopening(@TempDir File directory) throws IOException {
+        SegmentJournal journal = SegmentJournal.open(directory, 64, 4);
+        for (int i = 0; i < 6; i++) {
+            journal.append(record("record-" + i));
+        }
+        journal.acknowledge(journal.read(2, Long.MAX_VALUE).getEnd());
+        journal.close();
+
+        journal = SegmentJournal.open(directory, 64, 4);
+        SegmentJournal.Batch batch = journal.read(100, Long.MAX_VALUE);
+        assertEquals(4, batch.size());
+        assertEquals("record-2", text(batch.getRecord(0)));
+
+        // appends carry on after the recovered records
+        journal.append(record("record-6"));
+        batch = journal.read(100, Long.MAX_VALUE);
+        assertEquals(5, batch.size());
+        assertEquals("record-6", text(batch.getRecord(4)));
+    }
+
+    @Test public void dropsATornRecord(@TempDir File directory) throws IOException {
+        SegmentJournal journal = SegmentJournal.open(directory, 64, 4);
+        journal.append(record("record-0"));
+        journal.append(record("record-1"));
+        journal.close();
+
+        // damage the payload of the second record, as if the crash came before it was written
+        File segment = directory.listFiles((dir, name) -> name.endsWith(".seg"))[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(16 + 8);
+            raf.write('X');
+        }
+
+        journal = SegmentJournal.open(directory, 64, 4);
+        SegmentJournal.Batch batch = journal.read(100, Long.MAX_VALUE);
+        assertEquals(1, batch.size());
+        assertEquals("record-0", text(batch.getRecord(0)));
+
+        // the torn record is overwritten by the next one
+        journal.append(record("record-2"));
+        batch = journal.read(100, Long.MAX_VALUE);
+        assertEquals(2, batch.size());
+        assertEquals("record-2", text(batch.getRecord(1)));
+    }
+
+    @Test public void skipsADamagedHeadSegment(@TempDir File directory) throws IOException {
+        SegmentJournal journal = SegmentJournal.open(directory, 64, 4);
+        journal.append(record("record-0"));
+        journal.append(record("record-1"));
+
+        // damage the second record while the journal is open, as failing storage would
+        File segment = directory.listFiles((dir, name) -> name.endsWith(".seg"))[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.seek(16 + 8);
+            raf.write('X');
+        }
+
+        SegmentJournal.Batch batch = journal.read(100, Long.MAX_VALUE);
+        assertEquals(1, batch.size());
+        journal.acknowledge(batch.getEnd());
+        assertTrue(journal.read(100, Long.MAX_VALUE).isEmpty());
+        assertEquals(1, journal.getDamagedCount());
+
+        // appends are readable again, in a new segment
+        journal.append(record("record-2"));
+        batch = journal.read(100, Long.MAX_VALUE);
+        assertEquals(1, batch.size());
+        assertEquals("record-2", text(batch.getRecord(0)));
+        assertEquals(1, journal.getSegmentCount());
+    }
+
+    @Test public void evictsTheOldestSegmentWhenFull(@TempDir File directory) throws IOException {
+        SegmentJournal journal = SegmentJournal.open(directory, 64, 2);
+        for (int i = 0; i < 10; i++) {
+            journal.append(record("record-" + i));
+        }
+        assertEquals(2, journal.getSegmentCount());
+        // the third segment took the place of the first, with its four records unread
+        assertEquals(4, journal.getEvictedCount());
+        SegmentJournal.Batch batch = journal.read(100, Long.MAX_VALUE);
+        assertEquals(6, batch.size());
+        assertEquals("record-4", text(batch.getRecord(0)));
+    }
+
+    @Test public void refusesBadRecords(@TempDir File directory) throws IOException {
+        SegmentJournal journal = SegmentJournal.open(directory, 64, 2);
+        assertThrows(IllegalArgumentException.class,
+                () -> journal.append(UploadClient.body(new byte[57])));
+        assertThrows(IOException.class, () -> journal.append(new UploadClient.Body() {
+            @Override
+            public int length() {
+                return 8;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(new byte[4]);
+            }
+        }));
+        assertTrue(journal.isEmpty());
+    }
+}
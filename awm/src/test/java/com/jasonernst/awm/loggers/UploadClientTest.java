@@ -0,0 +1,158 @@
+package com.jasonernst.awm.loggers;
+
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class UploadClientTest {
+
+    private HttpServer server;
+    private URL url;
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger concurrent = new AtomicInteger();
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+    private volatile long delayMillis = 0;
+
+    @BeforeEach public void startServer() throws Exception {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            int now = concurrent.incrementAndGet();
+            maxConcurrent.accumulateAndGet(now, Math::max);
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            InputStream is = exchange.getRequestBody();
+            byte[] chunk = new byte[1024];
+            int read;
+            while ((read = is.read(chunk)) != -1) {
+                request.write(chunk, 0, read);
+            }
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+
+            byte[] response = ("got " + request.size()).getBytes(StandardCharsets.UTF_8);
+            int status = request.size() == 0 ? 400 : 200;
+            concurrent.decrementAndGet();
+            exchange.sendResponseHeaders(status, response.length);
+            OutputStream os = exchange.getResponseBody();
+            os.write(response);
+            os.close();
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/index.php");
+    }
+
+    @AfterEach public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test public void reusesConnection() throws Exception {
+        UploadClient client = new UploadClient(url, 2);
+        byte[] body = "{\"awm_measure\":{}}".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < 20; i++) {
+            UploadClient.Response response = client.post(NetworkLogger.JSON_CONTENT_TYPE,
+                    UploadClient.body(body));
+            assertEquals(200, response.getStatus());
+            assertEquals("got " + body.length, response.getBody());
+        }
+        // an error response is consumed too, so it doesn't cost the connection
+        UploadClient.Response error = client.post(NetworkLogger.JSON_CONTENT_TYPE,
+                UploadClient.body(new byte[0]));
+        assertEquals(400, error.getStatus());
+        client.post(NetworkLogger.JSON_CONTENT_TYPE, UploadClient.body(body));
+
+        assertEquals(1, clientPorts.size());
+        assertEquals(22, client.getRequestCount());
+        client.close();
+    }
+
+    @Test public void boundsRequestsInFlight() throws Exception {
+        delayMillis = 50;
+        final UploadClient client = new UploadClient(url, 3);
+        final byte[] body = new byte[100];
+        List<Future<UploadClient.Response>> results = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            results.add(client.submit(new Callable<UploadClient.Response>() {
+                @Override
+                public UploadClient.Response call() throws Exception {
+                    return client.post("application/octet-stream", UploadClient.body(body));
+                }
+            }));
+            assertTrue(client.getInFlight() <= 3);
+        }
+        for (Future<UploadClient.Response> result : results) {
+            assertEquals(200, result.get().getStatus());
+            assertTrue(result.get().getLatencyMillis() >= 50);
+        }
+
+        assertTrue(maxConcurrent.get() <= 3);
+        assertTrue(maxConcurrent.get() > 1);
+        // concurrent requests need their own connections, but no more than that
+        assertTrue(clientPorts.size() <= 3);
+        assertTrue(client.getMeanLatencyMillis() >= 50);
+        assertTrue(client.getMaxLatencyMillis() >= client.getMeanLatencyMillis());
+        client.close();
+    }
+
+    @Test public void closingGivesBackThePlacesOfQueuedTasks() throws Exception {
+        final UploadClient client = new UploadClient(url, 2);
+        final Callable<Void> quick = new Callable<Void>() {
+            @Override
+            public Void call() {
+                return null;
+            }
+        };
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread submitter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 2000; i++) {
+                        // the threads are often still finishing the last ones, so some of
+                        // these are still queued when the client is closed
+                        client.submit(quick);
+                        client.submit(quick);
+                        client.submit(quick);
+                        client.close();
+                    }
+                    client.submit(quick).get();
+                    done.countDown();
+                } catch (Exception ex) {
+                    // left to the assertion
+                }
+            }
+        });
+        submitter.setDaemon(true);
+        submitter.start();
+        // submit() blocks forever once the places of enough cancelled tasks are lost
+        assertTrue(done.await(20, TimeUnit.SECONDS));
+        client.close();
+    }
+}
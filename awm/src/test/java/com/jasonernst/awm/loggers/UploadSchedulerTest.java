@@ -0,0 +1,80 @@
+package com.jasonernst.awm.loggers;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class UploadSchedulerTest {
+
+    @Test public void backoffGrowsWithJitterUpToTheCap() {
+        UploadScheduler scheduler = new UploadScheduler(100, 1000, 0, new Random(1));
+        long[] ceilings = {100, 200, 400, 800, 1000, 1000};
+        for (long ceiling : ceilings) {
+            long delay = scheduler.backoff();
+            assertTrue(delay >= ceiling / 2 && delay <= ceiling, delay + " vs " + ceiling);
+        }
+        assertEquals(UploadScheduler.State.BACKOFF, scheduler.getState());
+        assertEquals(6, scheduler.getFailures());
+
+        scheduler.drain();
+        assertEquals(0, scheduler.getFailures());
+        assertTrue(scheduler.backoff() <= 100);
+
+        // many failures in a row don't overflow the shift
+        for (int i = 0; i < 100; i++) {
+            long delay = scheduler.backoff();
+            assertTrue(delay > 0 && delay <= 1000);
+        }
+        long delay = scheduler.backoff();
+        assertTrue(delay >= 500 && delay <= 1000);
+    }
+
+    @Test public void backoffIsNotCutShortBySignals() throws InterruptedException {
+        UploadScheduler scheduler = new UploadScheduler(200, 200, 0, new Random(1));
+        long delay = scheduler.backoff();
+        scheduler.signal();
+        long start = System.nanoTime();
+        scheduler.await();
+        assertTrue((System.nanoTime() - start) / 1000000 >= delay - 1);
+    }
+
+    @Test public void drainingRunsStraightAway() throws InterruptedException {
+        UploadScheduler scheduler = new UploadScheduler(100, 1000, 0, new Random(1));
+        scheduler.drain();
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            scheduler.await();
+        }
+        assertTrue((System.nanoTime() - start) / 1000000 < 100);
+    }
+
+    @Test public void idleWaitsForSignal() throws InterruptedException {
+        final UploadScheduler scheduler = new UploadScheduler(100, 1000, 0, new Random(1));
+        scheduler.idle();
+        Thread waiter = new Thread(() -> {
+            try {
+                scheduler.await();
+            } catch (InterruptedException ex) {
+                // fall through
+            }
+        });
+        waiter.start();
+        waiter.join(100);
+        assertTrue(waiter.isAlive());
+
+        scheduler.signal();
+        waiter.join(1000);
+        assertTrue(!waiter.isAlive());
+    }
+
+    @Test public void idleRechecksEventually() throws InterruptedException {
+        UploadScheduler scheduler = new UploadScheduler(100, 1000, 50, new Random(1));
+        scheduler.idle();
+        long start = System.nanoTime();
+        scheduler.await();
+        assertTrue((System.nanoTime() - start) / 1000000 >= 49);
+    }
+}
@@ -0,0 +1,129 @@
+package com.jasonernst.awm.stats;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Timestamp;
+import java.util.UUID;
+
+import com.jasonernst.awm.ObservingDevice;
+import com.jasonernst.awm.encoders.JsonStreamWriter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class NetworkStatTest {
+
+    @Test public void snapshotsDontChangeWithTheBuilder() {
+        NetworkStat.Builder builder = new NetworkStat.Builder(1);
+        builder.put("a", "00:00:00:00:00:01", -50, 2412, 20, "WPA2")
+                .put("b", "00:00:00:00:00:02", -60, 5180, 40, "WPA2")
+                // the same MAC again replaces what was seen before
+                .put("a", "00:00:00:00:00:01", -55, 2412, 20, "WPA2");
+        NetworkStat first = builder.build(NetworkStat.DeviceType.WIFI);
+
+        builder.clear().put("c", "00:00:00:00:00:03", -70, 2437, 20, "");
+        NetworkStat second = builder.build(NetworkStat.DeviceType.WIFI);
+
+        assertEquals(2, first.size());
+        assertEquals("00:00:00:00:00:01", first.getMac(0));
+        assertEquals(-55, first.getSignalStrength(0));
+        assertEquals(5180, first.getFrequency(1));
+        assertEquals("b", first.getDevices().get("00:00:00:00:00:02").getName());
+
+        assertEquals(1, second.size());
+        assertEquals("c", second.getName(0));
+    }
+
+    @Test public void storesMacsAsValuesAndDropsInvalidOnes() {
+        NetworkStat stat = new NetworkStat.Builder()
+                .put("a", "aa:bb:cc:dd:ee:ff", -50, 2412, 20, "WPA2")
+                .put("b", "not a mac", -60, 2412, 20, "WPA2")
+                .put("c", 0x1L, -70, 2412, 20, "WPA2")
+                .build(NetworkStat.DeviceType.WIFI);
+
+        assertEquals(2, stat.size());
+        assertEquals(0xAABBCCDDEEFFL, stat.getMacValue(0));
+        assertEquals("AA:BB:CC:DD:EE:FF", stat.getMac(0));
+        assertEquals(1, stat.indexOf(0x1L));
+
+        NetworkStat.Cursor cursor = new NetworkStat.Cursor().of(stat);
+        int seen = 0;
+        while (cursor.next()) {
+            assertEquals(stat.getMacValue(seen), cursor.getMac());
+            assertEquals("WPA2", cursor.getSecurity());
+            seen++;
+        }
+        assertEquals(2, seen);
+        assertEquals("c", cursor.moveTo(1).getName());
+    }
+
+    @Test public void binaryIsWrittenAsTheSameJson() throws Exception {
+        ObservingDevice device = new ObservingDevice(UUID.randomUUID(), "test");
+        device.updatePosition(new GPSStats(-123.1, 49.2));
+        NetworkStat stat = new NetworkStat.Builder()
+                .put("home", "aa:bb:cc:dd:ee:ff", -50, 2412, 20, "[WPA2-PSK-CCMP][ESS]")
+                .put("cafe", "00:11:22:33:44:55", -70, 5180, 40, "[ESS]")
+                .build(NetworkStat.DeviceType.WIFI, 1600000000123L);
+
+        String json = stat.toJSON(device, JsonStreamWriter.Style.COMPACT);
+        JsonStreamWriter writer = new JsonStreamWriter(JsonStreamWriter.Style.COMPACT);
+        NetworkStat.binaryToJSON(stat.encodeBinary(device).toByteArray(), writer);
+        String transcoded = writer.toString();
+
+        // the same up to the strings, which are keyed differently
+        String reportingDevice = json.substring(0, json.indexOf("\"strings\""));
+        assertTrue(reportingDevice.contains("\"2020-09-13 12:26:40.123\""));
+        assertEquals(reportingDevice,
+                transcoded.substring(0, transcoded.indexOf("\"strings\"")));
+        assertTrue(transcoded.contains("\"mac_address\":\"AA:BB:CC:DD:EE:FF\","
+                + "\"signal_strength\":-50,\"frequency\":2412,\"channel_width\":20"));
+        assertTrue(transcoded.contains("\"[WPA2-PSK-CCMP][ESS]\""));
+        assertTrue(transcoded.contains("\"cafe\""));
+    }
+
+    @Test public void aMissingNameIsSentTheSameInBothFormats() throws Exception {
+        ObservingDevice device = new ObservingDevice(UUID.randomUUID(), "test");
+        device.updatePosition(new GPSStats(-123.1, 49.2));
+        NetworkStat stat = new NetworkStat.Builder()
+                .put(null, "aa:bb:cc:dd:ee:ff", -50, 2412, 20, null)
+                .build(NetworkStat.DeviceType.BLUETOOTH_LE, 1600000000123L);
+
+        String json = stat.toJSON(device, JsonStreamWriter.Style.COMPACT);
+        JsonStreamWriter writer = new JsonStreamWriter(JsonStreamWriter.Style.COMPACT);
+        NetworkStat.binaryToJSON(stat.encodeBinary(device).toByteArray(), writer);
+        String transcoded = writer.toString();
+
+        assertTrue(json.contains("\"security_id\":-1,"));
+        assertTrue(json.contains("\"network_name_id\":-1}"));
+        assertTrue(transcoded.contains("\"security_id\":-1,"));
+        assertTrue(transcoded.contains("\"network_name_id\":-1}"));
+        assertFalse(transcoded.contains("\"null\""));
+    }
+
+    @Test public void prettyKeepsTheLegacyShape() throws Exception {
+        ObservingDevice device = new ObservingDevice(UUID.randomUUID(), "test");
+        device.updatePosition(new GPSStats(-123.1, 49.2));
+        NetworkStat stat = new NetworkStat.Builder()
+                .put("home", "aa:bb:cc:dd:ee:ff", -50, 2412, 20, "[WPA2-PSK-CCMP][ESS]")
+                .build(NetworkStat.DeviceType.WIFI, 1600000000123L);
+
+        String json = stat.toJSON(device, JsonStreamWriter.Style.PRETTY);
+        JsonStreamWriter writer = new JsonStreamWriter(JsonStreamWriter.Style.PRETTY);
+        NetworkStat.binaryToJSON(stat.encodeBinary(device).toByteArray(), writer);
+
+        assertEquals(json, writer.toString());
+        assertFalse(json.contains("\"strings\""));
+        assertTrue(json.contains("\"network_name\": \"home\""));
+        assertTrue(json.contains("\"security\": \"[WPA2-PSK-CCMP][ESS]\""));
+        assertTrue(json.contains(new Timestamp(1600000000123L).toString()));
+    }
+
+    @Test public void eachTypeHasTheMacTypeTheServerExpects() {
+        NetworkStat.Builder builder = new NetworkStat.Builder();
+        assertEquals(0, builder.build(NetworkStat.DeviceType.BLUETOOTH).getMacType());
+        assertEquals(1, builder.build(NetworkStat.DeviceType.WIFI).getMacType());
+        assertEquals(2, builder.build(NetworkStat.DeviceType.BLUETOOTH_LE).getMacType());
+        assertEquals(-1, builder.build(NetworkStat.DeviceType.WIFI_DIRECT).getMacType());
+    }
+}
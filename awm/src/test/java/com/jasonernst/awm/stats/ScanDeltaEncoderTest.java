@@ -0,0 +1,108 @@
+package com.jasonernst.awm.stats;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.jasonernst.awm.ObservingDevice;
+import com.jasonernst.awm.encoders.JsonStreamWriter;
+import com.jasonernst.awm.encoders.MacAddress;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ScanDeltaEncoderTest {
+
+    private static NetworkStat scan(NetworkStat.DeviceType type, NetworkDevice... devices) {
+        ConcurrentHashMap<String, NetworkDevice> map = new ConcurrentHashMap<>();
+        for (NetworkDevice device : devices) {
+            map.put(device.getMac(), device);
+        }
+        return new NetworkStat(type, map);
+    }
+
+    private static final String A = "00:00:00:00:00:0A";
+    private static final String B = "00:00:00:00:00:0B";
+    private static final String C = "00:00:00:00:00:0C";
+    private static final String D = "00:00:00:00:00:0D";
+
+    private static NetworkDevice ap(String mac, int rssi) {
+        return new NetworkDevice("ssid-" + mac, mac, rssi, 2412, 20, "WPA2");
+    }
+
+    @Test public void sendsOnlyWhatChanged() {
+        ScanDeltaEncoder encoder = new ScanDeltaEncoder(5, 100);
+        ScanDelta first = encoder.encode(scan(NetworkStat.DeviceType.WIFI,
+                ap(A, -50), ap(B, -60), ap(C, -70)));
+        assertTrue(first.isKeyframe());
+        assertEquals(3, first.getDevices().size());
+        assertEquals(0, first.getSequence());
+
+        // small changes aren't sent
+        assertNull(encoder.encode(scan(NetworkStat.DeviceType.WIFI,
+                ap(A, -52), ap(B, -61), ap(C, -70))));
+
+        ScanDelta delta = encoder.encode(scan(NetworkStat.DeviceType.WIFI,
+                ap(A, -56), ap(B, -61), ap(D, -80)));
+        assertFalse(delta.isKeyframe());
+        assertEquals(1, delta.getSequence());
+        assertEquals(2, delta.getDevices().size());
+        assertTrue(delta.getDevices().containsKey(A));
+        assertTrue(delta.getDevices().containsKey(D));
+        assertArrayEquals(new long[] {MacAddress.parse(C)}, delta.getRemoved());
+    }
+
+    @Test public void aDeltaCachedInBinaryIsUploadedAsADelta() throws Exception {
+        ObservingDevice device = new ObservingDevice(UUID.randomUUID(), "test");
+        device.updatePosition(new GPSStats(-123.1, 49.2));
+        ScanDeltaEncoder encoder = new ScanDeltaEncoder(5, 100);
+        encoder.encode(scan(NetworkStat.DeviceType.WIFI, ap(A, -50), ap(B, -60), ap(C, -70)));
+        ScanDelta delta = encoder.encode(scan(NetworkStat.DeviceType.WIFI,
+                ap(A, -60), ap(B, -60)));
+
+        String json = delta.toJSON(device, JsonStreamWriter.Style.COMPACT);
+        JsonStreamWriter writer = new JsonStreamWriter(JsonStreamWriter.Style.COMPACT);
+        NetworkStat.binaryToJSON(delta.encodeBinary(device).toByteArray(), writer);
+        String transcoded = writer.toString();
+
+        String expected = "\"delta\":{\"mac_type\":1,\"sequence\":1,\"keyframe\":false,"
+                + "\"removed\":[\"" + C + "\"]}";
+        assertTrue(json.contains(expected));
+        assertTrue(transcoded.contains(expected));
+        // only the device which changed
+        assertEquals(1, transcoded.split("\"mac_address\"", -1).length - 1);
+        assertTrue(transcoded.contains("\"mac_address\":\"" + A + "\""));
+    }
+
+    @Test public void driftIsMeasuredFromWhatWasSent() {
+        ScanDeltaEncoder encoder = new ScanDeltaEncoder(5, 100);
+        encoder.encode(scan(NetworkStat.DeviceType.WIFI, ap(A, -50)));
+        assertNull(encoder.encode(scan(NetworkStat.DeviceType.WIFI, ap(A, -53))));
+        ScanDelta delta = encoder.encode(scan(NetworkStat.DeviceType.WIFI, ap(A, -55)));
+        assertEquals(-55, delta.getDevices().get(A).getSignalStrength());
+    }
+
+    @Test public void sendsKeyframesPeriodicallyAndPerType() {
+        ScanDeltaEncoder encoder = new ScanDeltaEncoder(5, 3);
+        NetworkStat wifi = scan(NetworkStat.DeviceType.WIFI, ap(A, -50));
+        assertTrue(encoder.encode(wifi).isKeyframe());
+        assertNull(encoder.encode(wifi));
+        // bluetooth keeps its own table
+        assertTrue(encoder.encode(scan(NetworkStat.DeviceType.BLUETOOTH, ap(D, -40)))
+                .isKeyframe());
+        assertNull(encoder.encode(wifi));
+
+        ScanDelta keyframe = encoder.encode(wifi);
+        assertTrue(keyframe.isKeyframe());
+        assertEquals(1, keyframe.size());
+        assertEquals(A, keyframe.getMac(0));
+        assertEquals(1, keyframe.getSequence());
+
+        encoder.reset();
+        assertTrue(encoder.encode(wifi).isKeyframe());
+    }
+}
@@ -0,0 +1,40 @@
+package com.jasonernst.awm.stats;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class StringDictionaryTest {
+
+    @Test public void internsToOneInstance() {
+        StringDictionary dictionary = new StringDictionary(4);
+        String first = dictionary.intern(new String("[WPA2-PSK-CCMP][ESS]"));
+        assertSame(first, dictionary.intern(new String("[WPA2-PSK-CCMP][ESS]")));
+        assertEquals(dictionary.lookup(first).getId(),
+                dictionary.lookup(new String(first)).getId());
+        assertNull(dictionary.lookup(null));
+    }
+
+    @Test public void evictsTheLeastRecentlyUsedAndNeverReusesIds() {
+        StringDictionary dictionary = new StringDictionary(2);
+        int a = dictionary.lookup("a").getId();
+        int b = dictionary.lookup("b").getId();
+        // a was used last, so b goes to make room for c
+        dictionary.lookup("a");
+        int c = dictionary.lookup("c").getId();
+        assertEquals(2, dictionary.size());
+        assertEquals(1, dictionary.getEvictedCount());
+        assertEquals(a, dictionary.lookup("a").getId());
+
+        int again = dictionary.lookup("b").getId();
+        assertNotEquals(b, again);
+        assertNotEquals(c, again);
+
+        dictionary.setCapacity(1);
+        assertEquals(1, dictionary.size());
+        assertEquals(again, dictionary.lookup("b").getId());
+    }
+}